@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+import ca.psiphon.conduit.nativemodule.logging.MyLog;
+
+// Scales the in-proxy capacity down while the device is on low battery, running hot, or while the
+// proxy itself uses a lot of CPU, and back up once the pressure is gone.
+//
+// Each signal maps to a capacity level through thresholds with hysteresis: a level is entered at one
+// threshold and only left once the signal is well past it, so a value hovering around a threshold
+// does not flip the level. The most restrictive level across the signals wins. Since applying a new
+// level restarts tunnel core, the level is held for at least MIN_DWELL_MILLIS after each change.
+//
+// All methods except apply() must be called on the thread of the handler passed to the constructor.
+class CapacityController {
+    private static final String TAG = CapacityController.class.getSimpleName();
+
+    private static final long EVALUATION_INTERVAL_MILLIS = 60 * 1000;
+    private static final long MIN_DWELL_MILLIS = 10 * 60 * 1000;
+
+    // Battery percentage at or below which a level is entered, and above which it is left, when not charging
+    private static final int BATTERY_REDUCED_ENTER_PERCENT = 30;
+    private static final int BATTERY_REDUCED_EXIT_PERCENT = 40;
+    private static final int BATTERY_MINIMAL_ENTER_PERCENT = 15;
+    private static final int BATTERY_MINIMAL_EXIT_PERCENT = 25;
+
+    // Share of one core used by this process over the last evaluation interval
+    private static final double CPU_REDUCED_ENTER_FRACTION = 0.5;
+    private static final double CPU_REDUCED_EXIT_FRACTION = 0.3;
+
+    // Ordered from least to most restrictive
+    enum Level {
+        FULL(1.0),
+        REDUCED(0.5),
+        MINIMAL(0.25);
+
+        final double factor;
+
+        Level(double factor) {
+            this.factor = factor;
+        }
+
+        static Level max(Level a, Level b) {
+            return a.ordinal() >= b.ordinal() ? a : b;
+        }
+
+        static Level min(Level a, Level b) {
+            return a.ordinal() <= b.ordinal() ? a : b;
+        }
+    }
+
+    interface Listener {
+        // Called when the level changes, after apply() has started returning the new limits. Returns
+        // false if the new level cannot be applied right now, in which case the change is undone and
+        // retried on the next evaluation.
+        boolean onCapacityLevelChanged(Level level, String reason);
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final Listener listener;
+    private final Runnable evaluateRunnable = this::evaluatePeriodically;
+
+    private volatile Level level = Level.FULL;
+    private String reason = "";
+    private int adjustments = 0;
+    private long levelChangedAtMillis;
+    private boolean started = false;
+
+    // Latest readings
+    private int batteryPercent = 100;
+    private boolean charging = true;
+    // False on devices without a battery, such as TV boxes, and when the level is not reported
+    private boolean batteryKnown = false;
+    private long lastCpuTimeMillis;
+    private long lastCpuSampleMillis;
+    private double cpuFraction = 0;
+
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateBattery(intent);
+        }
+    };
+
+    private final Object thermalListener;
+
+    CapacityController(Context context, Handler handler, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.handler = handler;
+        this.listener = listener;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // Re-evaluate as soon as the thermal status changes rather than on the next periodic evaluation
+            thermalListener = (PowerManager.OnThermalStatusChangedListener) status -> evaluate();
+        } else {
+            thermalListener = null;
+        }
+    }
+
+    // Starts observing, called when the in-proxy starts. The initial level is set without notifying
+    // the listener since the tunnel has not read its config yet.
+    void start() {
+        if (started) {
+            return;
+        }
+        // The battery broadcast is sticky, so registering also returns the current reading
+        updateBattery(context.registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
+        started = true;
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && powerManager != null) {
+            powerManager.addThermalStatusListener((PowerManager.OnThermalStatusChangedListener) thermalListener);
+        }
+        lastCpuTimeMillis = Process.getElapsedCpuTime();
+        lastCpuSampleMillis = SystemClock.elapsedRealtime();
+        cpuFraction = 0;
+
+        StringBuilder initialReason = new StringBuilder();
+        setLevel(targetLevel(Level.FULL, initialReason), initialReason.toString());
+        handler.postDelayed(evaluateRunnable, EVALUATION_INTERVAL_MILLIS);
+    }
+
+    // Stops observing, called when the in-proxy stops
+    void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        handler.removeCallbacks(evaluateRunnable);
+        context.unregisterReceiver(batteryReceiver);
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && powerManager != null) {
+            powerManager.removeThermalStatusListener((PowerManager.OnThermalStatusChangedListener) thermalListener);
+        }
+    }
+
+    Level level() {
+        return level;
+    }
+
+    String reason() {
+        return reason;
+    }
+
+    // Number of level changes applied since the service was created
+    int adjustments() {
+        return adjustments;
+    }
+
+    // Returns the parameters with the capacity limits scaled to the current level. Called by the tunnel
+    // on its own thread when it reads its config.
+    ConduitServiceParameters apply(ConduitServiceParameters parameters) {
+        Level current = level;
+        if (current == Level.FULL) {
+            return parameters;
+        }
+        return new ConduitServiceParameters(
+                scaleClients(parameters.maxClients(), current),
+                scaleBytes(parameters.limitUpstreamBytes(), current),
+                scaleBytes(parameters.limitDownstreamBytes(), current),
+                parameters.privateKey(),
+                parameters.reducedStartTime(),
+                parameters.reducedEndTime(),
+                parameters.reducedMaxClients() == null ? null : scaleClients(parameters.reducedMaxClients(), current),
+                parameters.reducedLimitUpstreamBytes() == null ? null :
+                        scaleBytes(parameters.reducedLimitUpstreamBytes(), current),
+                parameters.reducedLimitDownstreamBytes() == null ? null :
+                        scaleBytes(parameters.reducedLimitDownstreamBytes(), current),
+                parameters.meteredMaxClients(),
+                parameters.meteredLimitUpstreamBytes(),
+                parameters.meteredLimitDownstreamBytes(),
+                parameters.meteredDailyBytes(),
+                parameters.ioMode(),
+                parameters.powerLockMode());
+    }
+
+    private static int scaleClients(int maxClients, Level level) {
+        return Math.max(1, (int) (maxClients * level.factor));
+    }
+
+    // Zero means unlimited and is kept, the client count still bounds the throughput then
+    private static int scaleBytes(int limit, Level level) {
+        return limit == 0 ? 0 : Math.max(1, (int) (limit * level.factor));
+    }
+
+    private void evaluatePeriodically() {
+        if (!started) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long cpuTimeMillis = Process.getElapsedCpuTime();
+        if (now > lastCpuSampleMillis) {
+            cpuFraction = (double) (cpuTimeMillis - lastCpuTimeMillis) / (now - lastCpuSampleMillis);
+        }
+        lastCpuTimeMillis = cpuTimeMillis;
+        lastCpuSampleMillis = now;
+        evaluate();
+        handler.postDelayed(evaluateRunnable, EVALUATION_INTERVAL_MILLIS);
+    }
+
+    private void evaluate() {
+        if (!started) {
+            return;
+        }
+        StringBuilder targetReason = new StringBuilder();
+        Level target = targetLevel(level, targetReason);
+        if (target == level) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (now - levelChangedAtMillis < MIN_DWELL_MILLIS) {
+            return;
+        }
+        String newReason = targetReason.length() == 0 ? "no pressure" : targetReason.toString();
+        // Set the level before notifying so that the restarted tunnel reads the new limits
+        Level previousLevel = level;
+        String previousReason = reason;
+        long previousChangedAtMillis = levelChangedAtMillis;
+        setLevel(target, newReason);
+        if (!listener.onCapacityLevelChanged(target, newReason)) {
+            level = previousLevel;
+            reason = previousReason;
+            levelChangedAtMillis = previousChangedAtMillis;
+            return;
+        }
+        adjustments++;
+        MyLog.i(TAG, "Capacity level changed", MyLog.fields()
+                .put("from", previousLevel)
+                .put("to", target)
+                .put("reason", newReason)
+                .put("millisAtPreviousLevel", now - previousChangedAtMillis));
+    }
+
+    private void setLevel(Level newLevel, String newReason) {
+        level = newLevel;
+        reason = newReason;
+        levelChangedAtMillis = SystemClock.elapsedRealtime();
+    }
+
+    // The most restrictive level asked for by the signals, appending the signals that ask for more than
+    // FULL to reason
+    private Level targetLevel(Level current, StringBuilder reason) {
+        Level target = Level.FULL;
+        target = Level.max(target, signal("battery " + batteryPercent + "%", reason, current,
+                batteryLevel(BATTERY_MINIMAL_ENTER_PERCENT, BATTERY_REDUCED_ENTER_PERCENT),
+                batteryLevel(BATTERY_MINIMAL_EXIT_PERCENT, BATTERY_REDUCED_EXIT_PERCENT)));
+        int thermalStatus = thermalStatus();
+        // Entered at MODERATE and SEVERE, left once the status is below LIGHT and MODERATE respectively
+        target = Level.max(target, signal("thermal status " + thermalStatus, reason, current,
+                thermalLevel(thermalStatus, 0), thermalLevel(thermalStatus, 1)));
+        target = Level.max(target, signal(String.format(Locale.US, "cpu %.0f%%", cpuFraction * 100),
+                reason, current,
+                cpuFraction >= CPU_REDUCED_ENTER_FRACTION ? Level.REDUCED : Level.FULL,
+                cpuFraction >= CPU_REDUCED_EXIT_FRACTION ? Level.REDUCED : Level.FULL));
+        return target;
+    }
+
+    // Applies the hysteresis: the strict level applies right away, the current level is kept as long
+    // as the relaxed thresholds still ask for it
+    private static Level signal(String description, StringBuilder reason, Level current, Level strict, Level relaxed) {
+        Level level = Level.max(strict, Level.min(current, relaxed));
+        if (level != Level.FULL) {
+            if (reason.length() > 0) {
+                reason.append(", ");
+            }
+            reason.append(description);
+        }
+        return level;
+    }
+
+    private Level batteryLevel(int minimalPercent, int reducedPercent) {
+        if (charging || !batteryKnown) {
+            return Level.FULL;
+        }
+        if (batteryPercent <= minimalPercent) {
+            return Level.MINIMAL;
+        }
+        return batteryPercent <= reducedPercent ? Level.REDUCED : Level.FULL;
+    }
+
+    // PowerManager thermal statuses: NONE 0, LIGHT 1, MODERATE 2, SEVERE 3 and above
+    private static Level thermalLevel(int status, int hysteresis) {
+        if (status >= PowerManager.THERMAL_STATUS_SEVERE - hysteresis) {
+            return Level.MINIMAL;
+        }
+        return status >= PowerManager.THERMAL_STATUS_MODERATE - hysteresis ? Level.REDUCED : Level.FULL;
+    }
+
+    private int thermalStatus() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return PowerManager.THERMAL_STATUS_NONE;
+        }
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return powerManager != null ? powerManager.getCurrentThermalStatus() : PowerManager.THERMAL_STATUS_NONE;
+    }
+
+    private void updateBattery(Intent intent) {
+        if (intent == null) {
+            return;
+        }
+        // Battery-less devices may still report a level of 0, which must not hold them at MINIMAL
+        boolean present = intent.getBooleanExtra(BatteryManager.EXTRA_PRESENT, true);
+        int levelValue = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        boolean wasKnown = batteryKnown;
+        batteryKnown = present && levelValue >= 0 && scale > 0;
+        if (batteryKnown) {
+            batteryPercent = levelValue * 100 / scale;
+        }
+        int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+        boolean wasCharging = charging;
+        charging = plugged != 0;
+        if (started && (wasCharging != charging || wasKnown != batteryKnown)) {
+            evaluate();
+        }
+    }
+}
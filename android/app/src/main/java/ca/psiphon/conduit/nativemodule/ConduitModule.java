@@ -26,6 +26,7 @@ import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -101,6 +102,7 @@ public class ConduitModule extends ReactContextBaseJavaModule implements Lifecyc
 
         // Initialize the logging system
         MyLog.init(context.getApplicationContext());
+        IoAccounting.reportHourlyToLog();
 
         // Setup the RxJava error handler
         setupRxJavaErrorHandler();
@@ -161,9 +163,49 @@ public class ConduitModule extends ReactContextBaseJavaModule implements Lifecyc
         }
     }
 
+    // Overrides the IoPolicy mode, IMMEDIATE, BATCHED or BATCHED_CAPPED, or restores the device default if
+    // null
+    @ReactMethod
+    public void setIoMode(@Nullable String ioMode, Promise promise) {
+        try {
+            if (ioMode != null && !IoPolicy.isValidMode(ioMode)) {
+                throw new IllegalArgumentException("Invalid I/O mode: " + ioMode);
+            }
+            // The mode is stored with the parameters, which JS sends when the app starts
+            if (ConduitServiceParameters.load(getReactApplicationContext()) == null) {
+                throw new IllegalStateException("No parameters stored yet");
+            }
+            ConduitServiceInteractor.setIoMode(getReactApplicationContext(), ioMode);
+            promise.resolve(null);
+        } catch (Exception e) {
+            MyLog.e(TAG, "Failed to set I/O mode: " + e);
+            promise.reject("SET_IO_MODE_ERROR", "Failed to set I/O mode", e);
+        }
+    }
+
+    // Opts in to holding power locks while the in-proxy has clients, OFF, WIFI or WIFI_AND_WAKE, or
+    // restores the default of holding none if null
+    @ReactMethod
+    public void setPowerLockMode(@Nullable String powerLockMode, Promise promise) {
+        try {
+            if (powerLockMode != null && !PowerLockPolicy.isValidMode(powerLockMode)) {
+                throw new IllegalArgumentException("Invalid power lock mode: " + powerLockMode);
+            }
+            // The mode is stored with the parameters, which JS sends when the app starts
+            if (ConduitServiceParameters.load(getReactApplicationContext()) == null) {
+                throw new IllegalStateException("No parameters stored yet");
+            }
+            ConduitServiceInteractor.setPowerLockMode(getReactApplicationContext(), powerLockMode);
+            promise.resolve(null);
+        } catch (Exception e) {
+            MyLog.e(TAG, "Failed to set power lock mode: " + e);
+            promise.reject("SET_POWER_LOCK_MODE_ERROR", "Failed to set power lock mode", e);
+        }
+    }
+
     @ReactMethod
     public void sendFeedback(String inproxyId, Promise promise) {
-        final String FEEDBACK_UPLOAD_WORK_NAME = "FeedbackUploadWork";
+        final String FEEDBACK_UPLOAD_WORK_NAME = FeedbackWorker.UNIQUE_WORK_NAME;
         final String TAG = "FeedbackUpload"; // Use a different tag for feedback upload logging
 
         try {
@@ -209,7 +251,7 @@ public class ConduitModule extends ReactContextBaseJavaModule implements Lifecyc
                         OneTimeWorkRequest uploadWorkRequest = new OneTimeWorkRequest.Builder(FeedbackWorker.class)
                                 .setInputData(inputData)
                                 .setConstraints(uploadConstraints)
-                                .addTag("feedbackId: " + feedbackId)
+                                .addTag(FeedbackWorker.FEEDBACK_ID_TAG_PREFIX + feedbackId)
                                 .build();
 
                         // Enqueue the unique work request
@@ -349,7 +391,10 @@ public class ConduitModule extends ReactContextBaseJavaModule implements Lifecyc
             hasHandledIntent = true;
             handleIntent(getCurrentActivity().getIntent());
         }
+        long startNanos = SystemClock.elapsedRealtimeNanos();
         conduitServiceInteractor.onStart(getReactApplicationContext());
+        MyLog.i(TAG, "Host resumed", MyLog.fields()
+                .put("interactorStartMicros", (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000));
     }
 
     @Override
@@ -442,6 +487,9 @@ public class ConduitModule extends ReactContextBaseJavaModule implements Lifecyc
         proxyActivityStatsMap.putInt("currentAnnouncingWorkers", stats.getCurrentAnnouncingWorkers());
         proxyActivityStatsMap.putInt("currentConnectingClients", stats.getCurrentConnectingClients());
         proxyActivityStatsMap.putInt("currentConnectedClients", stats.getCurrentConnectedClients());
+        proxyActivityStatsMap.putString("capacityLevel", stats.getCapacityLevel());
+        proxyActivityStatsMap.putString("capacityReason", stats.getCapacityReason());
+        proxyActivityStatsMap.putInt("reconfigurationDroppedClients", stats.getReconfigurationDroppedClients());
 
         WritableMap dataByPeriodMap = Arguments.createMap();
 
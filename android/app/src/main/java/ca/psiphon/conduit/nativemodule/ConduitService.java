@@ -31,7 +31,6 @@ import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
-import android.content.res.Resources;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.DeadObjectException;
@@ -39,6 +38,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
@@ -50,6 +50,7 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -57,10 +58,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicReference;
 
 import ca.psiphon.PsiphonTunnel;
 import ca.psiphon.conduit.R;
@@ -74,24 +73,61 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
     public static final String INTENT_ACTION_TOGGLE_IN_PROXY = "ca.psiphon.conduit.nativemodule.ToggleInProxy";
     public static final String INTENT_ACTION_START_IN_PROXY_WITH_LAST_PARAMS = "ca.psiphon.conduit.nativemodule.StartInProxyWithLastParams";
     public static final String INTENT_ACTION_PARAMS_CHANGED = "ca.psiphon.conduit.nativemodule.ParamsChanged";
+    // Sets the IoPolicy mode from the ConduitServiceParameters.IO_MODE_KEY extra, absent for the default
+    public static final String INTENT_ACTION_SET_IO_MODE = "ca.psiphon.conduit.nativemodule.SetIoMode";
+    // Sets the PowerLockPolicy mode from the ConduitServiceParameters.POWER_LOCK_MODE_KEY extra, absent
+    // for the default
+    public static final String INTENT_ACTION_SET_POWER_LOCK_MODE = "ca.psiphon.conduit.nativemodule.SetPowerLockMode";
     public static final String INTENT_ACTION_PSIPHON_START_FAILED = "ca.psiphon.conduit.nativemodule.PsiphonStartFailed";
     public static final String INTENT_ACTION_PSIPHON_RESTART_FAILED = "ca.psiphon.conduit.nativemodule.PsiphonRestartFailed";
     public static final String INTENT_ACTION_INPROXY_MUST_UPGRADE = "ca.psiphon.conduit.nativemodule.InProxyMustUpgrade";
 
     private final String NOTIFICATION_CHANNEL_ID = "ConduitServiceChannel";
 
-    // Enum to represent the state of the foreground service
-    // This tracks the lifecycle of the service in foreground, whether it is
-    // running a foreground task (e.g., in-proxy) or transitioning between states.
-    private enum ForegroundServiceState {
+    // Internal action used to stop the in-proxy without clearing the service running flag, for example
+    // when tunnel core reports that the app must be upgraded
+    private static final String LIFECYCLE_ACTION_STOP_IN_PROXY = "ca.psiphon.conduit.nativemodule.StopInProxy";
+
+    // States of the in-proxy lifecycle. STARTING, RESTARTING and STOPPING are transitional states
+    // that last while the corresponding asynchronous tunnel operation is in flight; commands received
+    // during a transition are queued and replayed in order once the lifecycle settles.
+    private enum LifecycleState {
         STOPPED,
         STARTING,
         RUNNING,
+        RESTARTING,
         STOPPING
     }
 
-    // Variable to track the current state of the foreground service
-    private final AtomicReference<ForegroundServiceState> foregroundServiceState = new AtomicReference<>(ForegroundServiceState.STOPPED);
+    // A lifecycle command, either received through onStartCommand or raised internally. The setting is
+    // the value carried by a device setting command, such as the I/O mode.
+    private record LifecycleCommand(String action, ConduitServiceParameters parameters, String setting,
+                                    long receivedAtMillis) {
+        LifecycleCommand(String action, ConduitServiceParameters parameters, long receivedAtMillis) {
+            this(action, parameters, null, receivedAtMillis);
+        }
+    }
+
+    // Current lifecycle state, only accessed on the main thread
+    private LifecycleState lifecycleState = LifecycleState.STOPPED;
+
+    // Time at which the current lifecycle state was entered, used for transition timing
+    private long lifecycleStateEnteredAtMillis = SystemClock.elapsedRealtime();
+
+    // Commands received while the lifecycle was in a transitional state, only accessed on the main thread
+    private final ArrayDeque<LifecycleCommand> pendingCommands = new ArrayDeque<>();
+
+    // Time at which the toggle command that is currently starting the in-proxy was received, or -1
+    private long toggleReceivedAtMillis = -1;
+
+    // Quiet period after the last parameters change before the latest parameters are applied
+    private static final long PARAMS_CHANGED_DEBOUNCE_MILLIS = 750;
+
+    // Latest parameters received during the current burst of parameters changes and the number of
+    // changes coalesced into them, only accessed on the main thread
+    private LifecycleCommand debouncedParamsChangedCommand = null;
+    private int debouncedParamsChangedCount = 0;
+    private final Runnable applyDebouncedParamsChanged = this::applyDebouncedParamsChanged;
 
     // Map to hold the registered clients
     private final Map<IBinder, IConduitClientCallback> clients = new ConcurrentHashMap<>();
@@ -102,11 +138,38 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
     // PsiphonTunnel instance
     private final PsiphonTunnel psiphonTunnel = PsiphonTunnel.newPsiphonTunnel(this);
 
-    // ExecutorService for running the Psiphon in-proxy task
+    // ExecutorService for running the blocking tunnel start, restart and stop operations off the main thread
     private final ExecutorService executorService = Executors.newSingleThreadExecutor();
 
     private final Handler handler = new Handler(Looper.getMainLooper());
 
+    // Recovers the tunnel if it stalls while running, only accessed on the main thread
+    private final TunnelWatchdog tunnelWatchdog = new TunnelWatchdog(handler, this::onTunnelStalled);
+
+    // Holds the opted-in Wi-Fi and wake locks while the in-proxy has clients, only accessed on the main thread
+    private PowerLockManager powerLockManager;
+
+    // Scales the capacity limits down under battery, thermal or CPU pressure, only accessed on the main
+    // thread except for apply()
+    private CapacityController capacityController;
+
+    // Selects the parameters for the class of the default network and accounts the metered daily
+    // allowance, only accessed on the main thread except for apply()
+    private NetworkProfileManager networkProfileManager;
+
+    // Parameters for the network profile that tunnel core was last configured with, written by the
+    // tunnel thread in getPsiphonConfig()
+    private volatile ConduitServiceParameters profileParameters = null;
+
+    // Whether the in-proxy is stopped because the network profile does not allow sharing, in which case
+    // the service stays in the foreground to resume it when the network or the day changes. Only
+    // accessed on the main thread.
+    private boolean pausedByNetworkProfile = false;
+
+    // Delay before reconciling a network profile change that arrived during a lifecycle transition
+    private static final long NETWORK_PROFILE_RETRY_MILLIS = 5 * 1000;
+    private final Runnable reconcileNetworkProfile = this::reconcileNetworkProfile;
+
     // AIDL binder implementation
     private final IConduitService.Stub binder = new IConduitService.Stub() {
         @Override
@@ -124,14 +187,14 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
                     try {
                         client.onProxyStateUpdated(proxyState.toBundle());
                     } catch (RemoteException e) {
-                        MyLog.e(TAG, "Failed to send proxy state update to client: " + e);
+                        MyLog.e(TAG, "Failed to send proxy state update to client: %s", e);
                     }
 
                     // Send stats
                     try {
                         client.onProxyActivityStatsUpdated(proxyActivityStats.toBundle());
                     } catch (RemoteException e) {
-                        MyLog.e(TAG, "Failed to send proxy activity stats update to client: " + e);
+                        MyLog.e(TAG, "Failed to send proxy activity stats update to client: %s", e);
                     }
                 }
             }
@@ -151,9 +214,6 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
     // Proxy activity stats object
     private ProxyActivityStats proxyActivityStats = new ProxyActivityStats();
 
-    // CountDownLatch to signal the in-proxy task to stop
-    private CountDownLatch stopLatch;
-
     // Track current proxy state, note that a client may bind to the service at any time
     // and request the current proxy state so it is important to keep this up to date
     private ProxyState proxyState = ProxyState.stopped();
@@ -170,85 +230,31 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
 
         if (conduitServiceParameters == null) {
             // Log the error and crash the app
-            MyLog.e(TAG, "Failed to load conduit parameters from shared preferences");
-            throw new IllegalStateException("Failed to load conduit parameters from shared preferences");
+            MyLog.e(TAG, "Failed to load conduit parameters");
+            throw new IllegalStateException("Failed to load conduit parameters");
         }
 
-        // Read the psiphon config from raw res file named psiphon_config
-        String psiphonConfigString;
+        // Use the parameters of the current network profile, then scale the capacity limits to the
+        // current battery, thermal and CPU conditions
+        conduitServiceParameters = networkProfileManager.apply(conduitServiceParameters);
+        profileParameters = conduitServiceParameters;
+        conduitServiceParameters = capacityController.apply(conduitServiceParameters);
+
+        // Assemble the psiphon config or reuse the one assembled for the same parameters
+        long startMillis = SystemClock.elapsedRealtime();
         try {
-            psiphonConfigString = Utils.readRawResourceFileAsString(this, R.raw.psiphon_config);
-        } catch (IOException | Resources.NotFoundException e) {
+            PsiphonConfigCache.Result result = PsiphonConfigCache.getConfig(this, conduitServiceParameters);
+            MyLog.i(TAG, "Psiphon config ready", MyLog.fields()
+                    .put("latencyMillis", SystemClock.elapsedRealtime() - startMillis)
+                    .put("source", result.source()));
+            return result.config();
+        } catch (IOException e) {
             // Log the error and crash the app
-            MyLog.e(TAG, "Failed to read psiphon config file" + e);
+            MyLog.e(TAG, "Failed to read psiphon config file: %s", e);
             throw new RuntimeException(e);
-        }
-        // Convert to json object
-        try {
-            JSONObject psiphonConfig = new JSONObject(psiphonConfigString);
-
-            // Enable inproxy mode
-            psiphonConfig.put("InproxyEnableProxy", true);
-
-            // Disable tunnels
-            psiphonConfig.put("DisableTunnels", true);
-
-            // Disable local proxies
-            psiphonConfig.put("DisableLocalHTTPProxy", true);
-            psiphonConfig.put("DisableLocalSocksProxy", true);
-
-            // Disable bytes transferred notices
-            psiphonConfig.put("EmitBytesTransferred", false);
-
-            // Enable inproxy activity notices
-            psiphonConfig.put("EmitInproxyProxyActivity", true);
-
-            // Psiphon client version
-            PackageInfo packageInfo = getPackageManager().getPackageInfo(getPackageName(), 0);
-            psiphonConfig.put("ClientVersion", String.valueOf(packageInfo.versionCode));
-
-            // Set up data root directory
-            File dataRootDirectory = ConduitModule.dataRootDirectory(this);
-            psiphonConfig.put("DataRootDirectory", dataRootDirectory.getAbsolutePath());
-
-            // Set up notice files
-            psiphonConfig.put("UseNoticeFiles", new JSONObject()
-                    .put("RotatingFileSize", Constants.HALF_MB)
-                    .put("RotatingSyncFrequency", 0));
-
-            // Set inproxy parameters that we stored in shared preferences earlier
-            // We trust that the parameters are valid as they were validated when they were loaded in the beginning of this method
-            psiphonConfig.put("InproxyProxySessionPrivateKey", conduitServiceParameters.privateKey());
-
-            psiphonConfig.put("InproxyMaxClients", conduitServiceParameters.maxClients());
-
-            psiphonConfig.put("InproxyLimitUpstreamBytesPerSecond", conduitServiceParameters.limitUpstreamBytes());
-
-            psiphonConfig.put("InproxyLimitDownstreamBytesPerSecond", conduitServiceParameters.limitDownstreamBytes());
-
-            if (conduitServiceParameters.reducedStartTime() != null &&
-                    conduitServiceParameters.reducedEndTime() != null &&
-                    conduitServiceParameters.reducedMaxClients() != null &&
-                    conduitServiceParameters.reducedLimitUpstreamBytes() != null &&
-                    conduitServiceParameters.reducedLimitDownstreamBytes() != null) {
-                psiphonConfig.put("InproxyReducedStartTime", conduitServiceParameters.reducedStartTime());
-                psiphonConfig.put("InproxyReducedEndTime", conduitServiceParameters.reducedEndTime());
-                psiphonConfig.put("InproxyReducedMaxClients", conduitServiceParameters.reducedMaxClients());
-                psiphonConfig.put(
-                        "InproxyReducedLimitUpstreamBytesPerSecond",
-                        conduitServiceParameters.reducedLimitUpstreamBytes()
-                );
-                psiphonConfig.put(
-                        "InproxyReducedLimitDownstreamBytesPerSecond",
-                        conduitServiceParameters.reducedLimitDownstreamBytes()
-                );
-            }
-
-            // Convert back to json string
-            return psiphonConfig.toString();
-        } catch (JSONException | PackageManager.NameNotFoundException e) {
+        } catch (JSONException e) {
             // Log the error and crash the app
-            MyLog.e(TAG, "Failed to parse psiphon config: " + e);
+            MyLog.e(TAG, "Failed to parse psiphon config: %s", e);
             throw new IllegalStateException(e);
         }
     }
@@ -258,6 +264,11 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
     public void onInproxyProxyActivity(int announcing, int connectingClients, int connectedClients, long bytesUp, long bytesDown, Map<String, PsiphonTunnel.RegionActivitySnapshot> connectingRegionActivitySnapshots, Map<String, PsiphonTunnel.RegionActivitySnapshot> connectedRegionActivitySnapshots) {
         handler.post(() -> {
             proxyActivityStats.add(bytesUp, bytesDown, announcing, connectingClients, connectedClients);
+            tunnelWatchdog.onProxyActivity(announcing, connectingClients, connectedClients, bytesUp, bytesDown);
+            powerLockManager.onProxyActivity(connectingClients, connectedClients, bytesUp, bytesDown);
+            networkProfileManager.recordBytes(bytesUp + bytesDown, profileParameters);
+            proxyActivityStats.setCapacity(capacityController.level().name(), capacityController.reason(),
+                    capacityController.adjustments());
             updateProxyActivityStats();
         });
     }
@@ -270,8 +281,9 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
                     R.id.notification_id_inproxy_must_upgrade
             );
 
-            // Also, stop the service
-            stopForegroundService();
+            // Also, stop the in-proxy but keep the service running flag so that the service is restarted
+            // after the app is upgraded
+            dispatchCommand(new LifecycleCommand(LIFECYCLE_ACTION_STOP_IN_PROXY, null, SystemClock.elapsedRealtime()));
         });
     }
 
@@ -282,6 +294,7 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
             proxyState = proxyState.toBuilder()
                     .setNetworkState(ProxyState.NetworkState.NO_INTERNET)
                     .build();
+            tunnelWatchdog.onNetworkStateChanged(false);
             updateProxyState();
         });
     }
@@ -293,15 +306,16 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
             proxyState = proxyState.toBuilder()
                     .setNetworkState(ProxyState.NetworkState.HAS_INTERNET)
                     .build();
+            tunnelWatchdog.onNetworkStateChanged(true);
             updateProxyState();
         });
     }
 
     @Override
     public void onApplicationParameters(@NonNull Object o) {
-        MyLog.i(TAG, "Received application parameters: " + o);
+        MyLog.i(TAG, "Received application parameters: %s", o);
         if (!(o instanceof JSONObject params)) {
-            MyLog.e(TAG, "Invalid parameter type. Expected JSONObject, got: " + o.getClass().getName());
+            MyLog.e(TAG, "Invalid parameter type. Expected JSONObject, got: %s", o.getClass().getName());
             return;
         }
 
@@ -341,7 +355,7 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
             // Save the trusted signatures to file
             PackageHelper.saveTrustedSignaturesToFile(getApplicationContext(), trustedSignatures);
         } catch (JSONException e) {
-            MyLog.e(TAG, "Failed to parse trusted apps signatures: " + e);
+            MyLog.e(TAG, "Failed to parse trusted apps signatures: %s", e);
         }
     }
 
@@ -349,156 +363,311 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
     public void onCreate() {
         super.onCreate();
         MyLog.init(getApplicationContext());
+        IoAccounting.reportHourlyToLog();
+        ServiceLiveness.markAlive(getApplicationContext());
+        powerLockManager = new PowerLockManager(this, handler);
+        capacityController = new CapacityController(this, handler, this::onCapacityLevelChanged);
+        networkProfileManager = new NetworkProfileManager(this, handler, this::onNetworkProfileChanged);
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent == null || intent.getAction() == null) {
-            stopSelf();
+            stopSelfIfIdle();
             return START_NOT_STICKY;
         }
 
         String action = intent.getAction();
-        synchronized (this) {
-            return switch (action) {
-                case INTENT_ACTION_STOP_SERVICE -> handleStopAction();
-                case INTENT_ACTION_TOGGLE_IN_PROXY -> handleToggleAction(intent);
-                case INTENT_ACTION_PARAMS_CHANGED -> handleParamsChangedAction(intent);
-                case INTENT_ACTION_START_IN_PROXY_WITH_LAST_PARAMS -> handleStartInProxyWithLastParamsAction();
-                default -> {
-                    MyLog.w(TAG, "Unknown action received: " + action);
-                    stopSelf();
-                    yield START_NOT_STICKY;
+        ConduitServiceParameters conduitServiceParameters = null;
+        String setting = null;
+        switch (action) {
+            case INTENT_ACTION_TOGGLE_IN_PROXY, INTENT_ACTION_PARAMS_CHANGED -> {
+                // Parse the parameters from the intent
+                conduitServiceParameters = ConduitServiceParameters.parse(intent);
+                // If the parameters are invalid, crash the app
+                if (conduitServiceParameters == null) {
+                    MyLog.e(TAG, "Received %s with invalid parameters, crashing the app.", action);
+                    throw new IllegalStateException("Invalid parameters received");
                 }
-            };
+            }
+            case INTENT_ACTION_SET_IO_MODE -> {
+                setting = intent.getStringExtra(ConduitServiceParameters.IO_MODE_KEY);
+                if (setting != null && !IoPolicy.isValidMode(setting)) {
+                    MyLog.w(TAG, "Received %s with unknown I/O mode %s, ignoring.", action, setting);
+                    stopSelfIfIdle();
+                    return START_NOT_STICKY;
+                }
+            }
+            case INTENT_ACTION_SET_POWER_LOCK_MODE -> {
+                setting = intent.getStringExtra(ConduitServiceParameters.POWER_LOCK_MODE_KEY);
+                if (setting != null && !PowerLockPolicy.isValidMode(setting)) {
+                    MyLog.w(TAG, "Received %s with unknown power lock mode %s, ignoring.", action, setting);
+                    stopSelfIfIdle();
+                    return START_NOT_STICKY;
+                }
+            }
+            case INTENT_ACTION_STOP_SERVICE, INTENT_ACTION_START_IN_PROXY_WITH_LAST_PARAMS -> {
+                // No parameters expected
+            }
+            default -> {
+                MyLog.w(TAG, "Unknown action received: %s", action);
+                stopSelfIfIdle();
+                return START_NOT_STICKY;
+            }
+        }
+
+        LifecycleCommand command = new LifecycleCommand(action, conduitServiceParameters, setting,
+                SystemClock.elapsedRealtime());
+
+        // Parameters changes arrive in bursts while the user drags a slider, coalesce them and only
+        // apply the latest parameters once the burst is over
+        if (INTENT_ACTION_PARAMS_CHANGED.equals(action)) {
+            debounceParamsChanged(command);
+            return START_NOT_STICKY;
+        }
+
+        // Apply any pending parameters change first so that commands are handled in the order received
+        flushDebouncedParamsChanged();
+        return dispatchCommand(command);
+    }
+
+    private void debounceParamsChanged(LifecycleCommand command) {
+        debouncedParamsChangedCommand = command;
+        debouncedParamsChangedCount++;
+        handler.removeCallbacks(applyDebouncedParamsChanged);
+        handler.postDelayed(applyDebouncedParamsChanged, PARAMS_CHANGED_DEBOUNCE_MILLIS);
+    }
+
+    private void flushDebouncedParamsChanged() {
+        if (debouncedParamsChangedCommand != null) {
+            handler.removeCallbacks(applyDebouncedParamsChanged);
+            applyDebouncedParamsChanged();
+        }
+    }
+
+    private void applyDebouncedParamsChanged() {
+        LifecycleCommand command = debouncedParamsChangedCommand;
+        int coalescedCount = debouncedParamsChangedCount;
+        debouncedParamsChangedCommand = null;
+        debouncedParamsChangedCount = 0;
+        if (command == null) {
+            return;
+        }
+        if (coalescedCount > 1) {
+            MyLog.i(TAG, "Coalesced %d parameters changes; avoided up to %d tunnel restarts.",
+                    coalescedCount, coalescedCount - 1);
+        }
+        dispatchCommand(command);
+    }
+
+    // Handles the command right away if the lifecycle is settled, or queues it until the current
+    // transition completes. Must be called on the main thread.
+    private int dispatchCommand(LifecycleCommand command) {
+        if (isTransitioning()) {
+            MyLog.i(TAG, "Lifecycle is %s; queueing %s", lifecycleState, command.action());
+            pendingCommands.add(command);
+            return START_NOT_STICKY;
         }
+        int result = handleCommand(command);
+        stopSelfIfIdle();
+        return result;
+    }
+
+    private int handleCommand(LifecycleCommand command) {
+        return switch (command.action()) {
+            case INTENT_ACTION_STOP_SERVICE -> handleStopAction();
+            case INTENT_ACTION_TOGGLE_IN_PROXY -> handleToggleAction(command);
+            case INTENT_ACTION_PARAMS_CHANGED -> handleParamsChangedAction(command.parameters()
+                    .withDeviceSettingsFrom(ConduitServiceParameters.load(getApplicationContext())));
+            case INTENT_ACTION_SET_IO_MODE -> handleSetIoModeAction(command.setting());
+            case INTENT_ACTION_SET_POWER_LOCK_MODE -> handleSetPowerLockModeAction(command.setting());
+            case INTENT_ACTION_START_IN_PROXY_WITH_LAST_PARAMS -> handleStartInProxyWithLastParamsAction();
+            case LIFECYCLE_ACTION_STOP_IN_PROXY -> handleStopInProxyAction();
+            default -> throw new IllegalArgumentException("Unknown lifecycle command: " + command.action());
+        };
+    }
+
+    // Replays the queued commands in order until one of them starts a new transition
+    private void drainPendingCommands() {
+        while (!isTransitioning() && !pendingCommands.isEmpty()) {
+            LifecycleCommand command = pendingCommands.poll();
+            MyLog.i(TAG, "Replaying queued %s received %d ms ago", command.action(),
+                    SystemClock.elapsedRealtime() - command.receivedAtMillis());
+            handleCommand(command);
+        }
+        stopSelfIfIdle();
     }
 
     private int handleStopAction() {
         MyLog.i(TAG, "Received stop action from notification.");
-        ForegroundServiceState state = foregroundServiceState.get();
-        if (state == ForegroundServiceState.STOPPING) {
-            MyLog.i(TAG, "Stop action ignored; service already stopping.");
-        } else if (state == ForegroundServiceState.RUNNING || state == ForegroundServiceState.STARTING) {
+        if (lifecycleState == LifecycleState.RUNNING) {
+            Utils.setServiceRunningFlag(this, false);
+            tunnelWatchdog.resetRecoveries();
+            beginStop();
+        } else if (pausedByNetworkProfile) {
+            MyLog.i(TAG, "In-proxy is paused by the network profile; stopping.");
             Utils.setServiceRunningFlag(this, false);
-            stopForegroundService();
+            clearNetworkProfilePause();
         } else {
-            MyLog.i(TAG, "Stop action ignored; service not running.");
+            MyLog.i(TAG, "Stop action ignored; in-proxy not running.");
         }
         return START_NOT_STICKY;
     }
 
-    private int handleToggleAction(Intent intent) {
-        MyLog.i(TAG, "Received toggle action");
-        ForegroundServiceState state = foregroundServiceState.get();
-        switch (state) {
-            case RUNNING -> {
-                MyLog.i(TAG, "Service is running; toggling off.");
-                Utils.setServiceRunningFlag(this, false);
-                stopForegroundService();
-                return START_NOT_STICKY;
-            }
-            case STOPPED -> {
-                MyLog.i(TAG, "Service is not running; starting with new parameters.");
+    private int handleStopInProxyAction() {
+        if (lifecycleState == LifecycleState.RUNNING) {
+            beginStop();
+        }
+        return START_NOT_STICKY;
+    }
 
-                // Parse the parameters from the intent
-                ConduitServiceParameters conduitServiceParameters = ConduitServiceParameters.parse(intent);
-                if (conduitServiceParameters == null) {
-                    MyLog.e(TAG, "Attempted to start service with invalid parameters, crashing the app.");
-                    throw new IllegalStateException("Invalid parameters received");
-                }
+    private int handleToggleAction(LifecycleCommand command) {
+        MyLog.i(TAG, "Received toggle action");
+        if (lifecycleState == LifecycleState.RUNNING) {
+            MyLog.i(TAG, "In-proxy is running; toggling off.");
+            Utils.setServiceRunningFlag(this, false);
+            tunnelWatchdog.resetRecoveries();
+            beginStop();
+            return START_NOT_STICKY;
+        }
 
-                // Store the parameters
-                conduitServiceParameters.store(getApplicationContext());
+        MyLog.i(TAG, "In-proxy is not running; starting with new parameters.");
+        // Starting again checks the new parameters against the network profile
+        pausedByNetworkProfile = false;
+        // Store the parameters, keeping the device settings which the parameters from JS do not carry
+        command.parameters()
+                .withDeviceSettingsFrom(ConduitServiceParameters.load(getApplicationContext()))
+                .store(getApplicationContext());
 
-                // Start the service
-                startForegroundService();
+        // Start the in-proxy and record when the toggle was received to measure toggle-to-running latency
+        toggleReceivedAtMillis = command.receivedAtMillis();
+        tunnelWatchdog.resetRecoveries();
+        beginStart();
 
-                return START_REDELIVER_INTENT;
-            }
-            case STARTING, STOPPING -> {
-                MyLog.i(TAG, "Service is in an intermediate state; toggle action ignored.");
-                return START_NOT_STICKY;
-            }
-            default -> {
-                MyLog.w(TAG, "Unexpected service state: " + state);
-                return START_NOT_STICKY;
-            }
-        }
+        return START_REDELIVER_INTENT;
     }
 
-    private int handleParamsChangedAction(Intent intent) {
-        ForegroundServiceState state = foregroundServiceState.get();
-
-        // Parse the parameters from the intent
-        ConduitServiceParameters conduitServiceParameters = ConduitServiceParameters.parse(intent);
-
-        // If the parameters are invalid, crash the app
-        if (conduitServiceParameters == null) {
-            MyLog.e(TAG, "Attempted to update parameters with invalid parameters, crashing the app.");
-            throw new IllegalStateException("Invalid parameters received");
-        }
+    private int handleParamsChangedAction(ConduitServiceParameters conduitServiceParameters) {
+        // Classify the change against the stored parameters before persisting the new ones
+        ConduitServiceParametersChange change = ConduitServiceParametersChange.between(
+                ConduitServiceParameters.load(getApplicationContext()), conduitServiceParameters);
 
         // Update and persist parameters, storing whether changes occurred
         boolean paramsUpdated = conduitServiceParameters.store(getApplicationContext());
-        MyLog.i(TAG, paramsUpdated ? "Parameters updated; changes persisted." : "Parameters update called, but no changes detected.");
-
-        // If the service is in the STOPPED state, stop it to prevent it from running unnecessarily
-        if (state == ForegroundServiceState.STOPPED) {
-            stopSelf();
-        } else if (paramsUpdated && state == ForegroundServiceState.RUNNING) {
-            // Restart if parameters were updated and the service is running
-            MyLog.i(TAG, "Service is running; restarting psiphonTunnel due to parameter changes.");
-            try {
-                // Reset proxy activity stats before restart
-                proxyActivityStats = new ProxyActivityStats();
-                psiphonTunnel.restartPsiphon();
+        if (paramsUpdated) {
+            MyLog.i(TAG, "Parameters updated; changes persisted: %s", change.changedFields());
+        } else {
+            MyLog.i(TAG, "Parameters update called, but no changes detected.");
+        }
 
-                // Update clients with reset proxy activity stats
-                updateProxyActivityStats();
+        // The power lock policy applies to the running in-proxy without a restart, and is a no-op otherwise
+        if (change.changedFields().contains(ConduitServiceParametersChange.Field.POWER_LOCK_MODE)) {
+            powerLockManager.updatePolicy(PowerLockPolicy.forParameters(conduitServiceParameters));
+        }
 
-            } catch (PsiphonTunnel.Exception e) {
-                MyLog.e(TAG, "Failed to restart psiphon: " + e);
-
-                // Stop foreground service if restart failed
-                stopForegroundService();
-
-                // Prepare and deliver failure notification
-                Bundle extras = new Bundle();
-                extras.putString("errorMessage", e.getMessage());
-                deliverIntent(getPendingIntent(getContext(), INTENT_ACTION_PSIPHON_RESTART_FAILED, extras),
-                        R.string.notification_conduit_failed_to_restart_text,
-                        R.id.notification_id_error_psiphon_restart_failed
-                );
+        // Apply the change to the running in-proxy using the cheapest path it allows
+        if (lifecycleState == LifecycleState.RUNNING) {
+            switch (change.effect()) {
+                case NONE -> {
+                    MyLog.i(TAG, "In-proxy is running; no tunnel restart required.");
+                    // A metered profile change only matters if it changes the parameters in effect
+                    if (change.changedFields().contains(ConduitServiceParametersChange.Field.METERED_PROFILE)) {
+                        reconcileNetworkProfile();
+                    }
+                }
+                case RELOAD_CONFIG -> {
+                    MyLog.i(TAG, "In-proxy is running; reloading tunnel config, activity stats carry over.");
+                    beginRestart(change);
+                }
+                case RESET_IDENTITY -> {
+                    MyLog.i(TAG, "In-proxy is running; proxy identity changed, restarting with fresh activity stats.");
+                    // Restart first so that the clients dropped by the restart are counted from the old
+                    // stats, then reset them since they belong to the old identity. The dropped clients
+                    // count covers the whole run and carries over.
+                    beginRestart(change);
+                    int droppedClients = proxyActivityStats.getReconfigurationDroppedClients();
+                    proxyActivityStats = new ProxyActivityStats();
+                    proxyActivityStats.addReconfigurationDroppedClients(droppedClients);
+                    // Update clients with reset proxy activity stats
+                    updateProxyActivityStats();
+                }
             }
+        } else if (pausedByNetworkProfile) {
+            // The new parameters may allow sharing on the current network again
+            reconcileNetworkProfile();
         }
 
         return START_NOT_STICKY;
     }
 
+    // Stores the I/O mode with the parameters, which reloads the tunnel config if the in-proxy is running
+    // so that tunnel core picks up the notice sync frequency of the new mode. The app process applies
+    // the mode to the app logs when it sees the stored parameters change, see LoggingContentProvider.
+    private int handleSetIoModeAction(String ioMode) {
+        ConduitServiceParameters stored = ConduitServiceParameters.load(getApplicationContext());
+        if (stored == null) {
+            MyLog.w(TAG, "No parameters stored yet; ignoring I/O mode %s.", ioMode);
+            return START_NOT_STICKY;
+        }
+        MyLog.i(TAG, "Setting I/O mode to %s.", ioMode != null ? ioMode : "the device default");
+        return handleParamsChangedAction(stored.withIoMode(ioMode));
+    }
+
+    // Stores the power lock mode with the parameters, which applies it to the running in-proxy
+    private int handleSetPowerLockModeAction(String powerLockMode) {
+        ConduitServiceParameters stored = ConduitServiceParameters.load(getApplicationContext());
+        if (stored == null) {
+            MyLog.w(TAG, "No parameters stored yet; ignoring power lock mode %s.", powerLockMode);
+            return START_NOT_STICKY;
+        }
+        MyLog.i(TAG, "Setting power lock mode to %s.", powerLockMode != null ? powerLockMode : "the default");
+        return handleParamsChangedAction(stored.withPowerLockMode(powerLockMode));
+    }
+
     private int handleStartInProxyWithLastParamsAction() {
-        ForegroundServiceState state = foregroundServiceState.get();
-        if (state == ForegroundServiceState.STOPPED) {
-            MyLog.i(TAG, "Service is stopped; starting with last known parameters.");
+        if (lifecycleState == LifecycleState.STOPPED) {
+            MyLog.i(TAG, "In-proxy is stopped; starting with last known parameters.");
             // Validate the last known parameters before starting the service
             ConduitServiceParameters conduitServiceParameters = ConduitServiceParameters.load(getApplicationContext());
             if (conduitServiceParameters == null) {
-                MyLog.e(TAG, "Failed to load conduit parameters from shared preferences; will not start service.");
+                MyLog.e(TAG, "Failed to load conduit parameters; will not start service.");
                 return START_NOT_STICKY;
             }
-            startForegroundService();
+            beginStart();
             return START_REDELIVER_INTENT;
         } else {
-            MyLog.i(TAG, "Service is not stopped; ignoring start with last parameters action.");
+            MyLog.i(TAG, "In-proxy is not stopped; ignoring start with last parameters action.");
             return START_NOT_STICKY;
         }
     }
 
-    private synchronized void startForegroundService() {
-        if (!foregroundServiceState.compareAndSet(ForegroundServiceState.STOPPED, ForegroundServiceState.STARTING)) {
-            MyLog.i(TAG, "Service is not stopped; cannot start.");
-            return;
+    private boolean isTransitioning() {
+        return lifecycleState == LifecycleState.STARTING ||
+                lifecycleState == LifecycleState.RESTARTING ||
+                lifecycleState == LifecycleState.STOPPING;
+    }
+
+    private void transitionTo(LifecycleState newState) {
+        long now = SystemClock.elapsedRealtime();
+        MyLog.i(TAG, "Lifecycle transition", MyLog.fields()
+                .put("from", lifecycleState)
+                .put("to", newState)
+                .put("millisInState", now - lifecycleStateEnteredAtMillis));
+        lifecycleState = newState;
+        lifecycleStateEnteredAtMillis = now;
+    }
+
+    // Stops the service if the in-proxy is stopped and there is no more work queued
+    private void stopSelfIfIdle() {
+        if (lifecycleState == LifecycleState.STOPPED && pendingCommands.isEmpty() &&
+                debouncedParamsChangedCommand == null && !pausedByNetworkProfile) {
+            stopForeground(true);
+            stopSelf();
         }
+    }
+
+    private void beginStart() {
+        transitionTo(LifecycleState.STARTING);
 
         MyLog.i(TAG, "Starting in-proxy.");
 
@@ -561,85 +730,260 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
                     0 /* ServiceInfo.FOREGROUND_SERVICE_TYPE_NONE */);
         }
 
-        // Start the in-proxy task
-        //
-        // Initialize the CountDownLatch for stopping the thread
-        stopLatch = new CountDownLatch(1);
+        // Apply the current power lock policy for this run
+        powerLockManager.start(PowerLockPolicy.forParameters(
+                ConduitServiceParameters.load(getApplicationContext())));
 
-        // Start the proxy task using ExecutorService
-        executorService.submit(() -> {
-            // reset the proxy activity stats
-            proxyActivityStats = new ProxyActivityStats();
-            try {
-                MyLog.i(TAG, "In-proxy task started.");
-                proxyState = proxyState.toBuilder()
-                        .setStatus(ProxyState.Status.RUNNING)
-                        .build();
-                updateProxyState();
+        // Pick the initial capacity level and network profile before the tunnel reads its config
+        capacityController.start();
+        networkProfileManager.start();
 
+        // Reset the proxy activity stats and report the proxy as running to the clients
+        proxyActivityStats = new ProxyActivityStats();
+        proxyState = proxyState.toBuilder()
+                .setStatus(ProxyState.Status.RUNNING)
+                .build();
+        updateProxyState();
+
+        // Start the tunnel off the main thread, the result is posted back to the main thread
+        executorService.execute(() -> {
+            try {
                 psiphonTunnel.startTunneling(Utils.getEmbeddedServers(this));
+                handler.post(this::onTunnelStarted);
+            } catch (PsiphonTunnel.Exception e) {
+                handler.post(() -> onTunnelStartFailed(e));
+            }
+        });
+    }
+
+    private void onTunnelStarted() {
+        MyLog.i(TAG, "In-proxy task started.");
+        transitionTo(LifecycleState.RUNNING);
+        tunnelWatchdog.start();
+        if (toggleReceivedAtMillis >= 0) {
+            MyLog.i(TAG, "Toggle-to-running", MyLog.fields()
+                    .put("latencyMillis", SystemClock.elapsedRealtime() - toggleReceivedAtMillis));
+            toggleReceivedAtMillis = -1;
+        }
+        // The in-proxy may have been started on a network where its parameters do not allow sharing
+        reconcileNetworkProfile();
+        drainPendingCommands();
+    }
+
+    private void onTunnelStartFailed(PsiphonTunnel.Exception e) {
+        MyLog.e(TAG, "Failed to start in-proxy: %s", e);
+        toggleReceivedAtMillis = -1;
 
-                // Wait until signaled to stop
-                stopLatch.await();
-                MyLog.i(TAG, "In-proxy task stopping.");
+        final Bundle extras = new Bundle();
+        extras.putString("errorMessage", e.getMessage());
+
+        deliverIntent(getPendingIntent(getContext(), INTENT_ACTION_PSIPHON_START_FAILED, extras),
+                R.string.notification_conduit_failed_to_start_text,
+                R.id.notification_id_error_psiphon_start_failed
+        );
+
+        // Release whatever the failed start left behind
+        beginStop();
+    }
+
+    private void beginRestart(ConduitServiceParametersChange change) {
+        transitionTo(LifecycleState.RESTARTING);
+
+        // A tunnel core restart drops every client connection, record what this reconfiguration costs
+        // in the stats reported to the clients
+        int droppedConnectedClients = proxyActivityStats.getCurrentConnectedClients();
+        int droppedConnectingClients = proxyActivityStats.getCurrentConnectingClients();
+        proxyActivityStats.addReconfigurationDroppedClients(droppedConnectedClients);
+        updateProxyActivityStats();
+        MyLog.i(TAG, "Reconfiguration drops connected clients", MyLog.fields()
+                .put("changedFields", change.changedFields())
+                .put("droppedConnectedClients", droppedConnectedClients)
+                .put("droppedConnectingClients", droppedConnectingClients)
+                .put("reconfigurationDroppedClients", proxyActivityStats.getReconfigurationDroppedClients()));
+
+        restartTunnel();
+    }
+
+    // Restarts the tunnel off the main thread, the result is posted back to the main thread
+    private void restartTunnel() {
+        tunnelWatchdog.stop();
+        executorService.execute(() -> {
+            try {
+                psiphonTunnel.restartPsiphon();
+                handler.post(this::onTunnelRestarted);
             } catch (PsiphonTunnel.Exception e) {
-                MyLog.e(TAG, "Failed to start in-proxy: " + e);
-                String errorMessage = e.getMessage();
-
-                final Bundle extras = new Bundle();
-                extras.putString("errorMessage", errorMessage);
-
-                deliverIntent(getPendingIntent(getContext(), INTENT_ACTION_PSIPHON_START_FAILED, extras),
-                        R.string.notification_conduit_failed_to_start_text,
-                        R.id.notification_id_error_psiphon_start_failed
-                );
-
-            } catch (InterruptedException e) {
-                MyLog.e(TAG, "In-proxy task interrupted: " + e);
-                Thread.currentThread().interrupt();
-            } finally {
-                psiphonTunnel.stop();
-                MyLog.i(TAG, "In-proxy task stopped.");
-
-                // Cleanup and stop the service
-                stopForeground(true);
-                stopSelf();
-
-                // Set the proxy and service state to STOPPED
-                // This is not strictly necessary as the service is stopping, but it is good practice
-                proxyState = proxyState.toBuilder()
-                        .setStatus(ProxyState.Status.STOPPED)
-                        .build();
-                foregroundServiceState.set(ForegroundServiceState.STOPPED);
+                handler.post(() -> onTunnelRestartFailed(e));
             }
         });
+    }
 
-        // Update the service state to RUNNING after starting the task
-        foregroundServiceState.set(ForegroundServiceState.RUNNING);
+    private void onTunnelRestarted() {
+        transitionTo(LifecycleState.RUNNING);
+        tunnelWatchdog.start();
+        // The restart may have been for new parameters that do not allow sharing on this network
+        reconcileNetworkProfile();
+        drainPendingCommands();
     }
 
-    private synchronized void stopForegroundService() {
-        if (!foregroundServiceState.compareAndSet(ForegroundServiceState.RUNNING, ForegroundServiceState.STOPPING)) {
-            MyLog.i(TAG, "Service is not running; cannot stop.");
+    // Called by the capacity controller when the capacity level changes, restarts tunnel core so that it
+    // reads the scaled limits from the config
+    private boolean onCapacityLevelChanged(CapacityController.Level level, String reason) {
+        if (lifecycleState != LifecycleState.RUNNING) {
+            return false;
+        }
+        MyLog.i(TAG, "Capacity level %s (%s); restarting tunnel core with scaled limits.", level, reason);
+        transitionTo(LifecycleState.RESTARTING);
+        restartTunnel();
+        return true;
+    }
+
+    // Called by the network profile manager when the profile in effect changes, when the metered daily
+    // allowance runs out, and when a new day resets it
+    private void onNetworkProfileChanged(NetworkProfileManager.Profile profile, String reason) {
+        MyLog.i(TAG, "Network profile %s (%s).", profile, reason);
+        reconcileNetworkProfile();
+    }
+
+    // Pauses, resumes or restarts the in-proxy so that it runs with the parameters of the current
+    // network profile, or not at all if the profile does not allow sharing
+    private void reconcileNetworkProfile() {
+        handler.removeCallbacks(reconcileNetworkProfile);
+        if (isTransitioning()) {
+            handler.postDelayed(reconcileNetworkProfile, NETWORK_PROFILE_RETRY_MILLIS);
+            return;
+        }
+        ConduitServiceParameters conduitServiceParameters = ConduitServiceParameters.load(getApplicationContext());
+        if (conduitServiceParameters == null) {
             return;
         }
+        boolean sharingAllowed = networkProfileManager.sharingAllowed(conduitServiceParameters);
+
+        if (lifecycleState == LifecycleState.RUNNING) {
+            if (!sharingAllowed) {
+                MyLog.i(TAG, "Sharing is not allowed on the %s network; pausing the in-proxy.",
+                        networkProfileManager.profile());
+                // The service running flag is kept so that the in-proxy comes back with the service
+                pausedByNetworkProfile = true;
+                beginStop();
+            } else if (profileParameters != null) {
+                // Only restart if what tunnel core uses differs, not for an edit of a profile that is not
+                // in effect on this network
+                ConduitServiceParametersChange change = ConduitServiceParametersChange.between(profileParameters,
+                        networkProfileManager.apply(conduitServiceParameters));
+                if (change.effect() != ConduitServiceParametersChange.Effect.NONE) {
+                    MyLog.i(TAG, "Restarting tunnel core with the %s network parameters.",
+                            networkProfileManager.profile());
+                    beginRestart(change);
+                }
+            }
+        } else if (lifecycleState == LifecycleState.STOPPED && pausedByNetworkProfile && sharingAllowed) {
+            MyLog.i(TAG, "Sharing is allowed on the %s network; resuming the in-proxy.",
+                    networkProfileManager.profile());
+            pausedByNetworkProfile = false;
+            dispatchCommand(new LifecycleCommand(INTENT_ACTION_START_IN_PROXY_WITH_LAST_PARAMS, null,
+                    SystemClock.elapsedRealtime()));
+        }
+    }
 
-        MyLog.i(TAG, "Stopping the foreground service.");
+    // Ends a pause by the network profile without resuming, the service stops if it has nothing else to do
+    private void clearNetworkProfilePause() {
+        pausedByNetworkProfile = false;
+        handler.removeCallbacks(reconcileNetworkProfile);
+        networkProfileManager.stop();
+        stopSelfIfIdle();
+    }
 
-        // Signal the task to stop
-        if (stopLatch != null) {
-            stopLatch.countDown();
+    // Called by the watchdog when the running tunnel makes no progress
+    private void onTunnelStalled(TunnelWatchdog.Recovery recovery, String reason) {
+        if (lifecycleState != LifecycleState.RUNNING) {
+            return;
+        }
+        MyLog.w(TAG, "Tunnel stalled, recovering", MyLog.fields()
+                .put("recovery", recovery)
+                .put("reason", reason)
+                .put("millisRunning", SystemClock.elapsedRealtime() - lifecycleStateEnteredAtMillis));
+        switch (recovery) {
+            case SOFT_RESTART -> {
+                transitionTo(LifecycleState.RESTARTING);
+                restartTunnel();
+            }
+            case FULL_RESTART -> {
+                // Stop, then start again with the stored parameters once stopped. The service running
+                // flag is kept, so the service comes back with the in-proxy if it dies in between.
+                beginStop();
+                pendingCommands.add(new LifecycleCommand(INTENT_ACTION_START_IN_PROXY_WITH_LAST_PARAMS, null,
+                        SystemClock.elapsedRealtime()));
+            }
         }
     }
 
+    private void onTunnelRestartFailed(PsiphonTunnel.Exception e) {
+        MyLog.e(TAG, "Failed to restart psiphon: %s", e);
+
+        // Stop the in-proxy if restart failed
+        beginStop();
+
+        // Prepare and deliver failure notification
+        Bundle extras = new Bundle();
+        extras.putString("errorMessage", e.getMessage());
+        deliverIntent(getPendingIntent(getContext(), INTENT_ACTION_PSIPHON_RESTART_FAILED, extras),
+                R.string.notification_conduit_failed_to_restart_text,
+                R.id.notification_id_error_psiphon_restart_failed
+        );
+    }
+
+    private void beginStop() {
+        transitionTo(LifecycleState.STOPPING);
+        tunnelWatchdog.stop();
+        powerLockManager.stop();
+        capacityController.stop();
+        // Keep tracking the network while paused by the profile, it decides when to resume
+        if (!pausedByNetworkProfile) {
+            networkProfileManager.stop();
+        }
+
+        MyLog.i(TAG, "Stopping the in-proxy.");
+
+        // Stop the tunnel off the main thread, the result is posted back to the main thread
+        executorService.execute(() -> {
+            psiphonTunnel.stop();
+            handler.post(this::onTunnelStopped);
+        });
+    }
+
+    private void onTunnelStopped() {
+        MyLog.i(TAG, "In-proxy task stopped.");
+
+        // Notify the clients directly rather than through updateProxyState() so that the service
+        // notification which is about to be removed is not posted again
+        proxyState = proxyState.toBuilder()
+                .setStatus(ProxyState.Status.STOPPED)
+                .build();
+        notifyClients(client -> client.onProxyStateUpdated(proxyState.toBundle()));
+
+        transitionTo(LifecycleState.STOPPED);
+
+        // Keep the service notification up while paused, showing why the in-proxy is not running
+        if (pausedByNetworkProfile) {
+            updateServiceNotification();
+        }
+
+        // Replay queued commands, the service stops itself if none of them starts the in-proxy again
+        drainPendingCommands();
+    }
+
     private Notification notificationForProxyState(ProxyState proxyState, ProxyActivityStats proxyActivityStats) {
         int notificationIconId;
         CharSequence notificationTextShort;
         CharSequence notificationTextLong;
 
-        // Handle the no internet state first
+        // Handle the paused and no internet states first
         ProxyState.NetworkState networkState = proxyState.networkState();
-        if (networkState == ProxyState.NetworkState.NO_INTERNET) {
+        if (pausedByNetworkProfile) {
+            notificationIconId = R.drawable.ic_conduit_no_internet;
+            notificationTextShort = notificationTextLong =
+                    getString(R.string.conduit_service_paused_metered_notification_text);
+        } else if (networkState == ProxyState.NetworkState.NO_INTERNET) {
             notificationIconId = R.drawable.ic_conduit_no_internet;
             notificationTextShort = notificationTextLong = getString(R.string.conduit_service_no_internet_notification_text);
         } else {
@@ -766,7 +1110,16 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
     @Override
     public void onDestroy() {
         super.onDestroy();
-        executorService.shutdownNow();
+        ServiceLiveness.markDead(getApplicationContext());
+        // Make sure the tunnel is stopped if the service is destroyed while the in-proxy is not stopped
+        if (lifecycleState != LifecycleState.STOPPED) {
+            executorService.execute(psiphonTunnel::stop);
+        }
+        executorService.shutdown();
+        handler.removeCallbacksAndMessages(null);
+        powerLockManager.stop();
+        capacityController.stop();
+        networkProfileManager.stop();
         // Cancel proxy state notification
         NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         if (notificationManager != null) {
@@ -800,7 +1153,9 @@ public class ConduitService extends Service implements PsiphonTunnel.HostService
                     if (e instanceof DeadObjectException) {
                         clients.remove(clientBinder);
                     } else {
-                        MyLog.e(TAG, "Failed to notify client: " + clientBinder + ", " + e.getMessage());
+                        MyLog.e(TAG, "Failed to notify client", MyLog.fields()
+                                .put("client", clientBinder)
+                                .put("error", e.getMessage()));
                     }
                 }
             }
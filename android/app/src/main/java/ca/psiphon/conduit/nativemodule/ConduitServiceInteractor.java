@@ -19,7 +19,6 @@
 
 package ca.psiphon.conduit.nativemodule;
 
-import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -27,15 +26,19 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 import androidx.core.content.ContextCompat;
 
 import com.jakewharton.rxrelay2.BehaviorRelay;
 import com.jakewharton.rxrelay2.Relay;
 
-import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import ca.psiphon.conduit.nativemodule.logging.MyLog;
 import ca.psiphon.conduit.nativemodule.stats.ProxyActivityStats;
@@ -51,6 +54,12 @@ public class ConduitServiceInteractor {
     public static final String SERVICE_STARTING_BROADCAST_PERMISSION = "ca.psiphon.conduit.nativemodule.SERVICE_STARTING_BROADCAST_PERMISSION";
     public static final String SERVICE_STARTING_BROADCAST_INTENT = "ca.psiphon.conduit.nativemodule.SERVICE_STARTING_BROADCAST_INTENT";
     private static final String TAG = ConduitServiceInteractor.class.getSimpleName();
+    // Delays between the rebind attempts made after the service process dies, doubling from the
+    // initial to the maximum delay, for at most REBIND_MAX_ATTEMPTS attempts. A bind made by the last
+    // attempt is given one more delay to connect.
+    private static final long REBIND_INITIAL_DELAY_MILLIS = 500;
+    private static final long REBIND_MAX_DELAY_MILLIS = 30 * 1000;
+    private static final int REBIND_MAX_ATTEMPTS = 10;
     private final Relay<ProxyState> proxyStateRelay = BehaviorRelay.<ProxyState>create().toSerialized();
     private final Relay<ProxyActivityStats> proxyActivityStatsRelay = BehaviorRelay.<ProxyActivityStats>create()
             .toSerialized();
@@ -74,24 +83,55 @@ public class ConduitServiceInteractor {
         public void onServiceConnected(ComponentName name, IBinder service) {
             conduitService = IConduitService.Stub.asInterface(service);
 
+            // Registering resyncs the full state, the service sends its current state and stats to new clients
             try {
                 conduitService.registerClient(clientCallback);
             } catch (RemoteException e) {
                 MyLog.e(TAG, "Failed to register client" + e);
             }
+
+            if (serviceDiedAtMillis != 0) {
+                MyLog.i(TAG, "Service connection recovered", MyLog.fields()
+                        .put("recoveryMillis", SystemClock.elapsedRealtime() - serviceDiedAtMillis)
+                        .put("rebindAttempts", rebindAttempts));
+                cancelRebind();
+            }
         }
 
+        // Called on the main thread when the service process dies
         @Override
         public void onServiceDisconnected(ComponentName name) {
             conduitService = null;
-            proxyStateRelay.accept(ProxyState.stopped());
-            isServiceBound = false;
+            // Drop the binding, the rebind attempts make a new one once the service is back
+            if (isServiceBound) {
+                appContext.unbindService(serviceConnection);
+                isServiceBound = false;
+            }
+            if (isStopped) {
+                proxyStateRelay.accept(ProxyState.stopped());
+                return;
+            }
+            MyLog.w(TAG, "Service process died, rebinding");
+            serviceDiedAtMillis = SystemClock.elapsedRealtime();
+            rebindAttempts = 0;
+            rebindDelayMillis = REBIND_INITIAL_DELAY_MILLIS;
+            reconcileWithRunningFlag();
+            handler.postDelayed(rebindRunnable, rebindDelayMillis);
         }
     };
+    private final Context appContext;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService livenessExecutor = Executors.newSingleThreadExecutor();
+    private final Runnable rebindRunnable = this::attemptRebind;
+    // Elapsed realtime at which the service process died, 0 when no recovery is in progress
+    private long serviceDiedAtMillis = 0;
+    private int rebindAttempts = 0;
+    private long rebindDelayMillis = REBIND_INITIAL_DELAY_MILLIS;
     private boolean isStopped = true;
     private boolean isServiceBound = false;
 
     public ConduitServiceInteractor(Context context) {
+        this.appContext = context.getApplicationContext();
         IntentFilter intentFilter = new IntentFilter(SERVICE_STARTING_BROADCAST_INTENT);
         this.broadcastReceiver = new BroadcastReceiver() {
             @Override
@@ -147,6 +187,29 @@ public class ConduitServiceInteractor {
         sendStartCommandToService(context, intent);
     }
 
+    // Sets the IoPolicy mode, null restores the device default
+    public static void setIoMode(Context context, String ioMode) {
+        Intent intent = new Intent(context, ConduitService.class);
+        intent.setAction(ConduitService.INTENT_ACTION_SET_IO_MODE);
+        if (ioMode != null) {
+            intent.putExtra(ConduitServiceParameters.IO_MODE_KEY, ioMode);
+        }
+
+        // The service stores the mode with the parameters, so that all parameter writes happen in its
+        // process and in the order received
+        sendStartCommandToService(context, intent);
+    }
+
+    // Sets the PowerLockPolicy mode, null restores the default of holding no locks
+    public static void setPowerLockMode(Context context, String powerLockMode) {
+        Intent intent = new Intent(context, ConduitService.class);
+        intent.setAction(ConduitService.INTENT_ACTION_SET_POWER_LOCK_MODE);
+        if (powerLockMode != null) {
+            intent.putExtra(ConduitServiceParameters.POWER_LOCK_MODE_KEY, powerLockMode);
+        }
+        sendStartCommandToService(context, intent);
+    }
+
     // Internal method to start the ConduitService with the provided intent
     private static void sendStartCommandToService(Context context, Intent intent) {
         // Using startService instead of startForegroundService because the service might need to shut down
@@ -164,15 +227,25 @@ public class ConduitServiceInteractor {
         // Note that the service may be running even if the proxy task is in a stopped state.
         // In this situation, we’ll bind to the service to retrieve the current proxy state,
         // so it’s important to accurately track the proxy state within the service.
-        if (isServiceRunning(context)) {
-            bindService(context, new Intent(context, ConduitService.class));
-        } else {
-            proxyStateRelay.accept(ProxyState.stopped());
-        }
+        // The liveness check reads files, it is kept off the main thread since this runs on resume.
+        livenessExecutor.execute(() -> {
+            boolean isServiceRunning = isServiceRunning(context);
+            handler.post(() -> {
+                if (isStopped) {
+                    return;
+                }
+                if (isServiceRunning) {
+                    bindService(context, new Intent(context, ConduitService.class));
+                } else if (conduitService == null) {
+                    proxyStateRelay.accept(ProxyState.stopped());
+                }
+            });
+        });
     }
 
     public void onStop(Context context) {
         isStopped = true;
+        cancelRebind();
         proxyStateRelay.accept(ProxyState.unknown());
 
         if (conduitService != null) {
@@ -191,6 +264,7 @@ public class ConduitServiceInteractor {
 
     public void onDestroy(Context context) {
         context.unregisterReceiver(broadcastReceiver);
+        livenessExecutor.shutdown();
     }
 
     public Flowable<ProxyState> proxyStateFlowable() {
@@ -205,6 +279,50 @@ public class ConduitServiceInteractor {
                 .toFlowable(BackpressureStrategy.LATEST);
     }
 
+    // Publishes the state implied by the persisted running flag while the service is unreachable. If the
+    // flag is set the proxy is expected to be restarted by the system, so the state is unknown until
+    // the service is back; otherwise the proxy was stopped on purpose.
+    private void reconcileWithRunningFlag() {
+        proxyStateRelay.accept(Utils.getServiceRunningFlag(appContext) ? ProxyState.unknown() : ProxyState.stopped());
+    }
+
+    private void attemptRebind() {
+        if (isStopped || conduitService != null) {
+            cancelRebind();
+            return;
+        }
+        rebindAttempts++;
+        if (!Utils.getServiceRunningFlag(appContext)) {
+            // Nothing will restart the service, report the proxy as stopped
+            MyLog.i(TAG, "Service running flag cleared, not rebinding");
+            proxyStateRelay.accept(ProxyState.stopped());
+            cancelRebind();
+            return;
+        }
+        if (rebindAttempts <= REBIND_MAX_ATTEMPTS && isServiceRunning(appContext)) {
+            // The connection completes in onServiceConnected, which ends the recovery
+            bindService(appContext, new Intent(appContext, ConduitService.class));
+        }
+        // Give up after the last attempt if no bind is pending, otherwise only once the pending bind
+        // did not connect within one more delay
+        if (rebindAttempts > REBIND_MAX_ATTEMPTS || rebindAttempts == REBIND_MAX_ATTEMPTS && !isServiceBound) {
+            MyLog.w(TAG, "Service did not come back after " + REBIND_MAX_ATTEMPTS + " rebind attempts",
+                    MyLog.fields()
+                            .put("elapsedMillis", SystemClock.elapsedRealtime() - serviceDiedAtMillis)
+                            .put("bindPending", isServiceBound));
+            proxyStateRelay.accept(ProxyState.stopped());
+            cancelRebind();
+            return;
+        }
+        rebindDelayMillis = Math.min(rebindDelayMillis * 2, REBIND_MAX_DELAY_MILLIS);
+        handler.postDelayed(rebindRunnable, rebindDelayMillis);
+    }
+
+    private void cancelRebind() {
+        handler.removeCallbacks(rebindRunnable);
+        serviceDiedAtMillis = 0;
+    }
+
     private void bindService(Context context, Intent intent) {
         if (!isServiceBound) { // Check if the service is already bound
             isServiceBound = true; // Set the flag as soon as we call bindService
@@ -212,19 +330,8 @@ public class ConduitServiceInteractor {
         }
     }
 
-    // Method to check if the service is running
+    // Method to check if the service is running, see ServiceLiveness
     public boolean isServiceRunning(Context context) {
-        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-        if (activityManager == null) {
-            return false;
-        }
-
-        List<ActivityManager.RunningServiceInfo> services = activityManager.getRunningServices(Integer.MAX_VALUE);
-        for (ActivityManager.RunningServiceInfo serviceInfo : services) {
-            if (ConduitService.class.getName().equals(serviceInfo.service.getClassName())) {
-                return true;
-            }
-        }
-        return false;
+        return ServiceLiveness.isAlive(context);
     }
 }
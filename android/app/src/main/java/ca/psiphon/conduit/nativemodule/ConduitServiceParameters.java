@@ -25,6 +25,11 @@ import android.content.SharedPreferences;
 
 import com.facebook.react.bridge.ReadableMap;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.regex.Pattern;
+
 import ca.psiphon.conduit.nativemodule.logging.MyLog;
 
 public record ConduitServiceParameters(
@@ -36,10 +41,16 @@ public record ConduitServiceParameters(
         String reducedEndTime,
         Integer reducedMaxClients,
         Integer reducedLimitUpstreamBytes,
-        Integer reducedLimitDownstreamBytes) {
+        Integer reducedLimitDownstreamBytes,
+        Integer meteredMaxClients,
+        Integer meteredLimitUpstreamBytes,
+        Integer meteredLimitDownstreamBytes,
+        Long meteredDailyBytes,
+        String ioMode,
+        String powerLockMode) {
     public static String TAG = ConduitServiceParameters.class.getSimpleName();
 
-    // Keys and preferences file name
+    // Keys and the name of the preferences file used by earlier versions
     public static final String PREFS_NAME = "ConduitServiceParamsPrefs";
     public static final String MAX_CLIENTS_KEY = "maxClients";
     public static final String LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY = "limitUpstreamBytesPerSecond";
@@ -52,11 +63,23 @@ public record ConduitServiceParameters(
             "reducedLimitUpstreamBytesPerSecond";
     public static final String REDUCED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY =
             "reducedLimitDownstreamBytesPerSecond";
+    // Profile used on metered networks, see NetworkProfileManager. Not part of the earlier preferences.
+    public static final String METERED_MAX_CLIENTS_KEY = "meteredMaxClients";
+    public static final String METERED_LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY = "meteredLimitUpstreamBytesPerSecond";
+    public static final String METERED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY = "meteredLimitDownstreamBytesPerSecond";
+    public static final String METERED_DAILY_BYTES_KEY = "meteredDailyBytes";
+    // Device setting overriding the default IoPolicy mode, null for the default. It is set with its own
+    // native module method rather than with the parameters above, see withDeviceSettingsFrom().
+    public static final String IO_MODE_KEY = "ioMode";
+    // Device setting selecting the PowerLockPolicy mode, null for the default, set like the I/O mode
+    public static final String POWER_LOCK_MODE_KEY = "powerLockMode";
     public static final String SCHEMA_VERSION_KEY = "schemaVersion";
 
-    // Current storage schema version
+    // Schema version of the shared preferences used by earlier versions, see ParameterStore
     private static final int CURRENT_SCHEMA_VERSION = 1;
 
+    private static final Pattern TIME_OF_DAY_PATTERN = Pattern.compile("^([01]\\d|2[0-3]):([0-5]\\d)$");
+
     // Parse method for ReadableMap
     public static ConduitServiceParameters parse(ReadableMap map) {
         // Check if all keys are present
@@ -88,11 +111,26 @@ public record ConduitServiceParameters(
                 map.hasKey(REDUCED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY)
                         ? map.getInt(REDUCED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY)
                         : null;
+        Integer meteredMaxClients = map.hasKey(METERED_MAX_CLIENTS_KEY)
+                ? map.getInt(METERED_MAX_CLIENTS_KEY)
+                : null;
+        Integer meteredLimitUpstreamBytes = map.hasKey(METERED_LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY)
+                ? map.getInt(METERED_LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY)
+                : null;
+        Integer meteredLimitDownstreamBytes = map.hasKey(METERED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY)
+                ? map.getInt(METERED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY)
+                : null;
+        // JS numbers arrive as doubles, the allowance may exceed the int range
+        Long meteredDailyBytes = map.hasKey(METERED_DAILY_BYTES_KEY)
+                ? (long) map.getDouble(METERED_DAILY_BYTES_KEY)
+                : null;
 
         // Validate parsed values
         if (validate(maxClients, limitUpstreamBytes, limitDownstreamBytes, proxyPrivateKey,
                 reducedStartTime, reducedEndTime, reducedMaxClients,
-                reducedLimitUpstreamBytes, reducedLimitDownstreamBytes)) {
+                reducedLimitUpstreamBytes, reducedLimitDownstreamBytes) &&
+                validateMetered(meteredMaxClients, meteredLimitUpstreamBytes, meteredLimitDownstreamBytes,
+                        meteredDailyBytes)) {
             return new ConduitServiceParameters(
                     maxClients,
                     limitUpstreamBytes,
@@ -102,7 +140,13 @@ public record ConduitServiceParameters(
                     reducedEndTime,
                     reducedMaxClients,
                     reducedLimitUpstreamBytes,
-                    reducedLimitDownstreamBytes);
+                    reducedLimitDownstreamBytes,
+                    meteredMaxClients,
+                    meteredLimitUpstreamBytes,
+                    meteredLimitDownstreamBytes,
+                    meteredDailyBytes,
+                    null,
+                    null);
         }
 
         return null;
@@ -137,11 +181,25 @@ public record ConduitServiceParameters(
         Integer reducedLimitDownstreamBytes = intent.hasExtra(REDUCED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY)
                 ? intent.getIntExtra(REDUCED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY, -1)
                 : null;
+        Integer meteredMaxClients = intent.hasExtra(METERED_MAX_CLIENTS_KEY)
+                ? intent.getIntExtra(METERED_MAX_CLIENTS_KEY, -1)
+                : null;
+        Integer meteredLimitUpstreamBytes = intent.hasExtra(METERED_LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY)
+                ? intent.getIntExtra(METERED_LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY, -1)
+                : null;
+        Integer meteredLimitDownstreamBytes = intent.hasExtra(METERED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY)
+                ? intent.getIntExtra(METERED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY, -1)
+                : null;
+        Long meteredDailyBytes = intent.hasExtra(METERED_DAILY_BYTES_KEY)
+                ? intent.getLongExtra(METERED_DAILY_BYTES_KEY, -1)
+                : null;
 
         // Validate parsed values
         if (validate(maxClients, limitUpstreamBytes, limitDownstreamBytes, proxyPrivateKey,
                 reducedStartTime, reducedEndTime, reducedMaxClients,
-                reducedLimitUpstreamBytes, reducedLimitDownstreamBytes)) {
+                reducedLimitUpstreamBytes, reducedLimitDownstreamBytes) &&
+                validateMetered(meteredMaxClients, meteredLimitUpstreamBytes, meteredLimitDownstreamBytes,
+                        meteredDailyBytes)) {
             return new ConduitServiceParameters(
                     maxClients,
                     limitUpstreamBytes,
@@ -151,59 +209,36 @@ public record ConduitServiceParameters(
                     reducedEndTime,
                     reducedMaxClients,
                     reducedLimitUpstreamBytes,
-                    reducedLimitDownstreamBytes);
+                    reducedLimitDownstreamBytes,
+                    meteredMaxClients,
+                    meteredLimitUpstreamBytes,
+                    meteredLimitDownstreamBytes,
+                    meteredDailyBytes,
+                    null,
+                    null);
         }
 
         return null;
     }
 
-    // Store the object in SharedPreferences and return true if any values changed
+    // Store the parameters in the ParameterStore and return true if any values changed
     public boolean store(Context context) {
-        SharedPreferences preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE | Context.MODE_MULTI_PROCESS);
-        SharedPreferences.Editor editor = preferences.edit();
-
-        boolean changed = false;
-
-        if (preferences.getInt(MAX_CLIENTS_KEY, -1) != maxClients) {
-            editor.putInt(MAX_CLIENTS_KEY, maxClients);
-            changed = true;
-        }
-
-        if (preferences.getInt(LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY, -1) != limitUpstreamBytes) {
-            editor.putInt(LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY, limitUpstreamBytes);
-            changed = true;
-        }
-
-        if (preferences.getInt(LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY, -1) != limitDownstreamBytes) {
-            editor.putInt(LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY, limitDownstreamBytes);
-            changed = true;
-        }
-
-        // Guard against NPE
-        String storedPrivateKey = preferences.getString(PRIVATE_KEY_KEY, null);
-        if (storedPrivateKey == null || !storedPrivateKey.equals(privateKey)) {
-            editor.putString(PRIVATE_KEY_KEY, privateKey);
-            changed = true;
-        }
-
-        changed = storeOptionalString(preferences, editor, REDUCED_START_TIME_KEY, reducedStartTime) || changed;
-        changed = storeOptionalString(preferences, editor, REDUCED_END_TIME_KEY, reducedEndTime) || changed;
-        changed = storeOptionalInt(preferences, editor, REDUCED_MAX_CLIENTS_KEY, reducedMaxClients) || changed;
-        changed = storeOptionalInt(preferences, editor, REDUCED_LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY, reducedLimitUpstreamBytes) || changed;
-        changed = storeOptionalInt(preferences, editor, REDUCED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY, reducedLimitDownstreamBytes) || changed;
-
-        if (changed) {
-            editor.commit();
-        }
-
-        return changed;
+        return ParameterStore.store(context, this);
     }
 
-    // Helper to load parameters from preferences
+    // Helper to load parameters from the ParameterStore, cached in memory
     public static ConduitServiceParameters load(Context context) {
+        return ParameterStore.load(context);
+    }
+
+    // Loads parameters stored in shared preferences by earlier versions, see ParameterStore
+    static ConduitServiceParameters loadLegacy(Context context) {
         migrate(context); // Ensure preferences are up-to-date
 
-        SharedPreferences preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE | Context.MODE_MULTI_PROCESS);
+        SharedPreferences preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!preferences.contains(PRIVATE_KEY_KEY)) {
+            return null;
+        }
 
         int maxClients = preferences.getInt(MAX_CLIENTS_KEY, -1);
         int limitUpstreamBytes = preferences.getInt(LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY, -1);
@@ -234,12 +269,142 @@ public record ConduitServiceParameters(
                     reducedEndTime,
                     reducedMaxClients,
                     reducedLimitUpstreamBytes,
-                    reducedLimitDownstreamBytes);
+                    reducedLimitDownstreamBytes,
+                    null,
+                    null,
+                    null,
+                    null,
+                    null,
+                    null);
+        }
+
+        return null;
+    }
+
+    // Removes the shared preferences once they have been migrated to the ParameterStore
+    static void clearLegacy(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    // Parse method for the JSON form written by toJson()
+    static ConduitServiceParameters fromJson(JSONObject json) {
+        // Check if all keys are present
+        if (!json.has(MAX_CLIENTS_KEY) ||
+                !json.has(LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY) ||
+                !json.has(LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY) ||
+                !json.has(PRIVATE_KEY_KEY)) {
+            return null;
+        }
+
+        int maxClients = json.optInt(MAX_CLIENTS_KEY, -1);
+        int limitUpstreamBytes = json.optInt(LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY, -1);
+        int limitDownstreamBytes = json.optInt(LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY, -1);
+        String proxyPrivateKey = json.optString(PRIVATE_KEY_KEY, null);
+        String reducedStartTime = json.has(REDUCED_START_TIME_KEY)
+                ? json.optString(REDUCED_START_TIME_KEY, null)
+                : null;
+        String reducedEndTime = json.has(REDUCED_END_TIME_KEY)
+                ? json.optString(REDUCED_END_TIME_KEY, null)
+                : null;
+        Integer reducedMaxClients = json.has(REDUCED_MAX_CLIENTS_KEY)
+                ? json.optInt(REDUCED_MAX_CLIENTS_KEY, -1)
+                : null;
+        Integer reducedLimitUpstreamBytes = json.has(REDUCED_LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY)
+                ? json.optInt(REDUCED_LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY, -1)
+                : null;
+        Integer reducedLimitDownstreamBytes = json.has(REDUCED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY)
+                ? json.optInt(REDUCED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY, -1)
+                : null;
+        Integer meteredMaxClients = json.has(METERED_MAX_CLIENTS_KEY)
+                ? json.optInt(METERED_MAX_CLIENTS_KEY, -1)
+                : null;
+        Integer meteredLimitUpstreamBytes = json.has(METERED_LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY)
+                ? json.optInt(METERED_LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY, -1)
+                : null;
+        Integer meteredLimitDownstreamBytes = json.has(METERED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY)
+                ? json.optInt(METERED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY, -1)
+                : null;
+        Long meteredDailyBytes = json.has(METERED_DAILY_BYTES_KEY)
+                ? json.optLong(METERED_DAILY_BYTES_KEY, -1)
+                : null;
+        // Kept as stored, a mode unknown to this version falls back to the default in IoPolicy
+        String ioMode = json.has(IO_MODE_KEY)
+                ? json.optString(IO_MODE_KEY, null)
+                : null;
+        String powerLockMode = json.has(POWER_LOCK_MODE_KEY)
+                ? json.optString(POWER_LOCK_MODE_KEY, null)
+                : null;
+
+        // Validate parsed values
+        if (validate(maxClients, limitUpstreamBytes, limitDownstreamBytes, proxyPrivateKey,
+                reducedStartTime, reducedEndTime, reducedMaxClients,
+                reducedLimitUpstreamBytes, reducedLimitDownstreamBytes) &&
+                validateMetered(meteredMaxClients, meteredLimitUpstreamBytes, meteredLimitDownstreamBytes,
+                        meteredDailyBytes)) {
+            return new ConduitServiceParameters(
+                    maxClients,
+                    limitUpstreamBytes,
+                    limitDownstreamBytes,
+                    proxyPrivateKey,
+                    reducedStartTime,
+                    reducedEndTime,
+                    reducedMaxClients,
+                    reducedLimitUpstreamBytes,
+                    reducedLimitDownstreamBytes,
+                    meteredMaxClients,
+                    meteredLimitUpstreamBytes,
+                    meteredLimitDownstreamBytes,
+                    meteredDailyBytes,
+                    ioMode,
+                    powerLockMode);
         }
 
         return null;
     }
 
+    // Helper to put parameters into a JSON object, see fromJson()
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(MAX_CLIENTS_KEY, maxClients);
+        json.put(LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY, limitUpstreamBytes);
+        json.put(LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY, limitDownstreamBytes);
+        json.put(PRIVATE_KEY_KEY, privateKey);
+        if (reducedStartTime != null) {
+            json.put(REDUCED_START_TIME_KEY, reducedStartTime);
+        }
+        if (reducedEndTime != null) {
+            json.put(REDUCED_END_TIME_KEY, reducedEndTime);
+        }
+        if (reducedMaxClients != null) {
+            json.put(REDUCED_MAX_CLIENTS_KEY, reducedMaxClients);
+        }
+        if (reducedLimitUpstreamBytes != null) {
+            json.put(REDUCED_LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY, reducedLimitUpstreamBytes);
+        }
+        if (reducedLimitDownstreamBytes != null) {
+            json.put(REDUCED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY, reducedLimitDownstreamBytes);
+        }
+        if (meteredMaxClients != null) {
+            json.put(METERED_MAX_CLIENTS_KEY, meteredMaxClients);
+        }
+        if (meteredLimitUpstreamBytes != null) {
+            json.put(METERED_LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY, meteredLimitUpstreamBytes);
+        }
+        if (meteredLimitDownstreamBytes != null) {
+            json.put(METERED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY, meteredLimitDownstreamBytes);
+        }
+        if (meteredDailyBytes != null) {
+            json.put(METERED_DAILY_BYTES_KEY, meteredDailyBytes);
+        }
+        if (ioMode != null) {
+            json.put(IO_MODE_KEY, ioMode);
+        }
+        if (powerLockMode != null) {
+            json.put(POWER_LOCK_MODE_KEY, powerLockMode);
+        }
+        return json;
+    }
+
     // Helper to put parameters into an intent
     public void putIntoIntent(Intent intent) {
         intent.putExtra(MAX_CLIENTS_KEY, maxClients);
@@ -261,6 +426,18 @@ public record ConduitServiceParameters(
         if (reducedLimitDownstreamBytes != null) {
             intent.putExtra(REDUCED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY, reducedLimitDownstreamBytes);
         }
+        if (meteredMaxClients != null) {
+            intent.putExtra(METERED_MAX_CLIENTS_KEY, meteredMaxClients);
+        }
+        if (meteredLimitUpstreamBytes != null) {
+            intent.putExtra(METERED_LIMIT_UPSTREAM_BYTES_PER_SECOND_KEY, meteredLimitUpstreamBytes);
+        }
+        if (meteredLimitDownstreamBytes != null) {
+            intent.putExtra(METERED_LIMIT_DOWNSTREAM_BYTES_PER_SECOND_KEY, meteredLimitDownstreamBytes);
+        }
+        if (meteredDailyBytes != null) {
+            intent.putExtra(METERED_DAILY_BYTES_KEY, meteredDailyBytes);
+        }
     }
 
     // Helper to validate parameters
@@ -303,39 +480,83 @@ public record ConduitServiceParameters(
         return reducedMaxClients > 0 && reducedLimitUpstreamBytes >= 0 && reducedLimitDownstreamBytes >= 0;
     }
 
-    private static boolean isTimeOfDay(String value) {
-        return value != null && value.matches("^([01]\\d|2[0-3]):([0-5]\\d)$");
+    // The metered profile is optional and defined by meteredMaxClients, 0 meaning no sharing on metered
+    // networks. Its byte limits fall back to the base limits when absent, and the daily allowance is
+    // unlimited when absent.
+    private static boolean validateMetered(Integer meteredMaxClients, Integer meteredLimitUpstreamBytes,
+                                           Integer meteredLimitDownstreamBytes, Long meteredDailyBytes) {
+        if (meteredMaxClients == null) {
+            return meteredLimitUpstreamBytes == null && meteredLimitDownstreamBytes == null &&
+                    meteredDailyBytes == null;
+        }
+        return meteredMaxClients >= 0 &&
+                (meteredLimitUpstreamBytes == null || meteredLimitUpstreamBytes >= 0) &&
+                (meteredLimitDownstreamBytes == null || meteredLimitDownstreamBytes >= 0) &&
+                (meteredDailyBytes == null || meteredDailyBytes > 0);
     }
 
-    private static boolean storeOptionalString(SharedPreferences preferences, SharedPreferences.Editor editor, String key, String value) {
-        String storedValue = preferences.getString(key, null);
-        if (value == null) {
-            if (storedValue != null) {
-                editor.remove(key);
-                return true;
-            }
-            return false;
-        }
-        if (storedValue == null || !storedValue.equals(value)) {
-            editor.putString(key, value);
-            return true;
-        }
-        return false;
+    public boolean hasMeteredProfile() {
+        return meteredMaxClients != null;
     }
 
-    private static boolean storeOptionalInt(SharedPreferences preferences, SharedPreferences.Editor editor, String key, Integer value) {
-        if (value == null) {
-            if (preferences.contains(key)) {
-                editor.remove(key);
-                return true;
-            }
-            return false;
-        }
-        if (!preferences.contains(key) || preferences.getInt(key, -1) != value) {
-            editor.putInt(key, value);
-            return true;
-        }
-        return false;
+    // Returns the parameters to run with on a metered network: the metered limits in place of the base
+    // ones. Must only be called if hasMeteredProfile() and meteredMaxClients is not 0.
+    public ConduitServiceParameters forMeteredNetwork() {
+        return new ConduitServiceParameters(
+                meteredMaxClients,
+                meteredLimitUpstreamBytes != null ? meteredLimitUpstreamBytes : limitUpstreamBytes,
+                meteredLimitDownstreamBytes != null ? meteredLimitDownstreamBytes : limitDownstreamBytes,
+                privateKey,
+                reducedStartTime,
+                reducedEndTime,
+                reducedMaxClients == null ? null : Math.min(reducedMaxClients, meteredMaxClients),
+                reducedLimitUpstreamBytes,
+                reducedLimitDownstreamBytes,
+                meteredMaxClients,
+                meteredLimitUpstreamBytes,
+                meteredLimitDownstreamBytes,
+                meteredDailyBytes,
+                ioMode,
+                powerLockMode);
+    }
+
+    // Returns these parameters with the device settings taken from the stored parameters. Parameters
+    // from JS do not carry the device settings, which are set with their own native module methods,
+    // so they are merged in before the parameters from JS replace the stored ones.
+    public ConduitServiceParameters withDeviceSettingsFrom(ConduitServiceParameters stored) {
+        return stored == null ? withDeviceSettings(null, null) :
+                withDeviceSettings(stored.ioMode(), stored.powerLockMode());
+    }
+
+    public ConduitServiceParameters withIoMode(String ioMode) {
+        return withDeviceSettings(ioMode, powerLockMode);
+    }
+
+    public ConduitServiceParameters withPowerLockMode(String powerLockMode) {
+        return withDeviceSettings(ioMode, powerLockMode);
+    }
+
+    private ConduitServiceParameters withDeviceSettings(String ioMode, String powerLockMode) {
+        return new ConduitServiceParameters(
+                maxClients,
+                limitUpstreamBytes,
+                limitDownstreamBytes,
+                privateKey,
+                reducedStartTime,
+                reducedEndTime,
+                reducedMaxClients,
+                reducedLimitUpstreamBytes,
+                reducedLimitDownstreamBytes,
+                meteredMaxClients,
+                meteredLimitUpstreamBytes,
+                meteredLimitDownstreamBytes,
+                meteredDailyBytes,
+                ioMode,
+                powerLockMode);
+    }
+
+    private static boolean isTimeOfDay(String value) {
+        return value != null && TIME_OF_DAY_PATTERN.matcher(value).matches();
     }
 
     // Helper to migrate preferences to the current schema
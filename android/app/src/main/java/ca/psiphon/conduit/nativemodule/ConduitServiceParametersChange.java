@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.EnumSet;
+import java.util.Objects;
+
+// Classifies the difference between two sets of conduit parameters and what applying it to a
+// running in-proxy requires.
+public record ConduitServiceParametersChange(EnumSet<ConduitServiceParametersChange.Field> changedFields) {
+
+    public enum Field {
+        MAX_CLIENTS(Effect.RELOAD_CONFIG),
+        LIMIT_UPSTREAM_BYTES(Effect.RELOAD_CONFIG),
+        LIMIT_DOWNSTREAM_BYTES(Effect.RELOAD_CONFIG),
+        REDUCED_USAGE(Effect.RELOAD_CONFIG),
+        // Only affects tunnel core while on a metered network, the service restarts it if the parameters
+        // in effect for the current network changed, see ConduitService.reconcileNetworkProfile()
+        METERED_PROFILE(Effect.NONE),
+        // Sets how often tunnel core syncs its notice file
+        IO_MODE(Effect.RELOAD_CONFIG),
+        // Applied to the running in-proxy by the service, see PowerLockManager.updatePolicy()
+        POWER_LOCK_MODE(Effect.NONE),
+        PRIVATE_KEY(Effect.RESET_IDENTITY);
+
+        private final Effect effect;
+
+        Field(Effect effect) {
+            this.effect = effect;
+        }
+
+        public Effect effect() {
+            return effect;
+        }
+    }
+
+    // Effects ordered from the cheapest to the most expensive
+    public enum Effect {
+        // Nothing the tunnel uses changed, the parameters only need to be persisted
+        NONE,
+        // Tunnel core has to reload its config; the proxy identity is unchanged so the activity
+        // stats of the current session carry over the restart
+        RELOAD_CONFIG,
+        // The proxy identity changed; tunnel core has to reload its config and the activity stats
+        // of the old identity are discarded
+        RESET_IDENTITY
+    }
+
+    // Compares the previous parameters, which may be null if none were stored yet, with the new ones
+    @NonNull
+    public static ConduitServiceParametersChange between(@Nullable ConduitServiceParameters previous,
+                                                         @NonNull ConduitServiceParameters current) {
+        if (previous == null) {
+            return new ConduitServiceParametersChange(EnumSet.allOf(Field.class));
+        }
+
+        EnumSet<Field> changedFields = EnumSet.noneOf(Field.class);
+        if (previous.maxClients() != current.maxClients()) {
+            changedFields.add(Field.MAX_CLIENTS);
+        }
+        if (previous.limitUpstreamBytes() != current.limitUpstreamBytes()) {
+            changedFields.add(Field.LIMIT_UPSTREAM_BYTES);
+        }
+        if (previous.limitDownstreamBytes() != current.limitDownstreamBytes()) {
+            changedFields.add(Field.LIMIT_DOWNSTREAM_BYTES);
+        }
+        if (!Objects.equals(previous.privateKey(), current.privateKey())) {
+            changedFields.add(Field.PRIVATE_KEY);
+        }
+        if (!Objects.equals(previous.reducedStartTime(), current.reducedStartTime()) ||
+                !Objects.equals(previous.reducedEndTime(), current.reducedEndTime()) ||
+                !Objects.equals(previous.reducedMaxClients(), current.reducedMaxClients()) ||
+                !Objects.equals(previous.reducedLimitUpstreamBytes(), current.reducedLimitUpstreamBytes()) ||
+                !Objects.equals(previous.reducedLimitDownstreamBytes(), current.reducedLimitDownstreamBytes())) {
+            changedFields.add(Field.REDUCED_USAGE);
+        }
+        if (!Objects.equals(previous.meteredMaxClients(), current.meteredMaxClients()) ||
+                !Objects.equals(previous.meteredLimitUpstreamBytes(), current.meteredLimitUpstreamBytes()) ||
+                !Objects.equals(previous.meteredLimitDownstreamBytes(), current.meteredLimitDownstreamBytes()) ||
+                !Objects.equals(previous.meteredDailyBytes(), current.meteredDailyBytes())) {
+            changedFields.add(Field.METERED_PROFILE);
+        }
+        if (!Objects.equals(previous.ioMode(), current.ioMode())) {
+            changedFields.add(Field.IO_MODE);
+        }
+        if (!Objects.equals(previous.powerLockMode(), current.powerLockMode())) {
+            changedFields.add(Field.POWER_LOCK_MODE);
+        }
+        return new ConduitServiceParametersChange(changedFields);
+    }
+
+    public boolean isEmpty() {
+        return changedFields.isEmpty();
+    }
+
+    // The most expensive effect required by any of the changed fields
+    @NonNull
+    public Effect effect() {
+        Effect effect = Effect.NONE;
+        for (Field field : changedFields) {
+            if (field.effect().compareTo(effect) > 0) {
+                effect = field.effect();
+            }
+        }
+        return effect;
+    }
+}
@@ -4,20 +4,27 @@ import android.app.Service;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Binder;
+import android.os.Bundle;
 import android.os.DeadObjectException;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import ca.psiphon.conduit.nativemodule.logging.MyLog;
+import ca.psiphon.conduit.nativemodule.stats.ProxyActivityStats;
 import ca.psiphon.conduit.state.IConduitStateCallback;
+import ca.psiphon.conduit.state.IConduitStateCallbackV2;
 import ca.psiphon.conduit.state.IConduitStateService;
 import io.reactivex.Flowable;
 import io.reactivex.disposables.CompositeDisposable;
@@ -58,12 +65,120 @@ public class ConduitStateService extends Service {
         }
     }
 
+    // Proxy activity as reported to v2 clients, with the throughput since the previous stats update
+    private record ActivitySummary(int announcingWorkers, int connectingClients, int connectedClients,
+                                   long totalBytesUp, long totalBytesDown,
+                                   long bytesUpPerSecond, long bytesDownPerSecond, long elapsedTimeMillis,
+                                   String capacityLevel, String capacityReason,
+                                   int reconfigurationDroppedClients) {
+        private static final ActivitySummary EMPTY = new ActivitySummary(0, 0, 0, 0, 0, 0, 0, 0, "FULL", "", 0);
+
+        static ActivitySummary next(ActivitySummary previous, ProxyActivityStats stats) {
+            long totalBytesUp = stats.getTotalBytesUp();
+            long totalBytesDown = stats.getTotalBytesDown();
+            long elapsedTimeMillis = stats.getElapsedTime();
+            long intervalMillis = elapsedTimeMillis - previous.elapsedTimeMillis();
+            // Totals go back to zero when the proxy restarts, report no throughput for that update
+            boolean sameRun = intervalMillis > 0 && totalBytesUp >= previous.totalBytesUp() &&
+                    totalBytesDown >= previous.totalBytesDown();
+            return new ActivitySummary(
+                    stats.getCurrentAnnouncingWorkers(),
+                    stats.getCurrentConnectingClients(),
+                    stats.getCurrentConnectedClients(),
+                    totalBytesUp,
+                    totalBytesDown,
+                    sameRun ? (totalBytesUp - previous.totalBytesUp()) * 1000 / intervalMillis : 0,
+                    sameRun ? (totalBytesDown - previous.totalBytesDown()) * 1000 / intervalMillis : 0,
+                    elapsedTimeMillis,
+                    stats.getCapacityLevel(),
+                    stats.getCapacityReason(),
+                    stats.getReconfigurationDroppedClients());
+        }
+    }
+
+    private record StateSnapshot(int appVersion, ProxyState proxyState, ActivitySummary activity) {
+        // Current schema version for the state snapshot Bundle
+        private static final int CURRENT_SCHEMA = 2;
+
+        Bundle toBundle() {
+            // Only primitive and String values so that clients need no classes from this app to read it.
+            // Bundle keys:
+            //  "schema": 2, // Current schema version, keys are only ever added within a schema version
+            //  "appVersion": 123, // App version code
+            //  "running": true/false, // Proxy running status, omitted for UNKNOWN state
+            //  "networkState": "HAS_INTERNET"/"NO_INTERNET",
+            //  "announcingWorkers", "connectingClients", "connectedClients": int, current counts
+            //  "totalBytesUp", "totalBytesDown": long, bytes relayed since the proxy started
+            //  "bytesUpPerSecond", "bytesDownPerSecond": long, throughput over the last stats update
+            //  "capacityLevel": "FULL"/"REDUCED"/"MINIMAL", "capacityReason": why the capacity is reduced
+            //  "reconfigurationDroppedClients": int, connected clients dropped by tunnel restarts for
+            //      parameter or network profile changes since the proxy started
+            //  "timestampMillis": long, wall clock time the snapshot was taken
+            Bundle bundle = new Bundle();
+            bundle.putInt("schema", CURRENT_SCHEMA);
+            bundle.putInt("appVersion", appVersion);
+            if (!proxyState.isUnknown()) {
+                bundle.putBoolean("running", proxyState.isRunning());
+            }
+            bundle.putString("networkState", proxyState.networkState().name());
+            bundle.putInt("announcingWorkers", activity.announcingWorkers());
+            bundle.putInt("connectingClients", activity.connectingClients());
+            bundle.putInt("connectedClients", activity.connectedClients());
+            bundle.putLong("totalBytesUp", activity.totalBytesUp());
+            bundle.putLong("totalBytesDown", activity.totalBytesDown());
+            bundle.putLong("bytesUpPerSecond", activity.bytesUpPerSecond());
+            bundle.putLong("bytesDownPerSecond", activity.bytesDownPerSecond());
+            bundle.putString("capacityLevel", activity.capacityLevel());
+            bundle.putString("capacityReason", activity.capacityReason());
+            bundle.putInt("reconfigurationDroppedClients", activity.reconfigurationDroppedClients());
+            bundle.putLong("timestampMillis", System.currentTimeMillis());
+            return bundle;
+        }
+    }
+
+    // A v2 client and the state of its rate limit
+    private static final class SnapshotClient {
+        final IConduitStateCallbackV2 callback;
+        final long minIntervalMillis;
+        long lastDeliveryMillis = Long.MIN_VALUE;
+        boolean deliveryScheduled;
+        Bundle lastDelivered;
+
+        SnapshotClient(IConduitStateCallbackV2 callback, long minIntervalMillis) {
+            this.callback = callback;
+            this.minIntervalMillis = minIntervalMillis;
+        }
+    }
+
+    // Interval between snapshots for v2 clients that do not request one, and the shortest allowed
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_MILLIS = 1000;
+    private static final long MIN_SNAPSHOT_INTERVAL_MILLIS = 250;
+
+    // fetchActivitySnapshot serves the same Bundle to all callers for this long
+    private static final long ACTIVITY_SNAPSHOT_MAX_AGE_MILLIS = 5000;
+    // Number of points the activity history is downsampled to
+    private static final int ACTIVITY_HISTORY_POINTS = 24;
+    // Calls to fetchActivitySnapshot allowed per calling UID per quota window
+    private static final int FETCH_QUOTA_PER_WINDOW = 30;
+    private static final long FETCH_QUOTA_WINDOW_MILLIS = 60 * 1000;
+
+    // Calls made by a UID in the current quota window
+    private static final class FetchQuota {
+        long windowStartMillis;
+        int calls;
+        boolean rejectionLogged;
+    }
+
     private final CompositeDisposable compositeDisposable = new CompositeDisposable();
 
     // Map to hold registered clients and their subscriptions
     private final Map<IBinder, IConduitStateCallback> clients = new ConcurrentHashMap<>();
-    // Lock for clients map access
+    // Map to hold registered v2 clients
+    private final Map<IBinder, SnapshotClient> snapshotClients = new ConcurrentHashMap<>();
+    // Lock for clients and snapshotClients map access
     private final Object clientsLock = new Object();
+    // Runs the snapshot deliveries held back by a client's rate limit
+    private final Handler snapshotHandler = new Handler(Looper.getMainLooper());
 
     // Interactor for getting state from the ConduitService
     private ConduitServiceInteractor conduitServiceInteractor;
@@ -73,8 +188,22 @@ public class ConduitStateService extends Service {
     // and is used to update all registered clients
     private Flowable<String> runningState;
 
-    // Holds current state update to send to newly registered clients
-    private StateUpdate currentUpdate = null;
+    // Holds current state update JSON to send to newly registered clients
+    private volatile String currentStateJson = null;
+
+    // Holds the latest snapshot, built once and shared by all v2 clients
+    private volatile Bundle currentSnapshot = null;
+
+    // Latest activity stats received from the ConduitService
+    private volatile ProxyActivityStats latestActivityStats = null;
+    // Snapshot returned by fetchActivitySnapshot and the elapsed realtime it was built at
+    private final Object activitySnapshotLock = new Object();
+    private Bundle activitySnapshot = null;
+    private long activitySnapshotBuiltMillis;
+    private final Map<Integer, FetchQuota> fetchQuotas = new ConcurrentHashMap<>();
+
+    // Trust verdicts of calling UIDs
+    private TrustVerdictCache trustVerdictCache;
 
     // AIDL binder implementation
     private final IConduitStateService.Stub binder = new IConduitStateService.Stub() {
@@ -94,9 +223,10 @@ public class ConduitStateService extends Service {
                 IBinder clientBinder = client.asBinder();
                 if (!clients.containsKey(clientBinder)) {
                     clients.put(clientBinder, client);
-                    if (currentUpdate != null) {
+                    String stateJson = currentStateJson;
+                    if (stateJson != null) {
                         try {
-                            client.onStateUpdate(currentUpdate.toJson());
+                            client.onStateUpdate(stateJson);
                         } catch (RemoteException e) {
                             MyLog.e(TAG, "Failed to notify client: " + clientBinder + ", " + e.getMessage());
                         }
@@ -132,14 +262,64 @@ public class ConduitStateService extends Service {
             }
             return privateKey;
         }
+
+        @Override
+        public void registerClientV2(IConduitStateCallbackV2 client, long minIntervalMillis) {
+            if (client == null) {
+                return;
+            }
+
+            int uid = Binder.getCallingUid();
+            if (!isTrustedUid(uid)) {
+                throw new SecurityException("Client is not authorized to register with this service.");
+            }
+
+            long intervalMillis = minIntervalMillis <= 0 ? DEFAULT_SNAPSHOT_INTERVAL_MILLIS :
+                    Math.max(minIntervalMillis, MIN_SNAPSHOT_INTERVAL_MILLIS);
+            synchronized (clientsLock) {
+                IBinder clientBinder = client.asBinder();
+                if (!snapshotClients.containsKey(clientBinder)) {
+                    SnapshotClient snapshotClient = new SnapshotClient(client, intervalMillis);
+                    snapshotClients.put(clientBinder, snapshotClient);
+                    deliverSnapshot(clientBinder, snapshotClient);
+                    MyLog.i(TAG, "V2 client registered: " + clientBinder + ", interval " + intervalMillis + "ms");
+                }
+            }
+        }
+
+        @Override
+        public void unregisterClientV2(IConduitStateCallbackV2 client) {
+            if (client == null) {
+                return;
+            }
+
+            synchronized (clientsLock) {
+                IBinder clientBinder = client.asBinder();
+                snapshotClients.remove(clientBinder);
+                MyLog.i(TAG, "V2 client unregistered: " + clientBinder);
+            }
+        }
+
+        @Override
+        public Bundle fetchActivitySnapshot() {
+            int uid = Binder.getCallingUid();
+            if (!isTrustedUid(uid)) {
+                throw new SecurityException("Client is not authorized to fetch activity from this service.");
+            }
+            if (!acquireFetchQuota(uid)) {
+                throw new IllegalStateException("Activity snapshot request quota exceeded, retry later.");
+            }
+            return getActivitySnapshot();
+        }
     };
 
     @Override
     public void onCreate() {
         MyLog.init(getApplicationContext());
 
-        // Load runtime trusted signatures configuration from file
-        PackageHelper.configureRuntimeTrustedSignatures(PackageHelper.readTrustedSignaturesFromFile(getApplicationContext()));
+        // Load runtime trusted signatures configuration from file and start caching trust verdicts
+        trustVerdictCache = new TrustVerdictCache(getApplicationContext());
+        trustVerdictCache.start();
 
         conduitServiceInteractor = new ConduitServiceInteractor(getApplicationContext());
         conduitServiceInteractor.onStart(getApplicationContext());
@@ -153,12 +333,10 @@ public class ConduitStateService extends Service {
                         conduitServiceInteractor.proxyStateFlowable().startWith(ProxyState.unknown()),
                         StateUpdate::new
                 )
-                .map(stateUpdate -> {
-                    // Record the current state update to send to newly registered clients
-                    currentUpdate = stateUpdate;
-                    return stateUpdate.toJson();
-                })
-                .distinctUntilChanged();
+                .map(StateUpdate::toJson)
+                .distinctUntilChanged()
+                // Record the current state update to send to newly registered clients
+                .doOnNext(stateJson -> currentStateJson = stateJson);
 
         // Single subscription to the runningState Flowable to update all registered clients
         compositeDisposable.add(runningState.subscribe(
@@ -183,6 +361,144 @@ public class ConduitStateService extends Service {
                 },
                 throwable -> MyLog.e(TAG, "Error in runningState flow: " + throwable.getMessage())
         ));
+
+        // Snapshots for v2 clients, built once per change and delivered to each client subject to its
+        // own rate limit
+        Flowable<ActivitySummary> activity = conduitServiceInteractor.proxyActivityStatsFlowable()
+                .doOnNext(stats -> latestActivityStats = stats)
+                .scan(ActivitySummary.EMPTY, ActivitySummary::next);
+        compositeDisposable.add(Flowable.combineLatest(
+                        Flowable.just(getAppVersionCode()),
+                        conduitServiceInteractor.proxyStateFlowable().startWith(ProxyState.unknown()),
+                        activity,
+                        StateSnapshot::new)
+                .distinctUntilChanged()
+                .subscribe(
+                        snapshot -> {
+                            currentSnapshot = snapshot.toBundle();
+                            synchronized (clientsLock) {
+                                for (Map.Entry<IBinder, SnapshotClient> entry : snapshotClients.entrySet()) {
+                                    deliverSnapshot(entry.getKey(), entry.getValue());
+                                }
+                            }
+                        },
+                        throwable -> MyLog.e(TAG, "Error in state snapshot flow: " + throwable.getMessage())
+                ));
+    }
+
+    // Sends the current snapshot to the client now, or schedules it for when the client's interval has
+    // passed. A scheduled delivery sends whatever snapshot is current by then, so a client that asked
+    // for a long interval skips the intermediate ones. Must be called holding clientsLock.
+    private void deliverSnapshot(IBinder clientBinder, SnapshotClient client) {
+        Bundle snapshot = currentSnapshot;
+        if (snapshot == null || snapshot == client.lastDelivered || client.deliveryScheduled) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        long waitMillis = client.lastDeliveryMillis == Long.MIN_VALUE ? 0 :
+                client.lastDeliveryMillis + client.minIntervalMillis - now;
+        if (waitMillis > 0) {
+            client.deliveryScheduled = true;
+            snapshotHandler.postDelayed(() -> {
+                synchronized (clientsLock) {
+                    client.deliveryScheduled = false;
+                    // Skip clients that unregistered or died in the meantime
+                    if (snapshotClients.get(clientBinder) == client) {
+                        deliverSnapshot(clientBinder, client);
+                    }
+                }
+            }, waitMillis);
+            return;
+        }
+        try {
+            client.callback.onStateSnapshot(snapshot);
+            client.lastDelivered = snapshot;
+            client.lastDeliveryMillis = now;
+        } catch (RemoteException e) {
+            // Remove the client if it is dead and do not log the exception as it is expected
+            // to happen when a client goes away without unregistering.
+            if (e instanceof DeadObjectException) {
+                snapshotClients.remove(clientBinder);
+            } else {
+                MyLog.e(TAG, "Failed to notify v2 client: " + clientBinder + ", " + e.getMessage());
+            }
+        }
+    }
+
+    // Returns false if the UID has used up its calls to fetchActivitySnapshot for the current window
+    private boolean acquireFetchQuota(int uid) {
+        FetchQuota quota = fetchQuotas.computeIfAbsent(uid, k -> new FetchQuota());
+        synchronized (quota) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - quota.windowStartMillis >= FETCH_QUOTA_WINDOW_MILLIS || quota.calls == 0) {
+                quota.windowStartMillis = now;
+                quota.calls = 0;
+                quota.rejectionLogged = false;
+            }
+            if (quota.calls >= FETCH_QUOTA_PER_WINDOW) {
+                if (!quota.rejectionLogged) {
+                    quota.rejectionLogged = true;
+                    MyLog.w(TAG, "UID %d exceeded the activity snapshot quota of %d calls per %d ms",
+                            uid, FETCH_QUOTA_PER_WINDOW, FETCH_QUOTA_WINDOW_MILLIS);
+                }
+                return false;
+            }
+            quota.calls++;
+            return true;
+        }
+    }
+
+    // Returns the cached activity snapshot, rebuilding it if it is older than
+    // ACTIVITY_SNAPSHOT_MAX_AGE_MILLIS. Callers must not modify the returned Bundle.
+    private Bundle getActivitySnapshot() {
+        synchronized (activitySnapshotLock) {
+            long now = SystemClock.elapsedRealtime();
+            if (activitySnapshot == null || now - activitySnapshotBuiltMillis >= ACTIVITY_SNAPSHOT_MAX_AGE_MILLIS) {
+                activitySnapshot = buildActivitySnapshot();
+                activitySnapshotBuiltMillis = now;
+            }
+            return activitySnapshot;
+        }
+    }
+
+    // The current state snapshot, see StateSnapshot.toBundle for its keys, plus the recent history:
+    //  "historyBucketMillis": long, duration of each history point
+    //  "bytesUpHistory", "bytesDownHistory": long[], bytes relayed in each point, oldest first
+    //  "connectedClientsHistory": long[], most clients connected during each point, oldest first
+    // The history arrays are omitted until the first stats update is received.
+    private Bundle buildActivitySnapshot() {
+        Bundle snapshot = currentSnapshot;
+        Bundle bundle = snapshot != null ? new Bundle(snapshot) : new Bundle();
+        ProxyActivityStats stats = latestActivityStats;
+        if (stats == null) {
+            return bundle;
+        }
+        List<Long> bytesUp = stats.getBytesUpSeries(0);
+        List<Long> bytesDown = stats.getBytesDownSeries(0);
+        List<Long> connectedClients = stats.getConnectedClientsSeries(0);
+        int bucketsPerPoint = Math.max(1, bytesUp.size() / ACTIVITY_HISTORY_POINTS);
+        bundle.putLong("historyBucketMillis", bucketsPerPoint * ProxyActivityStats.BUCKET_PERIOD_MILLISECONDS);
+        bundle.putLongArray("bytesUpHistory", downsample(bytesUp, bucketsPerPoint, false));
+        bundle.putLongArray("bytesDownHistory", downsample(bytesDown, bucketsPerPoint, false));
+        bundle.putLongArray("connectedClientsHistory", downsample(connectedClients, bucketsPerPoint, true));
+        return bundle;
+    }
+
+    // Sums, or takes the maximum of, each run of bucketsPerPoint values, dropping the oldest values
+    // that do not fill a whole point
+    private static long[] downsample(List<Long> series, int bucketsPerPoint, boolean max) {
+        int points = series.size() / bucketsPerPoint;
+        int offset = series.size() - points * bucketsPerPoint;
+        long[] result = new long[points];
+        for (int i = 0; i < points; i++) {
+            long value = 0;
+            for (int j = 0; j < bucketsPerPoint; j++) {
+                long bucket = series.get(offset + i * bucketsPerPoint + j);
+                value = max ? Math.max(value, bucket) : value + bucket;
+            }
+            result[i] = value;
+        }
+        return result;
     }
 
     @Override
@@ -193,11 +509,15 @@ public class ConduitStateService extends Service {
     @Override
     public void onDestroy() {
         compositeDisposable.dispose();
+        snapshotHandler.removeCallbacksAndMessages(null);
         synchronized (clientsLock) {
             clients.clear();
+            snapshotClients.clear();
         }
+        fetchQuotas.clear();
         conduitServiceInteractor.onStop(getApplicationContext());
         conduitServiceInteractor.onDestroy(getApplicationContext());
+        trustVerdictCache.stop();
     }
 
     private int getAppVersionCode() {
@@ -221,22 +541,6 @@ public class ConduitStateService extends Service {
 
     // Check if the calling UID is trusted
     private boolean isTrustedUid(int uid) {
-        // Get the package names associated with the calling UID
-        String[] packages = getPackageManager().getPackagesForUid(uid);
-
-        if (packages == null || packages.length == 0) {
-            MyLog.e(TAG, "Calling UID has no associated packages, rejecting.");
-            return false;
-        }
-
-        // It is possible to have multiple packages associated with the same UID, iterate through all
-        for (String packageName : packages) {
-            if (PackageHelper.verifyTrustedPackage(getPackageManager(), packageName)) {
-                return true;
-            }
-        }
-        // Reject the UID if none of the packages are trusted
-        MyLog.w(TAG, "None of the associated packages were trusted, rejecting UID.");
-        return false;
+        return trustVerdictCache.isTrustedUid(uid);
     }
 }
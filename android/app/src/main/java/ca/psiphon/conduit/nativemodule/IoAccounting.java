@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import ca.psiphon.conduit.nativemodule.logging.MyLog;
+
+// Counts the bytes the app writes to flash, per subsystem and per wall clock hour, for the last
+// HOURS_KEPT hours. Counters are per process: app logs, feedback and the storage ledger are written
+// by the main process, the config cache by the service process. Tunnel-core notices are written by
+// tunnel-core itself and are not counted.
+public class IoAccounting {
+    private static final String TAG = IoAccounting.class.getSimpleName();
+
+    public enum Subsystem {
+        APP_LOGS,
+        FEEDBACK,
+        CONFIG_CACHE,
+        STORAGE_LEDGER,
+        PARAMETERS
+    }
+
+    public interface HourlyReportListener {
+        // Called on the thread of the first write of a new hour with the bytes written in the
+        // previous hour that had writes
+        void onHourCompleted(long hourStartMillis, Map<Subsystem, Long> bytesWritten);
+    }
+
+    public static final int HOURS_KEPT = 24;
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+
+    // bytes[subsystem][hour % HOURS_KEPT]
+    private static final long[][] bytes = new long[Subsystem.values().length][HOURS_KEPT];
+    private static long currentHour = -1;
+    private static volatile HourlyReportListener hourlyReportListener;
+
+    public static void setHourlyReportListener(HourlyReportListener listener) {
+        hourlyReportListener = listener;
+    }
+
+    // Logs the bytes written in each completed hour, call once MyLog is initialized
+    public static void reportHourlyToLog() {
+        setHourlyReportListener((hourStartMillis, bytesWritten) -> {
+            MyLog.Fields fields = MyLog.fields().put("hourStartMillis", hourStartMillis);
+            for (Map.Entry<Subsystem, Long> entry : bytesWritten.entrySet()) {
+                fields.put(entry.getKey().name(), entry.getValue());
+            }
+            MyLog.i(TAG, "Bytes written last hour", fields);
+        });
+    }
+
+    public static void recordWrite(Subsystem subsystem, long byteCount) {
+        if (byteCount <= 0) {
+            return;
+        }
+        long hour = System.currentTimeMillis() / HOUR_MILLIS;
+        Map<Subsystem, Long> completedHour = null;
+        long completedHourStartMillis = 0;
+        synchronized (bytes) {
+            if (hour != currentHour) {
+                if (currentHour >= 0) {
+                    completedHour = hourTotals(currentHour);
+                    completedHourStartMillis = currentHour * HOUR_MILLIS;
+                }
+                // Clear the slots of the hours without writes since the last write
+                long clearFrom = currentHour < 0 ? hour : Math.max(currentHour + 1, hour - HOURS_KEPT + 1);
+                for (long h = clearFrom; h <= hour; h++) {
+                    for (long[] subsystemBytes : bytes) {
+                        subsystemBytes[(int) (h % HOURS_KEPT)] = 0;
+                    }
+                }
+                currentHour = hour;
+            }
+            bytes[subsystem.ordinal()][(int) (hour % HOURS_KEPT)] += byteCount;
+        }
+        HourlyReportListener listener = hourlyReportListener;
+        if (completedHour != null && listener != null) {
+            listener.onHourCompleted(completedHourStartMillis, completedHour);
+        }
+    }
+
+    public static long bytesWrittenThisHour(Subsystem subsystem) {
+        long hour = System.currentTimeMillis() / HOUR_MILLIS;
+        synchronized (bytes) {
+            return hour == currentHour ? bytes[subsystem.ordinal()][(int) (hour % HOURS_KEPT)] : 0;
+        }
+    }
+
+    // Bytes written per subsystem in each of the last HOURS_KEPT hours, oldest hour first
+    public static Map<Subsystem, long[]> snapshot() {
+        long hour = System.currentTimeMillis() / HOUR_MILLIS;
+        Map<Subsystem, long[]> snapshot = new EnumMap<>(Subsystem.class);
+        synchronized (bytes) {
+            for (Subsystem subsystem : Subsystem.values()) {
+                long[] hours = new long[HOURS_KEPT];
+                for (int i = 0; i < HOURS_KEPT; i++) {
+                    long h = hour - HOURS_KEPT + 1 + i;
+                    // Slots of hours after the last write still hold counts from a day earlier
+                    hours[i] = h <= currentHour && h > currentHour - HOURS_KEPT ?
+                            bytes[subsystem.ordinal()][(int) (h % HOURS_KEPT)] : 0;
+                }
+                snapshot.put(subsystem, hours);
+            }
+        }
+        return snapshot;
+    }
+
+    private static Map<Subsystem, Long> hourTotals(long hour) {
+        Map<Subsystem, Long> totals = new EnumMap<>(Subsystem.class);
+        for (Subsystem subsystem : Subsystem.values()) {
+            totals.put(subsystem, bytes[subsystem.ordinal()][(int) (hour % HOURS_KEPT)]);
+        }
+        return totals;
+    }
+}
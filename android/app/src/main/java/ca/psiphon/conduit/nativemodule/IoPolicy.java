@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule;
+
+import android.app.ActivityManager;
+import android.app.UiModeManager;
+import android.content.Context;
+import android.content.res.Configuration;
+
+// How eagerly non-critical data is written to flash.
+//
+// IMMEDIATE writes every app log record as it arrives and has tunnel-core sync its notice file on
+// every notice. BATCHED, meant for devices with small, slow flash that run around the clock, buffers
+// app log records and writes them at most logFlushDelayMillis after the first buffered record, so
+// that at most that window of info records is lost if the process dies; warnings and errors are
+// written right away along with anything buffered before them. It also has tunnel-core sync its
+// notice file less often.
+//
+// BATCHED_CAPPED also caps the info records persisted per hour, and drops the ones over the cap for
+// the rest of the hour; they are only kept in the recent logs in memory. It loses logs for good, so it
+// is never a default and only applies when set explicitly.
+//
+// The mode can be overridden with ConduitModule.setIoMode(), which stores it in the conduit parameters
+// so that the app process, which writes the app logs, and the :ConduitService process, which
+// configures tunnel-core, agree on it.
+public record IoPolicy(
+        Mode mode,
+        long logFlushDelayMillis,
+        int logBufferBytes,
+        int noticeSyncFrequency,
+        long appLogBytesPerHourCap) {
+    public enum Mode {
+        IMMEDIATE,
+        BATCHED,
+        BATCHED_CAPPED
+    }
+
+    private static final IoPolicy IMMEDIATE = new IoPolicy(Mode.IMMEDIATE, 0, 0, 0, 0);
+    private static final IoPolicy BATCHED = new IoPolicy(Mode.BATCHED, 5000, 16 * 1024, 1000, 0);
+    private static final IoPolicy BATCHED_CAPPED =
+            new IoPolicy(Mode.BATCHED_CAPPED, 5000, 16 * 1024, 1000, Constants.QUARTER_MB);
+
+    public static IoPolicy forMode(Mode mode) {
+        return switch (mode) {
+            case IMMEDIATE -> IMMEDIATE;
+            case BATCHED -> BATCHED;
+            case BATCHED_CAPPED -> BATCHED_CAPPED;
+        };
+    }
+
+    // Returns the policy set in the stored parameters, or the default for the device: BATCHED on TVs
+    // and low RAM devices. Reads through ParameterStore, so it sees a mode set from either process.
+    public static IoPolicy load(Context context) {
+        return forParameters(context, ConduitServiceParameters.load(context));
+    }
+
+    // Returns the policy set in the parameters, which may be null, or the default for the device
+    public static IoPolicy forParameters(Context context, ConduitServiceParameters parameters) {
+        String ioMode = parameters == null ? null : parameters.ioMode();
+        if (ioMode != null && isValidMode(ioMode)) {
+            return forMode(Mode.valueOf(ioMode));
+        }
+        // No override, or a mode stored by another version
+        return forMode(defaultMode(context));
+    }
+
+    public static boolean isValidMode(String ioMode) {
+        for (Mode mode : Mode.values()) {
+            if (mode.name().equals(ioMode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Mode defaultMode(Context context) {
+        UiModeManager uiModeManager = (UiModeManager) context.getSystemService(Context.UI_MODE_SERVICE);
+        if (uiModeManager != null &&
+                uiModeManager.getCurrentModeType() == Configuration.UI_MODE_TYPE_TELEVISION) {
+            return Mode.BATCHED;
+        }
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager != null && activityManager.isLowRamDevice()) {
+            return Mode.BATCHED;
+        }
+        return Mode.IMMEDIATE;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import java.util.Calendar;
+
+import ca.psiphon.conduit.nativemodule.logging.MyLog;
+
+// Selects the parameter profile for the class of the default network, and accounts the bytes relayed
+// on each class per local day so that the metered daily allowance is enforced from what was relayed
+// on metered networks only.
+//
+// The network class is tracked with a default network callback. A change is only acted on once the
+// class has been stable for SWITCH_DEBOUNCE_MILLIS, so that a phone hopping between Wi-Fi and cellular
+// does not restart tunnel core on every hop. Bytes are attributed to the class in effect when tunnel
+// core reports them.
+//
+// The local day is checked whenever bytes are recorded or sharing is evaluated, so the allowance resets
+// even if the midnight timer is late: handler delays count uptime, which stops in deep sleep. The timer
+// is only a wake-up to resume a paused in-proxy at midnight.
+//
+// Callbacks from the system are posted to the handler passed to the constructor, and all methods
+// except apply() must be called on its thread.
+class NetworkProfileManager {
+    private static final String TAG = NetworkProfileManager.class.getSimpleName();
+    private static final String PREFS_NAME = "NetworkProfilePrefs";
+    private static final String DAY_KEY = "day";
+    private static final String UNMETERED_BYTES_KEY = "unmeteredBytes";
+    private static final String METERED_BYTES_KEY = "meteredBytes";
+
+    private static final long SWITCH_DEBOUNCE_MILLIS = 30 * 1000;
+    // Counters are persisted at most this often, and when the in-proxy stops
+    private static final long PERSIST_INTERVAL_MILLIS = 60 * 1000;
+
+    enum Profile {
+        UNMETERED,
+        METERED
+    }
+
+    interface Listener {
+        // Called when the profile in effect changes, when the metered allowance runs out, and when a new
+        // day resets the allowance
+        void onNetworkProfileChanged(Profile profile, String reason);
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final Listener listener;
+    private final Runnable applyPendingProfileRunnable = this::applyPendingProfile;
+    private final Runnable newDayRunnable = this::onNewDay;
+
+    // Profile in effect, read by the tunnel thread through apply()
+    private volatile Profile profile = Profile.UNMETERED;
+    // Latest class reported by the system, applied once stable
+    private Profile pendingProfile = Profile.UNMETERED;
+    private boolean started = false;
+
+    // Bytes relayed today per profile
+    private long day;
+    private long unmeteredBytes;
+    private long meteredBytes;
+    private long lastPersistMillis;
+    private boolean allowanceExhaustedNotified = false;
+
+    private final ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(@NonNull Network network, @NonNull NetworkCapabilities capabilities) {
+            Profile reported = capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED) ?
+                    Profile.UNMETERED : Profile.METERED;
+            handler.post(() -> onNetworkClassReported(reported));
+        }
+    };
+
+    NetworkProfileManager(Context context, Handler handler, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    // Starts tracking the default network, called when the in-proxy starts. The profile of the current
+    // network applies right away since the tunnel has not read its config yet.
+    void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        loadCounters();
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager != null) {
+            Profile current = connectivityManager.isActiveNetworkMetered() ? Profile.METERED : Profile.UNMETERED;
+            profile = current;
+            pendingProfile = current;
+            connectivityManager.registerDefaultNetworkCallback(networkCallback);
+        }
+        scheduleNewDay();
+        MyLog.i(TAG, "Network profile", MyLog.fields()
+                .put("profile", profile)
+                .put("unmeteredBytesToday", unmeteredBytes)
+                .put("meteredBytesToday", meteredBytes));
+    }
+
+    // Stops tracking, called when the in-proxy is stopped for good. It is not called while the in-proxy
+    // is paused by the profile, so that a network change or a new day can resume it.
+    void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        handler.removeCallbacks(applyPendingProfileRunnable);
+        handler.removeCallbacks(newDayRunnable);
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager != null) {
+            connectivityManager.unregisterNetworkCallback(networkCallback);
+        }
+        persistCounters();
+    }
+
+    Profile profile() {
+        return profile;
+    }
+
+    // Returns false if the parameters do not allow sharing on the current network: the metered profile
+    // shares with no clients, or its daily allowance is used up
+    boolean sharingAllowed(ConduitServiceParameters parameters) {
+        if (started && rollOverDayIfNeeded()) {
+            scheduleNewDay();
+        }
+        if (profile != Profile.METERED || !parameters.hasMeteredProfile()) {
+            return true;
+        }
+        if (parameters.meteredMaxClients() == 0) {
+            return false;
+        }
+        Long allowance = parameters.meteredDailyBytes();
+        return allowance == null || meteredBytes < allowance;
+    }
+
+    // Returns the parameters for the current profile. Called by the tunnel on its own thread when it
+    // reads its config.
+    ConduitServiceParameters apply(ConduitServiceParameters parameters) {
+        if (profile != Profile.METERED || !parameters.hasMeteredProfile() || parameters.meteredMaxClients() == 0) {
+            return parameters;
+        }
+        return parameters.forMeteredNetwork();
+    }
+
+    // Attributes relayed bytes to the current profile, and notifies the listener once the metered
+    // allowance is used up
+    void recordBytes(long bytes, ConduitServiceParameters parameters) {
+        if (!started || bytes <= 0) {
+            return;
+        }
+        if (rollOverDayIfNeeded()) {
+            scheduleNewDay();
+            listener.onNetworkProfileChanged(profile, "new day, metered allowance reset");
+        }
+        if (profile == Profile.METERED) {
+            meteredBytes += bytes;
+        } else {
+            unmeteredBytes += bytes;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastPersistMillis >= PERSIST_INTERVAL_MILLIS) {
+            persistCounters();
+        }
+        if (parameters != null && !allowanceExhaustedNotified && !sharingAllowed(parameters)) {
+            allowanceExhaustedNotified = true;
+            persistCounters();
+            listener.onNetworkProfileChanged(profile, "metered daily allowance of " +
+                    parameters.meteredDailyBytes() + " bytes used up");
+        }
+    }
+
+    private void onNetworkClassReported(Profile reported) {
+        if (!started || reported == pendingProfile) {
+            return;
+        }
+        pendingProfile = reported;
+        handler.removeCallbacks(applyPendingProfileRunnable);
+        if (reported != profile) {
+            handler.postDelayed(applyPendingProfileRunnable, SWITCH_DEBOUNCE_MILLIS);
+        }
+    }
+
+    private void applyPendingProfile() {
+        if (!started || pendingProfile == profile) {
+            return;
+        }
+        Profile previous = profile;
+        profile = pendingProfile;
+        allowanceExhaustedNotified = false;
+        listener.onNetworkProfileChanged(profile, "default network changed from " + previous + " to " + profile);
+    }
+
+    private void onNewDay() {
+        if (!started) {
+            return;
+        }
+        // The timer may fire late or, after a time zone change, early; the day is what decides
+        boolean rolledOver = rollOverDayIfNeeded();
+        scheduleNewDay();
+        if (rolledOver) {
+            listener.onNetworkProfileChanged(profile, "new day, metered allowance reset");
+        }
+    }
+
+    // Resets the counters if the local day has changed since they were last reset. Returns true if
+    // they were reset.
+    private boolean rollOverDayIfNeeded() {
+        long today = today();
+        if (today == day) {
+            return false;
+        }
+        MyLog.i(TAG, "Bytes relayed per network profile", MyLog.fields()
+                .put("day", day)
+                .put("unmeteredBytes", unmeteredBytes)
+                .put("meteredBytes", meteredBytes));
+        day = today;
+        unmeteredBytes = 0;
+        meteredBytes = 0;
+        allowanceExhaustedNotified = false;
+        persistCounters();
+        return true;
+    }
+
+    private void scheduleNewDay() {
+        Calendar midnight = Calendar.getInstance();
+        midnight.add(Calendar.DAY_OF_YEAR, 1);
+        midnight.set(Calendar.HOUR_OF_DAY, 0);
+        midnight.set(Calendar.MINUTE, 0);
+        midnight.set(Calendar.SECOND, 0);
+        midnight.set(Calendar.MILLISECOND, 0);
+        handler.removeCallbacks(newDayRunnable);
+        handler.postDelayed(newDayRunnable, midnight.getTimeInMillis() - System.currentTimeMillis());
+    }
+
+    // Local day as yyyymmdd
+    private static long today() {
+        Calendar calendar = Calendar.getInstance();
+        return calendar.get(Calendar.YEAR) * 10000L + (calendar.get(Calendar.MONTH) + 1) * 100L +
+                calendar.get(Calendar.DAY_OF_MONTH);
+    }
+
+    private void loadCounters() {
+        SharedPreferences preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        day = today();
+        if (preferences.getLong(DAY_KEY, 0) == day) {
+            unmeteredBytes = preferences.getLong(UNMETERED_BYTES_KEY, 0);
+            meteredBytes = preferences.getLong(METERED_BYTES_KEY, 0);
+        } else {
+            unmeteredBytes = 0;
+            meteredBytes = 0;
+        }
+        allowanceExhaustedNotified = false;
+    }
+
+    private void persistCounters() {
+        lastPersistMillis = SystemClock.elapsedRealtime();
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putLong(DAY_KEY, day)
+                .putLong(UNMETERED_BYTES_KEY, unmeteredBytes)
+                .putLong(METERED_BYTES_KEY, meteredBytes)
+                .apply();
+    }
+}
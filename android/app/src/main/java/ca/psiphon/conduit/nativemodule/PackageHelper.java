@@ -33,7 +33,7 @@ import ca.psiphon.conduit.nativemodule.logging.MyLog;
 public class PackageHelper {
 
     private static final String TAG = PackageHelper.class.getSimpleName();
-    private static final String SIGNATURES_JSON_FILE = "trusted_signatures.json";
+    public static final String SIGNATURES_JSON_FILE = "trusted_signatures.json";
 
     // Unmodifiable map of trusted packages with their corresponding sets of SHA-256 signature hashes
     private static final Map<String, Set<String>> TRUSTED_PACKAGES;
@@ -64,47 +64,58 @@ public class PackageHelper {
 
     private static final ConcurrentHashMap<String, Set<String>> RUNTIME_TRUSTED_PACKAGES = new ConcurrentHashMap<>();
 
+    // Built-in and runtime trusted signatures merged per package, rebuilt when the runtime
+    // signatures are configured so that lookups do not allocate
+    private static volatile Map<String, Set<String>> expectedSignatures = TRUSTED_PACKAGES;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     // Get the expected signature for a package
     @NonNull
     public static Set<String> getExpectedSignaturesForPackage(String packageName) {
-        Set<String> signatures = new HashSet<>();
-        Set<String> trustedSigs = TRUSTED_PACKAGES.get(packageName);
-        if (trustedSigs != null) {
-            signatures.addAll(trustedSigs);
-        }
-        Set<String> runtimeSigs = RUNTIME_TRUSTED_PACKAGES.get(packageName);
-        if (runtimeSigs != null) {
-            signatures.addAll(runtimeSigs);
-        }
-        return Collections.unmodifiableSet(signatures);
+        Set<String> signatures = expectedSignatures.get(packageName);
+        return signatures != null ? signatures : Collections.emptySet();
     }
 
     // Verify if a package is trusted
     public static boolean verifyTrustedPackage(PackageManager packageManager, String packageName) {
+        PackageInfo packageInfo = getSigningPackageInfo(packageManager, packageName);
+        if (packageInfo == null) {
+            MyLog.w(TAG, "Verification failed for package " + packageName + ", package not found");
+            return false;
+        }
+        return verifyTrustedPackage(packageInfo);
+    }
+
+    // Verify if a package is trusted, the package info must hold its signatures, see getSigningPackageInfo()
+    public static boolean verifyTrustedPackage(PackageInfo packageInfo) {
+        String packageName = packageInfo.packageName;
         Set<String> expectedSignatures = getExpectedSignaturesForPackage(packageName);
         if (expectedSignatures.isEmpty()) {
             MyLog.w(TAG, "No trusted signatures found for package " + packageName);
             return false;
         }
 
+        String actualSignature = getPackageSignature(packageInfo);
+        if (actualSignature != null && expectedSignatures.contains(actualSignature)) {
+            return true;
+        } else {
+            MyLog.w(TAG, "Verification failed for package " + packageName + ", signature mismatch");
+            return false;
+        }
+    }
+
+    // Get the package info with the signing certificates of a package, or null if it is not installed
+    @Nullable
+    public static PackageInfo getSigningPackageInfo(PackageManager packageManager, String packageName) {
         try {
-            PackageInfo packageInfo;
             if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.P) {
-                packageInfo = packageManager.getPackageInfo(packageName, PackageManager.GET_SIGNING_CERTIFICATES);
-            } else {
-                packageInfo = packageManager.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
-            }
-
-            String actualSignature = getPackageSignature(packageInfo);
-            if (actualSignature != null && expectedSignatures.contains(actualSignature)) {
-                return true;
+                return packageManager.getPackageInfo(packageName, PackageManager.GET_SIGNING_CERTIFICATES);
             } else {
-                MyLog.w(TAG, "Verification failed for package " + packageName + ", signature mismatch");
-                return false;
+                return packageManager.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
             }
         } catch (PackageManager.NameNotFoundException e) {
-            MyLog.w(TAG, "Verification failed for package " + packageName + ", package not found");
-            return false;
+            return null;
         }
     }
 
@@ -123,11 +134,12 @@ public class PackageHelper {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
             byte[] digest = md.digest(cert);
 
-            StringBuilder sb = new StringBuilder();
+            char[] hex = new char[digest.length * 2];
             for (int i = 0; i < digest.length; i++) {
-                sb.append(String.format("%02X", digest[i]));
+                hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xF];
             }
-            return sb.toString();
+            return new String(hex);
         } catch (NoSuchAlgorithmException e) {
             return null;
         }
@@ -148,14 +160,16 @@ public class PackageHelper {
     public static synchronized void saveTrustedSignaturesToFile(Context context, Map<String, Set<String>> signatures) {
         File tempFile = new File(context.getFilesDir(), "trusted_signatures_temp.json");
         File finalFile = new File(context.getFilesDir(), SIGNATURES_JSON_FILE);
-        try (FileWriter writer = new FileWriter(tempFile)) {
-            // Convert the map to JSON object where values are JSON arrays
-            JSONObject jsonObject = new JSONObject();
-            for (Map.Entry<String, Set<String>> entry : signatures.entrySet()) {
-                jsonObject.put(entry.getKey(), new JSONArray(entry.getValue()));
+        try {
+            try (FileWriter writer = new FileWriter(tempFile)) {
+                // Convert the map to JSON object where values are JSON arrays
+                JSONObject jsonObject = new JSONObject();
+                for (Map.Entry<String, Set<String>> entry : signatures.entrySet()) {
+                    jsonObject.put(entry.getKey(), new JSONArray(entry.getValue()));
+                }
+                writer.write(jsonObject.toString());
             }
-            writer.write(jsonObject.toString());
-            // Rename temp file to final file atomically
+            // Rename temp file to final file atomically, once it is complete since readers watch for the rename
             if (!tempFile.renameTo(finalFile)) {
                 throw new IOException("Failed to rename temp file to final file.");
             }
@@ -199,7 +213,7 @@ public class PackageHelper {
 
     // Load runtime trusted signatures configuration
     // Make sure the map is immutable and the sets are unmodifiable
-    public static void configureRuntimeTrustedSignatures(Map<String, Set<String>> signatures) {
+    public static synchronized void configureRuntimeTrustedSignatures(Map<String, Set<String>> signatures) {
         RUNTIME_TRUSTED_PACKAGES.clear();
         for (Map.Entry<String, Set<String>> entry : signatures.entrySet()) {
             RUNTIME_TRUSTED_PACKAGES.put(
@@ -207,6 +221,18 @@ public class PackageHelper {
                     Collections.unmodifiableSet(new HashSet<>(entry.getValue()))
             );
         }
+
+        Map<String, Set<String>> merged = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : TRUSTED_PACKAGES.entrySet()) {
+            merged.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+        for (Map.Entry<String, Set<String>> entry : RUNTIME_TRUSTED_PACKAGES.entrySet()) {
+            merged.computeIfAbsent(entry.getKey(), k -> new HashSet<>()).addAll(entry.getValue());
+        }
+        for (Map.Entry<String, Set<String>> entry : merged.entrySet()) {
+            entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+        }
+        expectedSignatures = Collections.unmodifiableMap(merged);
         MyLog.i(TAG, "Loaded runtime signatures for " + signatures.size() + " packages");
     }
 }
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule;
+
+import android.content.Context;
+import android.os.FileObserver;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import ca.psiphon.conduit.nativemodule.logging.MyLog;
+
+// Versioned store of the conduit service parameters, shared by the app and the :ConduitService
+// processes through a single file.
+//
+// The file is a JSON object with the schema version, the parameters as a JSON string, and the CRC32
+// of that string. It is replaced atomically by writing a temporary file, unique to the writer so that
+// the two processes cannot clobber each other's, and renaming it over the store, so a reader sees
+// either the old or the new parameters. Each process caches the parameters in memory, so reads after
+// the first one cost a volatile read; a file observer drops the cache when the file is replaced,
+// including by the other process, and notifies the listeners if the parameters changed.
+//
+// store() updates the cache and returns right away; the file is written and synced on a background
+// thread, and a burst of stores is written once with the latest parameters.
+//
+// Schema version 1 is the SharedPreferences layout of earlier versions, which is migrated into the
+// store the first time it is read.
+public class ParameterStore {
+    private static final String TAG = ParameterStore.class.getSimpleName();
+    static final String FILE_NAME = "conduit_parameters.json";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final int SCHEMA_VERSION = 2;
+    private static final String SCHEMA_VERSION_KEY = "schemaVersion";
+    private static final String CHECKSUM_KEY = "checksum";
+    private static final String PARAMETERS_KEY = "parameters";
+
+    public interface Listener {
+        // Called when the stored parameters change, on the thread that stored them or, for changes made
+        // by the other process, on the file observer thread. Parameters are null if the store is empty
+        // or invalid.
+        void onParametersChanged(@Nullable ConduitServiceParameters parameters);
+    }
+
+    // Holder so that "not loaded" and "loaded, no parameters" can be told apart
+    private record Cached(ConduitServiceParameters parameters) {
+    }
+
+    private static final Object lock = new Object();
+    private static volatile Cached cached;
+    // Strong reference, an observer stops watching once it is garbage collected
+    private static FileObserver fileObserver;
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Latest stored parameters not written to the file yet, guarded by lock
+    private static ConduitServiceParameters unwrittenParameters;
+    private static final ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+
+    public static void addListener(Context context, Listener listener) {
+        startObserving(context.getApplicationContext());
+        listeners.add(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // Returns the stored parameters, or null if none are stored or the store is invalid
+    @Nullable
+    public static ConduitServiceParameters load(Context context) {
+        Cached current = cached;
+        if (current != null) {
+            return current.parameters();
+        }
+        synchronized (lock) {
+            if (cached == null) {
+                startObserving(context.getApplicationContext());
+                cached = new Cached(read(context));
+            }
+            return cached.parameters();
+        }
+    }
+
+    // Stores the parameters and returns true if they differ from the stored ones. The file is written
+    // in the background.
+    public static boolean store(Context context, ConduitServiceParameters parameters) {
+        Context appContext = context.getApplicationContext();
+        synchronized (lock) {
+            if (parameters.equals(load(appContext))) {
+                return false;
+            }
+            cached = new Cached(parameters);
+            unwrittenParameters = parameters;
+        }
+        writeExecutor.execute(() -> writeUnwritten(appContext));
+        notifyListeners(parameters);
+        return true;
+    }
+
+    // Writes the latest stored parameters, if a previous run has not written them already
+    private static void writeUnwritten(Context context) {
+        ConduitServiceParameters parameters;
+        synchronized (lock) {
+            parameters = unwrittenParameters;
+        }
+        if (parameters == null) {
+            return;
+        }
+        try {
+            write(context, parameters);
+        } catch (IOException | JSONException e) {
+            // The parameters stay cached, and are written with the next store
+            MyLog.e(TAG, "Failed to store parameters: " + e);
+        }
+        synchronized (lock) {
+            if (unwrittenParameters == parameters) {
+                unwrittenParameters = null;
+            }
+        }
+    }
+
+    private static void notifyListeners(ConduitServiceParameters parameters) {
+        for (Listener listener : listeners) {
+            listener.onParametersChanged(parameters);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void startObserving(Context context) {
+        synchronized (lock) {
+            if (fileObserver != null) {
+                return;
+            }
+            // The File constructor needs API 29
+            fileObserver = new FileObserver(context.getFilesDir().getPath(),
+                    FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE | FileObserver.DELETE) {
+                @Override
+                public void onEvent(int event, @Nullable String path) {
+                    if (FILE_NAME.equals(path)) {
+                        onFileChanged(context);
+                    }
+                }
+            };
+            fileObserver.startWatching();
+        }
+    }
+
+    private static void onFileChanged(Context context) {
+        ConduitServiceParameters previous;
+        ConduitServiceParameters current;
+        synchronized (lock) {
+            // The cache holds parameters stored by this process that are newer than the file, which
+            // is about to be replaced with them
+            if (unwrittenParameters != null) {
+                return;
+            }
+            Cached previousCached = cached;
+            cached = null;
+            current = load(context);
+            // Stores made by this process have already updated the cache and notified
+            if (previousCached != null && Objects.equals(previousCached.parameters(), current)) {
+                return;
+            }
+            previous = previousCached == null ? null : previousCached.parameters();
+        }
+        MyLog.i(TAG, "Parameters changed by another process" + (previous == null || current == null ? "" :
+                ": " + ConduitServiceParametersChange.between(previous, current).changedFields()));
+        notifyListeners(current);
+    }
+
+    private static ConduitServiceParameters read(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.exists()) {
+            return migrateFromSharedPreferences(context);
+        }
+        try {
+            JSONObject envelope = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            int schemaVersion = envelope.getInt(SCHEMA_VERSION_KEY);
+            if (schemaVersion != SCHEMA_VERSION) {
+                MyLog.e(TAG, "Unsupported parameters schema version: " + schemaVersion);
+                return null;
+            }
+            String parametersJson = envelope.getString(PARAMETERS_KEY);
+            if (envelope.getLong(CHECKSUM_KEY) != checksum(parametersJson)) {
+                MyLog.e(TAG, "Parameters checksum mismatch, ignoring stored parameters");
+                return null;
+            }
+            ConduitServiceParameters parameters = ConduitServiceParameters.fromJson(new JSONObject(parametersJson));
+            if (parameters == null) {
+                MyLog.e(TAG, "Stored parameters are invalid");
+            }
+            return parameters;
+        } catch (IOException | JSONException e) {
+            MyLog.e(TAG, "Failed to read parameters: " + e);
+            return null;
+        }
+    }
+
+    private static void write(Context context, ConduitServiceParameters parameters) throws IOException, JSONException {
+        String parametersJson = parameters.toJson().toString();
+        byte[] bytes = new JSONObject()
+                .put(SCHEMA_VERSION_KEY, SCHEMA_VERSION)
+                .put(CHECKSUM_KEY, checksum(parametersJson))
+                .put(PARAMETERS_KEY, parametersJson)
+                .toString()
+                .getBytes(StandardCharsets.UTF_8);
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        File tempFile = File.createTempFile(FILE_NAME, TEMP_FILE_SUFFIX, context.getFilesDir());
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+                outputStream.write(bytes);
+                outputStream.getFD().sync();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Failed to rename parameters file");
+            }
+        } finally {
+            // No-op once renamed
+            tempFile.delete();
+        }
+        IoAccounting.recordWrite(IoAccounting.Subsystem.PARAMETERS, bytes.length);
+    }
+
+    private static long checksum(String value) {
+        CRC32 crc = new CRC32();
+        crc.update(value.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    // Moves the parameters stored in SharedPreferences by earlier versions into the store
+    private static ConduitServiceParameters migrateFromSharedPreferences(Context context) {
+        ConduitServiceParameters parameters = ConduitServiceParameters.loadLegacy(context);
+        if (parameters == null) {
+            return null;
+        }
+        try {
+            write(context, parameters);
+            ConduitServiceParameters.clearLegacy(context);
+            MyLog.i(TAG, "Migrated parameters from shared preferences to schema version " + SCHEMA_VERSION);
+        } catch (IOException | JSONException e) {
+            // Keep the preferences, the migration is retried on the next start
+            MyLog.e(TAG, "Failed to migrate parameters from shared preferences: " + e);
+        }
+        return parameters;
+    }
+}
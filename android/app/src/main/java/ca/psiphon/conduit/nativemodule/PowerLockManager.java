@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import ca.psiphon.conduit.nativemodule.logging.MyLog;
+
+// Holds the locks allowed by the PowerLockPolicy while the in-proxy has connecting or connected
+// clients, and releases them once it has had none for the policy's hold-down period.
+//
+// To show what the locks cost and buy, it accounts the time they were held, and the bytes relayed
+// and time spent with clients with and without the locks. The totals are logged every hour while the
+// in-proxy runs and when it stops.
+//
+// All methods must be called on the thread of the handler passed to the constructor.
+class PowerLockManager {
+    private static final String TAG = PowerLockManager.class.getSimpleName();
+    private static final String LOCK_TAG = "Conduit:ProxyClients";
+    private static final long REPORT_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+    private final Handler handler;
+    private final Runnable releaseRunnable = () -> {
+        releaseScheduled = false;
+        release();
+    };
+    private final WifiManager.WifiLock wifiLock;
+    private final PowerManager.WakeLock wakeLock;
+
+    private PowerLockPolicy policy = null;
+    private boolean held = false;
+    private boolean releaseScheduled = false;
+    private long heldSinceMillis;
+    private long lastActivityMillis;
+    private boolean lastActivityHadClients = false;
+    private long lastReportMillis;
+
+    // Totals since start()
+    private long lockHeldMillis;
+    private long bytesWithLock;
+    private long clientMillisWithLock;
+    private long bytesWithoutLock;
+    private long clientMillisWithoutLock;
+
+    @SuppressWarnings("deprecation")
+    PowerLockManager(Context context, Handler handler) {
+        this.handler = handler;
+        WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        // WIFI_MODE_FULL_HIGH_PERF is deprecated in API 29 in favour of WIFI_MODE_FULL_LOW_LATENCY, which
+        // only applies while the app is in the foreground with the screen on, when power save is not the
+        // problem. HIGH_PERF still keeps Wi-Fi out of power save on the devices that honor it.
+        wifiLock = wifiManager != null ? wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, LOCK_TAG) : null;
+        if (wifiLock != null) {
+            wifiLock.setReferenceCounted(false);
+        }
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        wakeLock = powerManager != null ? powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOCK_TAG) : null;
+        if (wakeLock != null) {
+            wakeLock.setReferenceCounted(false);
+        }
+    }
+
+    // Called when the in-proxy starts, with the policy to apply until it stops
+    void start(PowerLockPolicy policy) {
+        this.policy = policy;
+        long now = SystemClock.elapsedRealtime();
+        lastActivityMillis = now;
+        lastActivityHadClients = false;
+        lastReportMillis = now;
+        lockHeldMillis = 0;
+        bytesWithLock = 0;
+        clientMillisWithLock = 0;
+        bytesWithoutLock = 0;
+        clientMillisWithoutLock = 0;
+        MyLog.i(TAG, "Power lock policy", MyLog.fields().put("mode", policy.mode()));
+    }
+
+    // Called when the policy is changed while the in-proxy runs. The locks held under the old policy are
+    // released right away, and the locks of the new one are taken on the next activity with clients.
+    void updatePolicy(PowerLockPolicy policy) {
+        if (this.policy == null || this.policy.equals(policy)) {
+            return;
+        }
+        cancelRelease();
+        release();
+        this.policy = policy;
+        MyLog.i(TAG, "Power lock policy changed", MyLog.fields().put("mode", policy.mode()));
+    }
+
+    // Called when the in-proxy stops, releases the locks right away
+    void stop() {
+        if (policy == null) {
+            return;
+        }
+        cancelRelease();
+        release();
+        report();
+        policy = null;
+    }
+
+    void onProxyActivity(int connectingClients, int connectedClients, long bytesUp, long bytesDown) {
+        if (policy == null) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        boolean hasClients = connectingClients > 0 || connectedClients > 0;
+
+        // Attribute the interval since the previous report and its bytes to the lock state during it
+        if (lastActivityHadClients || hasClients) {
+            long intervalMillis = now - lastActivityMillis;
+            if (held) {
+                clientMillisWithLock += intervalMillis;
+                bytesWithLock += bytesUp + bytesDown;
+            } else {
+                clientMillisWithoutLock += intervalMillis;
+                bytesWithoutLock += bytesUp + bytesDown;
+            }
+        }
+        lastActivityMillis = now;
+        lastActivityHadClients = hasClients;
+
+        if (hasClients) {
+            cancelRelease();
+            acquire();
+        } else if (held && !releaseScheduled) {
+            releaseScheduled = true;
+            handler.postDelayed(releaseRunnable, policy.holdDownMillis());
+        }
+
+        if (now - lastReportMillis >= REPORT_INTERVAL_MILLIS) {
+            report();
+            lastReportMillis = now;
+        }
+    }
+
+    private void acquire() {
+        if (held || !policy.holdsWifiLock()) {
+            return;
+        }
+        if (wifiLock != null) {
+            wifiLock.acquire();
+        }
+        if (policy.holdsWakeLock() && wakeLock != null) {
+            // The lock is released when the clients go away, the tag identifies it in battery stats
+            wakeLock.acquire();
+        }
+        held = true;
+        heldSinceMillis = SystemClock.elapsedRealtime();
+        MyLog.i(TAG, "Acquired power locks", MyLog.fields().put("mode", policy.mode()));
+    }
+
+    private void cancelRelease() {
+        handler.removeCallbacks(releaseRunnable);
+        releaseScheduled = false;
+    }
+
+    private void release() {
+        if (!held) {
+            return;
+        }
+        if (wifiLock != null && wifiLock.isHeld()) {
+            wifiLock.release();
+        }
+        if (wakeLock != null && wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+        held = false;
+        long heldMillis = SystemClock.elapsedRealtime() - heldSinceMillis;
+        lockHeldMillis += heldMillis;
+        MyLog.i(TAG, "Released power locks", MyLog.fields().put("heldMillis", heldMillis));
+    }
+
+    private void report() {
+        long currentlyHeldMillis = held ? SystemClock.elapsedRealtime() - heldSinceMillis : 0;
+        MyLog.i(TAG, "Power lock usage", MyLog.fields()
+                .put("mode", policy.mode())
+                .put("lockHeldMillis", lockHeldMillis + currentlyHeldMillis)
+                .put("bytesWithLock", bytesWithLock)
+                .put("clientMillisWithLock", clientMillisWithLock)
+                .put("bytesPerSecondWithLock", bytesPerSecond(bytesWithLock, clientMillisWithLock))
+                .put("bytesWithoutLock", bytesWithoutLock)
+                .put("clientMillisWithoutLock", clientMillisWithoutLock)
+                .put("bytesPerSecondWithoutLock", bytesPerSecond(bytesWithoutLock, clientMillisWithoutLock)));
+    }
+
+    private static long bytesPerSecond(long bytes, long millis) {
+        return millis > 0 ? bytes * 1000 / millis : 0;
+    }
+}
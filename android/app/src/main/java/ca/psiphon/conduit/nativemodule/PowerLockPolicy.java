@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule;
+
+// Which locks the in-proxy holds while it has clients, see PowerLockManager.
+//
+// OFF holds no locks and is the default. WIFI holds a high performance Wi-Fi lock so that Wi-Fi does
+// not enter power save with the screen off. WIFI_AND_WAKE also holds a partial wake lock so that the
+// CPU keeps relaying on devices that doze the foreground service. Locks are released holdDownMillis
+// after the last client goes away.
+//
+// The mode is opted in to with ConduitModule.setPowerLockMode(), which stores it in the conduit
+// parameters, and applies to a running in-proxy right away.
+public record PowerLockPolicy(Mode mode, long holdDownMillis) {
+    private static final long HOLD_DOWN_MILLIS = 2 * 60 * 1000;
+
+    public enum Mode {
+        OFF,
+        WIFI,
+        WIFI_AND_WAKE
+    }
+
+    public boolean holdsWifiLock() {
+        return mode != Mode.OFF;
+    }
+
+    public boolean holdsWakeLock() {
+        return mode == Mode.WIFI_AND_WAKE;
+    }
+
+    // Returns the policy set in the parameters, which may be null, OFF if none is set
+    public static PowerLockPolicy forParameters(ConduitServiceParameters parameters) {
+        String powerLockMode = parameters == null ? null : parameters.powerLockMode();
+        // An unknown mode stored by another version keeps the locks off
+        Mode mode = isValidMode(powerLockMode) ? Mode.valueOf(powerLockMode) : Mode.OFF;
+        return new PowerLockPolicy(mode, HOLD_DOWN_MILLIS);
+    }
+
+    public static boolean isValidMode(String powerLockMode) {
+        for (Mode mode : Mode.values()) {
+            if (mode.name().equals(powerLockMode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
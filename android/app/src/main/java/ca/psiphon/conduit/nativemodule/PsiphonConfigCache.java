@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import ca.psiphon.conduit.BuildConfig;
+import ca.psiphon.conduit.R;
+import ca.psiphon.conduit.nativemodule.logging.MyLog;
+
+// Caches the tunnel-core config assembled from R.raw.psiphon_config and the conduit parameters.
+// The base config is parsed at most once per process, and the last assembled config is kept in
+// memory and on disk keyed by a hash of everything it was assembled from, so that restarts with
+// unchanged parameters, including the first start after the process is recreated, skip assembly.
+public class PsiphonConfigCache {
+    private static final String TAG = PsiphonConfigCache.class.getSimpleName();
+    public static final String CACHE_FILE_NAME = "psiphon_config_cache.json";
+    private static final String CACHE_KEY_KEY = "key";
+    private static final String CACHE_CONFIG_KEY = "config";
+
+    public enum Source {
+        MEMORY,
+        DISK,
+        ASSEMBLED
+    }
+
+    public record Result(String config, Source source) {
+    }
+
+    private static final Object lock = new Object();
+    private static JSONObject baseConfig;
+    private static String[] baseConfigNames;
+    private static String baseConfigHash;
+    private static String cachedKey;
+    private static String cachedConfig;
+
+    // Returns a copy of the base config which the caller is free to modify
+    @NonNull
+    public static JSONObject getBaseConfig(Context context) throws IOException, JSONException {
+        synchronized (lock) {
+            if (baseConfig == null) {
+                String psiphonConfigString;
+                try {
+                    psiphonConfigString = Utils.readRawResourceFileAsString(context, R.raw.psiphon_config);
+                } catch (Resources.NotFoundException e) {
+                    throw new IOException(e);
+                }
+                JSONObject parsed = new JSONObject(psiphonConfigString);
+                JSONArray names = parsed.names();
+                String[] namesArray = new String[names == null ? 0 : names.length()];
+                for (int i = 0; i < namesArray.length; i++) {
+                    namesArray[i] = names.getString(i);
+                }
+                baseConfig = parsed;
+                baseConfigNames = namesArray;
+            }
+            // Shallow copy, the assembled config only replaces top level values
+            return new JSONObject(baseConfig, baseConfigNames);
+        }
+    }
+
+    // Returns a hash of the raw bundled base config, computed at most once per process
+    @NonNull
+    private static String getBaseConfigHash(Context context) throws IOException {
+        synchronized (lock) {
+            if (baseConfigHash == null) {
+                try {
+                    baseConfigHash = sha256Hex(Utils.readRawResourceFileAsBytes(context, R.raw.psiphon_config));
+                } catch (Resources.NotFoundException e) {
+                    throw new IOException(e);
+                }
+            }
+            return baseConfigHash;
+        }
+    }
+
+    // Returns the tunnel-core config for the given parameters, assembling it only if neither the
+    // in-memory nor the persisted cache holds a config for the same inputs
+    @NonNull
+    public static Result getConfig(Context context, @NonNull ConduitServiceParameters parameters)
+            throws IOException, JSONException {
+        File dataRootDirectory = ConduitModule.dataRootDirectory(context);
+        IoPolicy ioPolicy = IoPolicy.forParameters(context, parameters);
+        String key = cacheKey(parameters, ioPolicy, dataRootDirectory, getBaseConfigHash(context));
+
+        synchronized (lock) {
+            if (key.equals(cachedKey)) {
+                return new Result(cachedConfig, Source.MEMORY);
+            }
+
+            File cacheFile = new File(context.getNoBackupFilesDir(), CACHE_FILE_NAME);
+            String persistedConfig = readPersistedConfig(cacheFile, key);
+            if (persistedConfig != null) {
+                cachedKey = key;
+                cachedConfig = persistedConfig;
+                return new Result(persistedConfig, Source.DISK);
+            }
+
+            String config = assemble(context, parameters, ioPolicy, dataRootDirectory);
+            cachedKey = key;
+            cachedConfig = config;
+            writePersistedConfig(cacheFile, key, config);
+            return new Result(config, Source.ASSEMBLED);
+        }
+    }
+
+    @NonNull
+    private static String assemble(Context context, ConduitServiceParameters conduitServiceParameters,
+                                   IoPolicy ioPolicy, File dataRootDirectory) throws IOException, JSONException {
+        JSONObject psiphonConfig = getBaseConfig(context);
+
+        // Enable inproxy mode
+        psiphonConfig.put("InproxyEnableProxy", true);
+
+        // Disable tunnels
+        psiphonConfig.put("DisableTunnels", true);
+
+        // Disable local proxies
+        psiphonConfig.put("DisableLocalHTTPProxy", true);
+        psiphonConfig.put("DisableLocalSocksProxy", true);
+
+        // Disable bytes transferred notices
+        psiphonConfig.put("EmitBytesTransferred", false);
+
+        // Enable inproxy activity notices
+        psiphonConfig.put("EmitInproxyProxyActivity", true);
+
+        // Psiphon client version
+        psiphonConfig.put("ClientVersion", String.valueOf(BuildConfig.VERSION_CODE));
+
+        // Set up data root directory
+        psiphonConfig.put("DataRootDirectory", dataRootDirectory.getAbsolutePath());
+
+        // Set up notice files
+        psiphonConfig.put("UseNoticeFiles", new JSONObject()
+                .put("RotatingFileSize", Constants.HALF_MB)
+                .put("RotatingSyncFrequency", ioPolicy.noticeSyncFrequency()));
+
+        // Set inproxy parameters that we stored in shared preferences earlier
+        // We trust that the parameters are valid as they were validated when they were loaded
+        psiphonConfig.put("InproxyProxySessionPrivateKey", conduitServiceParameters.privateKey());
+
+        psiphonConfig.put("InproxyMaxClients", conduitServiceParameters.maxClients());
+
+        psiphonConfig.put("InproxyLimitUpstreamBytesPerSecond", conduitServiceParameters.limitUpstreamBytes());
+
+        psiphonConfig.put("InproxyLimitDownstreamBytesPerSecond", conduitServiceParameters.limitDownstreamBytes());
+
+        if (conduitServiceParameters.reducedStartTime() != null &&
+                conduitServiceParameters.reducedEndTime() != null &&
+                conduitServiceParameters.reducedMaxClients() != null &&
+                conduitServiceParameters.reducedLimitUpstreamBytes() != null &&
+                conduitServiceParameters.reducedLimitDownstreamBytes() != null) {
+            psiphonConfig.put("InproxyReducedStartTime", conduitServiceParameters.reducedStartTime());
+            psiphonConfig.put("InproxyReducedEndTime", conduitServiceParameters.reducedEndTime());
+            psiphonConfig.put("InproxyReducedMaxClients", conduitServiceParameters.reducedMaxClients());
+            psiphonConfig.put(
+                    "InproxyReducedLimitUpstreamBytesPerSecond",
+                    conduitServiceParameters.reducedLimitUpstreamBytes()
+            );
+            psiphonConfig.put(
+                    "InproxyReducedLimitDownstreamBytesPerSecond",
+                    conduitServiceParameters.reducedLimitDownstreamBytes()
+            );
+        }
+
+        // Convert back to json string
+        return psiphonConfig.toString();
+    }
+
+    // The key covers everything the assembled config depends on: the parameters, the I/O policy, the
+    // app version, the bundled base config, which may change without a version bump in development
+    // builds, and the data root directory
+    @NonNull
+    private static String cacheKey(ConduitServiceParameters parameters, IoPolicy ioPolicy, File dataRootDirectory,
+                                   String baseConfigHash) {
+        String input = parameters.toString() + '\n' + ioPolicy + '\n' + BuildConfig.VERSION_CODE + '\n' +
+                baseConfigHash + '\n' + dataRootDirectory.getAbsolutePath();
+        return sha256Hex(input.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NonNull
+    private static String sha256Hex(byte[] input) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(input);
+            StringBuilder hexString = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hexString.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hexString.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hexString.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is guaranteed to be available on all Android versions
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String readPersistedConfig(File cacheFile, String key) {
+        if (!cacheFile.exists()) {
+            return null;
+        }
+        try (FileInputStream inputStream = new FileInputStream(cacheFile)) {
+            byte[] bytes = new byte[(int) cacheFile.length()];
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = inputStream.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+            JSONObject persisted = new JSONObject(new String(bytes, 0, offset, StandardCharsets.UTF_8));
+            if (!key.equals(persisted.optString(CACHE_KEY_KEY))) {
+                return null;
+            }
+            String config = persisted.optString(CACHE_CONFIG_KEY, null);
+            return config == null || config.isEmpty() ? null : config;
+        } catch (IOException | JSONException e) {
+            MyLog.w(TAG, "Failed to read persisted psiphon config, ignoring: " + e);
+            return null;
+        }
+    }
+
+    private static void writePersistedConfig(File cacheFile, String key, String config) {
+        // Write to a temporary file and rename it so a reader never sees a partially written cache
+        File tempFile = new File(cacheFile.getParentFile(), CACHE_FILE_NAME + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+            String persisted = new JSONObject()
+                    .put(CACHE_KEY_KEY, key)
+                    .put(CACHE_CONFIG_KEY, config)
+                    .toString();
+            byte[] bytes = persisted.getBytes(StandardCharsets.UTF_8);
+            outputStream.write(bytes);
+            outputStream.getFD().sync();
+            IoAccounting.recordWrite(IoAccounting.Subsystem.CONFIG_CACHE, bytes.length);
+        } catch (IOException | JSONException e) {
+            MyLog.w(TAG, "Failed to persist psiphon config: " + e);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(cacheFile)) {
+            MyLog.w(TAG, "Failed to rename persisted psiphon config file");
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule;
+
+import android.content.Context;
+import android.os.Process;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import ca.psiphon.conduit.nativemodule.logging.MyLog;
+
+// Tells other processes whether ConduitService is alive without asking the ActivityManager.
+//
+// The service writes the pid of its process to a marker file when it is created and deletes the file
+// when it is destroyed. If the process is killed instead, the file is left behind, so a reader also
+// checks that the pid still belongs to the service process by reading its /proc cmdline, which is
+// readable for processes of the same UID. The result is cached along with the marker modification
+// time, so the marker and the cmdline are only read again when the marker changes; otherwise a check
+// costs at most two stats, of the marker and of the /proc entry of the pid.
+final class ServiceLiveness {
+    private static final String TAG = ServiceLiveness.class.getSimpleName();
+    private static final String MARKER_FILE_NAME = "conduit_service.alive";
+    private static final String SERVICE_PROCESS_SUFFIX = ":ConduitService";
+
+    // Modification time of the marker last read, and the pid it holds if that pid was verified to be
+    // the service process and was still alive at the last check, 0 otherwise
+    private static long cachedMarkerLastModified = 0;
+    private static int cachedPid = 0;
+
+    private ServiceLiveness() {
+    }
+
+    // Called by the service in onCreate
+    static void markAlive(Context context) {
+        File marker = markerFile(context);
+        File tempFile = new File(marker.getPath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+            outputStream.write(Integer.toString(Process.myPid()).getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            MyLog.e(TAG, "Failed to write liveness marker: " + e);
+            return;
+        }
+        if (!tempFile.renameTo(marker)) {
+            tempFile.delete();
+            MyLog.e(TAG, "Failed to rename liveness marker");
+        }
+    }
+
+    // Called by the service in onDestroy
+    static void markDead(Context context) {
+        markerFile(context).delete();
+    }
+
+    static synchronized boolean isAlive(Context context) {
+        File marker = markerFile(context);
+        long lastModified = marker.lastModified();
+        if (lastModified == 0) {
+            // No marker, the service was never started or was destroyed
+            return false;
+        }
+        if (lastModified == cachedMarkerLastModified) {
+            // Same marker as last checked, a dead pid stays dead and a live one is alive as long as its
+            // /proc entry exists. This misses the pid being reused between two checks, which takes the
+            // kernel cycling through all pids.
+            if (cachedPid != 0 && !new File("/proc/" + cachedPid).exists()) {
+                cachedPid = 0;
+            }
+            return cachedPid != 0;
+        }
+        int pid;
+        try {
+            String content = new String(Files.readAllBytes(marker.toPath()), StandardCharsets.US_ASCII);
+            pid = Integer.parseInt(content.trim());
+        } catch (IOException | NumberFormatException e) {
+            // Deleted since the stat or not fully written, read again on the next check
+            return false;
+        }
+        cachedMarkerLastModified = lastModified;
+        cachedPid = isServiceProcess(context, pid) ? pid : 0;
+        return cachedPid != 0;
+    }
+
+    private static boolean isServiceProcess(Context context, int pid) {
+        // The pid may have been reused by an unrelated process after the service process was killed
+        String expectedCmdline = context.getPackageName() + SERVICE_PROCESS_SUFFIX;
+        byte[] buffer = new byte[expectedCmdline.length() + 1];
+        try (FileInputStream inputStream = new FileInputStream("/proc/" + pid + "/cmdline")) {
+            int length = inputStream.read(buffer);
+            if (length < expectedCmdline.length()) {
+                return false;
+            }
+            // cmdline is NUL separated, the process name is the first entry
+            String processName = new String(buffer, 0, length, StandardCharsets.US_ASCII);
+            int end = processName.indexOf('\0');
+            return (end < 0 ? processName : processName.substring(0, end)).equals(expectedCmdline);
+        } catch (IOException e) {
+            // No such process
+            return false;
+        }
+    }
+
+    private static File markerFile(Context context) {
+        return new File(context.getNoBackupFilesDir(), MARKER_FILE_NAME);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.os.FileObserver;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.psiphon.conduit.nativemodule.logging.MyLog;
+
+// Caches whether a calling UID is trusted, so that repeated Binder calls from the same client cost a
+// map lookup instead of package manager queries and a certificate digest.
+//
+// A verdict records the UID's packages it was computed for. It is dropped when one of those packages,
+// or any package of the UID, is added, replaced or removed, and all verdicts are dropped when the
+// runtime trusted signatures file is replaced, after reloading it.
+//
+// Every invalidation also advances a generation, and a verdict is only used while the generation it
+// was computed in is current. A verdict computed from a package or signature state that changed while
+// it was being computed is therefore never served, even if it is stored after the invalidation ran.
+// Invalidations are rare, so dropping unrelated verdicts along with it costs little.
+class TrustVerdictCache {
+    private static final String TAG = TrustVerdictCache.class.getSimpleName();
+
+    private record Verdict(boolean trusted, Set<String> packages, long generation) {
+    }
+
+    private final Context context;
+    private final Map<Integer, Verdict> verdicts = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private FileObserver signaturesFileObserver;
+
+    private final BroadcastReceiver packageChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            generation.incrementAndGet();
+            int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (uid != -1) {
+                verdicts.remove(uid);
+            }
+            Uri data = intent.getData();
+            String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            if (packageName != null) {
+                verdicts.values().removeIf(verdict -> verdict.packages().contains(packageName));
+            }
+        }
+    };
+
+    TrustVerdictCache(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    // Loads the runtime trusted signatures and starts watching for package and signature changes
+    @SuppressWarnings("deprecation")
+    void start() {
+        PackageHelper.configureRuntimeTrustedSignatures(PackageHelper.readTrustedSignaturesFromFile(context));
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(packageChangeReceiver, filter);
+
+        // The signatures file is replaced by renaming a temporary file over it. The File constructor
+        // needs API 29.
+        signaturesFileObserver = new FileObserver(context.getFilesDir().getPath(),
+                FileObserver.MOVED_TO | FileObserver.DELETE) {
+            @Override
+            public void onEvent(int event, @Nullable String path) {
+                if (PackageHelper.SIGNATURES_JSON_FILE.equals(path)) {
+                    PackageHelper.configureRuntimeTrustedSignatures(
+                            PackageHelper.readTrustedSignaturesFromFile(context));
+                    generation.incrementAndGet();
+                    verdicts.clear();
+                }
+            }
+        };
+        signaturesFileObserver.startWatching();
+    }
+
+    void stop() {
+        context.unregisterReceiver(packageChangeReceiver);
+        if (signaturesFileObserver != null) {
+            signaturesFileObserver.stopWatching();
+            signaturesFileObserver = null;
+        }
+        generation.incrementAndGet();
+        verdicts.clear();
+    }
+
+    // Check if the UID is trusted
+    boolean isTrustedUid(int uid) {
+        long currentGeneration = generation.get();
+        Verdict verdict = verdicts.get(uid);
+        if (verdict == null || verdict.generation() != currentGeneration) {
+            verdict = computeVerdict(uid, currentGeneration);
+            verdicts.put(uid, verdict);
+        }
+        return verdict.trusted();
+    }
+
+    private Verdict computeVerdict(int uid, long generation) {
+        PackageManager packageManager = context.getPackageManager();
+        // Get the package names associated with the calling UID
+        String[] packages = packageManager.getPackagesForUid(uid);
+
+        if (packages == null || packages.length == 0) {
+            MyLog.e(TAG, "Calling UID has no associated packages, rejecting.");
+            return new Verdict(false, Set.of(), generation);
+        }
+
+        // It is possible to have multiple packages associated with the same UID, iterate through all
+        Set<String> verifiedPackages = new HashSet<>();
+        for (String packageName : packages) {
+            PackageInfo packageInfo = PackageHelper.getSigningPackageInfo(packageManager, packageName);
+            if (packageInfo == null) {
+                continue;
+            }
+            verifiedPackages.add(packageName);
+            if (PackageHelper.verifyTrustedPackage(packageInfo)) {
+                MyLog.i(TAG, "Trusted UID " + uid + ", package " + packageName + " version " +
+                        versionCode(packageInfo));
+                return new Verdict(true, verifiedPackages, generation);
+            }
+        }
+        // Reject the UID if none of the packages are trusted
+        MyLog.w(TAG, "None of the associated packages were trusted, rejecting UID.");
+        return new Verdict(false, verifiedPackages, generation);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long versionCode(PackageInfo packageInfo) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P ? packageInfo.getLongVersionCode() : packageInfo.versionCode;
+    }
+}
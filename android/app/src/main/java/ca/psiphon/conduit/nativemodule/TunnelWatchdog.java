@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+// Detects a running tunnel that has silently stopped working and asks for a recovery.
+//
+// The tunnel is considered stalled when tunnel core stops reporting proxy activity (no heartbeat), or
+// when it keeps reporting but makes no progress: no announcing workers, no clients and no bytes moved.
+// Time spent without network connectivity does not count towards either timeout, since nothing is
+// expected to happen then.
+//
+// The first recovery is a soft restart of tunnel core; if the tunnel stalls again before it has been
+// healthy for HEALTHY_RESET_MILLIS, the next recoveries are a full stop and start. Consecutive
+// recoveries are spaced by a backoff that doubles up to MAX_BACKOFF_MILLIS.
+//
+// All methods must be called on the thread of the handler passed to the constructor.
+class TunnelWatchdog {
+    private static final long CHECK_INTERVAL_MILLIS = 30 * 1000;
+    // No activity callback at all for this long
+    private static final long HEARTBEAT_TIMEOUT_MILLIS = 3 * 60 * 1000;
+    // Activity callbacks without any progress for this long
+    private static final long PROGRESS_TIMEOUT_MILLIS = 15 * 60 * 1000;
+    // Healthy time after a recovery after which the next stall starts again from a soft restart
+    private static final long HEALTHY_RESET_MILLIS = 60 * 60 * 1000;
+    private static final long INITIAL_BACKOFF_MILLIS = 60 * 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60 * 60 * 1000;
+
+    enum Recovery {
+        SOFT_RESTART,
+        FULL_RESTART
+    }
+
+    interface RecoveryHandler {
+        void onTunnelStalled(Recovery recovery, String reason);
+    }
+
+    private final Handler handler;
+    private final RecoveryHandler recoveryHandler;
+    private final Runnable checkRunnable = this::check;
+
+    private boolean started = false;
+    private boolean hasInternet = true;
+    // Elapsed realtime of the last activity callback and of the last sign of progress, both moved
+    // forward while there is no network so that time offline is not counted
+    private long lastHeartbeatMillis;
+    private long lastProgressMillis;
+    // Recoveries since the tunnel was last healthy for HEALTHY_RESET_MILLIS
+    private int recoveryCount = 0;
+    private long lastRecoveryMillis = 0;
+
+    TunnelWatchdog(Handler handler, RecoveryHandler recoveryHandler) {
+        this.handler = handler;
+        this.recoveryHandler = recoveryHandler;
+    }
+
+    // Starts watching, called when the tunnel is running after a start or a restart
+    void start() {
+        long now = SystemClock.elapsedRealtime();
+        lastHeartbeatMillis = now;
+        lastProgressMillis = now;
+        if (!started) {
+            started = true;
+            handler.postDelayed(checkRunnable, CHECK_INTERVAL_MILLIS);
+        }
+    }
+
+    // Stops watching while the tunnel is stopped or transitioning, the recovery history is kept
+    void stop() {
+        started = false;
+        handler.removeCallbacks(checkRunnable);
+    }
+
+    // Forgets earlier recoveries, called when the user starts or stops the in-proxy
+    void resetRecoveries() {
+        recoveryCount = 0;
+        lastRecoveryMillis = 0;
+    }
+
+    void onProxyActivity(int announcing, int connectingClients, int connectedClients, long bytesUp, long bytesDown) {
+        long now = SystemClock.elapsedRealtime();
+        lastHeartbeatMillis = now;
+        if (announcing > 0 || connectingClients > 0 || connectedClients > 0 || bytesUp > 0 || bytesDown > 0) {
+            lastProgressMillis = now;
+            if (recoveryCount > 0 && now - lastRecoveryMillis >= HEALTHY_RESET_MILLIS) {
+                recoveryCount = 0;
+            }
+        }
+    }
+
+    void onNetworkStateChanged(boolean hasInternet) {
+        if (this.hasInternet == hasInternet) {
+            return;
+        }
+        this.hasInternet = hasInternet;
+        if (hasInternet) {
+            // Restart both timeouts from the moment the network came back
+            long now = SystemClock.elapsedRealtime();
+            lastHeartbeatMillis = now;
+            lastProgressMillis = now;
+        }
+    }
+
+    private void check() {
+        if (!started) {
+            return;
+        }
+        handler.postDelayed(checkRunnable, CHECK_INTERVAL_MILLIS);
+        if (!hasInternet) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        String reason;
+        if (now - lastHeartbeatMillis >= HEARTBEAT_TIMEOUT_MILLIS) {
+            reason = "no proxy activity reported for " + (now - lastHeartbeatMillis) / 1000 + " s";
+        } else if (now - lastProgressMillis >= PROGRESS_TIMEOUT_MILLIS) {
+            reason = "no announcing workers, clients or traffic for " + (now - lastProgressMillis) / 1000 + " s";
+        } else {
+            return;
+        }
+
+        if (recoveryCount > 0 && now - lastRecoveryMillis < backoffMillis()) {
+            // Still backing off from the previous recovery
+            return;
+        }
+
+        Recovery recovery = recoveryCount == 0 ? Recovery.SOFT_RESTART : Recovery.FULL_RESTART;
+        recoveryCount++;
+        lastRecoveryMillis = now;
+        lastHeartbeatMillis = now;
+        lastProgressMillis = now;
+        recoveryHandler.onTunnelStalled(recovery, reason);
+    }
+
+    // Minimum time between the previous recovery and the next one
+    private long backoffMillis() {
+        int doublings = Math.min(recoveryCount - 1, 30);
+        return Math.min(INITIAL_BACKOFF_MILLIS << doublings, MAX_BACKOFF_MILLIS);
+    }
+}
@@ -31,7 +31,10 @@ import androidx.annotation.NonNull;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -49,6 +52,8 @@ import ca.psiphon.conduit.nativemodule.logging.MyLog;
 public class Utils {
     private static final String TAG = Utils.class.getSimpleName();
     public static final String SERVICE_RUNNING_FLAG_FILE = "service_running_flag_file";
+    // Must match the magic written by embedded-server-index.gradle
+    private static final int EMBEDDED_SERVER_INDEX_MAGIC = 0x43534931;
 
     /**
      * Reads the contents of a raw resource file as a string.
@@ -74,14 +79,39 @@ public class Utils {
     }
 
     /**
-     * Retrieves the embedded server entries as a string from a raw resource.
+     * Reads the contents of a raw resource file into a byte array in bulk, without line splitting.
+     *
+     * @param context    the application context.
+     * @param resourceId the resource identifier of the raw resource file to read.
+     * @return A byte array with the entire content of the file.
+     * @throws IOException                 if an I/O error occurs.
+     * @throws Resources.NotFoundException if the resource is not found.
+     */
+    static byte[] readRawResourceFileAsBytes(Context context, int resourceId) throws IOException, Resources.NotFoundException {
+        try (InputStream inputStream = context.getResources().openRawResource(resourceId)) {
+            // available() returns the full uncompressed length for resources, use it to size the buffer
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.max(inputStream.available(), 8192));
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return outputStream.toByteArray();
+        }
+    }
+
+    /**
+     * Retrieves the embedded server entries as a string from a raw resource. Tunnel core takes the
+     * entries as one string and imports all of them, so the resource is read in bulk rather than
+     * through the embedded server index, which only holds the regions.
      *
      * @param context the application context.
      * @return A string containing the embedded server entries.
      */
     static String getEmbeddedServers(Context context) {
         try {
-            return readRawResourceFileAsString(context, R.raw.embedded_server_entries);
+            return new String(readRawResourceFileAsBytes(context, R.raw.embedded_server_entries),
+                    StandardCharsets.UTF_8);
         } catch (IOException | Resources.NotFoundException e) {
             // Log the error and crash the app
             Log.e(ConduitModule.NAME, "Failed to read embedded server entries file", e);
@@ -119,11 +149,52 @@ public class Utils {
 
     /**
      * Extracts region data from embedded server entries.
+     * Uses the region index generated at build time by embedded-server-index.gradle and falls back to
+     * decoding every embedded server entry if the index is empty or unreadable.
      *
      * @param context the application context.
      * @return A list of regions extracted from the embedded servers.
      */
     static @NonNull List<String> egressRegionsFromEmbeddedServers(Context context) {
+        List<String> egressRegions = readEmbeddedServerIndexRegions(context);
+        if (egressRegions != null) {
+            return egressRegions;
+        }
+        return decodeEgressRegionsFromEmbeddedServers(context);
+    }
+
+    /**
+     * Reads the regions from the embedded server index raw resource, see embedded-server-index.gradle
+     * for the layout.
+     *
+     * @param context the application context.
+     * @return The sorted list of regions, or null if the index is empty or unreadable.
+     */
+    private static List<String> readEmbeddedServerIndexRegions(Context context) {
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(
+                context.getResources().openRawResource(R.raw.embedded_server_index)))) {
+            if (inputStream.readInt() != EMBEDDED_SERVER_INDEX_MAGIC) {
+                MyLog.w(TAG, "Embedded server index has unexpected magic, ignoring");
+                return null;
+            }
+            int entryCount = inputStream.readInt();
+            int regionCount = inputStream.readInt();
+            if (entryCount <= 0 || regionCount < 0 || regionCount > entryCount) {
+                // Generated without embedded server entries
+                return null;
+            }
+            List<String> egressRegions = new ArrayList<>(regionCount);
+            for (int i = 0; i < regionCount; i++) {
+                egressRegions.add(inputStream.readUTF());
+            }
+            return egressRegions;
+        } catch (IOException | Resources.NotFoundException e) {
+            MyLog.w(TAG, "Failed to read embedded server index: " + e);
+            return null;
+        }
+    }
+
+    private static @NonNull List<String> decodeEgressRegionsFromEmbeddedServers(Context context) {
         String embeddedServersString = getEmbeddedServers(context);
 
         // Split the server entry string into lines
@@ -168,18 +239,20 @@ public class Utils {
      * Decodes a hexadecimal string into its equivalent string representation.
      *
      * @param s the hexadecimal string to decode.
-     * @return The decoded string, or null if the input is malformed (not an even length).
+     * @return The decoded string, or null if the input is malformed (odd length or non-hex digits).
      */
     private static String hexDecode(String s) {
         int length = s.length();
         if (length % 2 != 0) return null;
 
-        StringBuilder decoded = new StringBuilder();
+        char[] decoded = new char[length / 2];
         for (int i = 0; i < length; i += 2) {
-            int decimal = Integer.parseInt(s.substring(i, i + 2), 16);
-            decoded.append((char) decimal);
+            int high = Character.digit(s.charAt(i), 16);
+            int low = Character.digit(s.charAt(i + 1), 16);
+            if (high < 0 || low < 0) return null;
+            decoded[i / 2] = (char) ((high << 4) | low);
         }
-        return decoded.toString();
+        return new String(decoded);
     }
 
     /**
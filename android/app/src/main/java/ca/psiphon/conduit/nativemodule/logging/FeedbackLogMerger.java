@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule.logging;
+
+import android.util.JsonWriter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the feedback log files into a single timestamp ordered JSON array, streaming.
+ *
+ * Each source is read line by line and only a bounded number of entries per source is held in
+ * memory at any time, so memory use does not depend on the size of the logs. The sources are
+ * already almost time ordered; the per source lookahead puts entries that are slightly out of
+ * order back in order. Entries with equal timestamps keep the order of the sources and, within a
+ * source, the order in the file.
+ */
+class FeedbackLogMerger implements Closeable {
+  private static final String TAG = FeedbackLogMerger.class.getSimpleName();
+
+  // Number of entries buffered per source
+  static final int LOOKAHEAD_ENTRIES = 64;
+
+  private static final Comparator<Entry> ENTRY_ORDER = (e1, e2) -> {
+    int result = Long.compare(e1.timestampMillis, e2.timestampMillis);
+    if (result != 0) {
+      return result;
+    }
+    result = Integer.compare(e1.source.index, e2.source.index);
+    if (result != 0) {
+      return result;
+    }
+    return Long.compare(e1.sequence, e2.sequence);
+  };
+
+  private final List<Source> sources = new ArrayList<>();
+  private final PriorityQueue<Entry> heap = new PriorityQueue<>(ENTRY_ORDER);
+  private long sourceBytes = 0;
+  private long maxLogBytes = Long.MAX_VALUE;
+  private int trimmedEntries = 0;
+
+  // Adds logs to merge, sources added first win timestamp ties. Takes ownership of the stream.
+  void addSource(LogFileUtils.FeedbackLogs logs, boolean isTunnelCoreLog) {
+    sources.add(new Source(new ArrayDeque<>(logs.inputStreams()), isTunnelCoreLog, sources.size()));
+    sourceBytes += logs.length();
+  }
+
+  // Sets the size budget of the merged logs. When the sources are larger, the oldest low severity
+  // entries are dropped until the excess is covered; warnings and errors are always kept. The source
+  // sizes are estimates, so low severity entries are also dropped once the entries written reach
+  // the budget.
+  void setMaxLogBytes(long maxLogBytes) {
+    this.maxLogBytes = maxLogBytes;
+  }
+
+  int getTrimmedEntries() {
+    return trimmedEntries;
+  }
+
+  // Writes the merged entries as a JSON array
+  void writeTo(JsonWriter writer) throws IOException {
+    for (Source source : sources) {
+      for (int i = 0; i < LOOKAHEAD_ENTRIES; i++) {
+        if (!offerNext(source)) {
+          break;
+        }
+      }
+    }
+
+    // Entries come out oldest first, so trimming while the excess is not covered drops the oldest
+    long bytesToTrim = sourceBytes - maxLogBytes;
+    long writtenBytes = 0;
+
+    writer.beginArray();
+    Entry entry;
+    while ((entry = heap.poll()) != null) {
+      if (!entry.isHighSeverity() && (bytesToTrim > 0 || writtenBytes + entry.lineBytes() > maxLogBytes)) {
+        bytesToTrim -= entry.lineBytes();
+        trimmedEntries++;
+      } else {
+        entry.writeTo(writer);
+        writtenBytes += entry.lineBytes();
+      }
+      // Keep the lookahead of the source the entry came from full
+      offerNext(entry.source);
+    }
+    writer.endArray();
+  }
+
+  // Reads the next valid entry of the source into the heap, returns false if the source is exhausted
+  private boolean offerNext(Source source) throws IOException {
+    Entry entry = source.next();
+    if (entry == null) {
+      return false;
+    }
+    heap.offer(entry);
+    return true;
+  }
+
+  @Override
+  public void close() {
+    for (Source source : sources) {
+      source.close();
+    }
+    sources.clear();
+    heap.clear();
+  }
+
+  // Writes an org.json value to the writer
+  static void writeJsonValue(JsonWriter writer, Object value) throws IOException {
+    if (value == null || value == JSONObject.NULL) {
+      writer.nullValue();
+    } else if (value instanceof JSONObject jsonObject) {
+      writer.beginObject();
+      Iterator<String> keys = jsonObject.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        writer.name(key);
+        writeJsonValue(writer, jsonObject.opt(key));
+      }
+      writer.endObject();
+    } else if (value instanceof JSONArray jsonArray) {
+      writer.beginArray();
+      for (int i = 0; i < jsonArray.length(); i++) {
+        writeJsonValue(writer, jsonArray.opt(i));
+      }
+      writer.endArray();
+    } else if (value instanceof Boolean booleanValue) {
+      writer.value(booleanValue);
+    } else if (value instanceof Number number) {
+      writer.value(number);
+    } else {
+      writer.value(value.toString());
+    }
+  }
+
+  private static final class Source {
+    // Files not opened yet, in order
+    final Deque<InputStream> pendingInputStreams;
+    final boolean isTunnelCoreLog;
+    final int index;
+    LogRecordCodec.LineReader reader;
+    long sequence;
+
+    Source(Deque<InputStream> pendingInputStreams, boolean isTunnelCoreLog, int index) {
+      this.pendingInputStreams = pendingInputStreams;
+      this.isTunnelCoreLog = isTunnelCoreLog;
+      this.index = index;
+    }
+
+    // Returns the next line of the current file, moving on to the next file at the end of one
+    private String readLine() throws IOException {
+      while (true) {
+        if (reader == null) {
+          InputStream inputStream = pendingInputStreams.poll();
+          if (inputStream == null) {
+            return null;
+          }
+          // App log files are rendered to JSON lines if they are in the binary format
+          reader = LogRecordCodec.openLineReader(inputStream);
+        }
+        String line = reader.readLine();
+        if (line != null) {
+          return line;
+        }
+        reader.close();
+        reader = null;
+      }
+    }
+
+    void close() {
+      try {
+        if (reader != null) {
+          reader.close();
+          reader = null;
+        }
+        for (InputStream inputStream : pendingInputStreams) {
+          inputStream.close();
+        }
+        pendingInputStreams.clear();
+      } catch (IOException e) {
+        MyLog.e(TAG, "Failed to close log source: " + e);
+      }
+    }
+
+    // Returns the next entry that parses, or null at the end of the file
+    Entry next() throws IOException {
+      String line;
+      while ((line = readLine()) != null) {
+        try {
+          // Parse each line as a JSON object
+          JSONObject inputJsonObject = new JSONObject(line);
+          String timestampStr = inputJsonObject.getString("timestamp");
+          long timestampMillis = LogUtils.parseRfc3339Timestamp(timestampStr).getTime();
+          if (!isTunnelCoreLog) {
+            // Validate the app log fields up front so that a bad line is skipped here rather than
+            // failing the output half way
+            inputJsonObject.getString("tag");
+            inputJsonObject.getString("message");
+            inputJsonObject.getString("level");
+          }
+          // Line length in chars, close enough to the byte length for budgeting
+          return new Entry(this, sequence++, timestampMillis, timestampStr, inputJsonObject, line.length() + 1);
+        } catch (JSONException | ParseException e) {
+          MyLog.e(TAG, "Failed to parse log line: " + line + ": " + e);
+        }
+      }
+      return null;
+    }
+  }
+
+  private record Entry(Source source, long sequence, long timestampMillis, String timestampStr,
+                       JSONObject inputJsonObject, int lineBytes) {
+    boolean isHighSeverity() {
+      if (source.isTunnelCoreLog) {
+        String noticeType = inputJsonObject.optString("noticeType");
+        return "Alert".equals(noticeType) || "Warning".equals(noticeType) || "Error".equals(noticeType);
+      }
+      String level = inputJsonObject.optString("level");
+      return "Warning".equals(level) || "Error".equals(level);
+    }
+
+    void writeTo(JsonWriter writer) throws IOException {
+      writer.beginObject();
+      writer.name("timestamp!!timestamp").value(timestampStr);
+      if (source.isTunnelCoreLog) {
+        writer.name("category").value("tunnel-core");
+        writer.name("data");
+        writeJsonValue(writer, inputJsonObject);
+      } else {
+        writer.name("category").value(inputJsonObject.optString("tag"));
+        writer.name("message").value(inputJsonObject.optString("message"));
+        writer.name("level").value(inputJsonObject.optString("level"));
+        JSONObject fields = inputJsonObject.optJSONObject("fields");
+        if (fields != null) {
+          writer.name("fields");
+          writeJsonValue(writer, fields);
+        }
+      }
+      writer.endObject();
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule.logging;
+
+import android.content.Context;
+
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import ca.psiphon.conduit.nativemodule.IoAccounting;
+
+/**
+ * Assembled feedback data persisted next to the feedback log files, so that upload retries reuse
+ * it instead of merging the logs again.
+ *
+ * File layout, big endian:
+ *   int    magic, 'CFP1'
+ *   int    uncompressed length of the feedback data
+ *   int    CRC32 of the uncompressed feedback data
+ *   bytes  UTF-8 feedback data, compressed with Deflater
+ */
+class FeedbackPayload {
+  private static final String TAG = FeedbackPayload.class.getSimpleName();
+  private static final int MAGIC = 0x43465031;
+  private static final int HEADER_LENGTH = 12;
+  static final String PAYLOAD_FILE_EXTENSION = ".payload";
+
+  interface Writer {
+    void writeTo(OutputStream outputStream) throws Exception;
+  }
+
+  static File payloadFile(Context context, String feedbackId) {
+    return new File(LogFileUtils.feedBackLogsDir(context),
+            LogFileUtils.FEEDBACK_DATA_PREFIX + feedbackId + PAYLOAD_FILE_EXTENSION);
+  }
+
+  /**
+   * Writes the payload produced by the writer to the file, replacing it atomically.
+   *
+   * @return The uncompressed length of the payload.
+   */
+  static int write(File file, Writer writer) throws Exception {
+    File tempFile = new File(file.getParentFile(), file.getName() + LogFileUtils.FEEDBACK_DATA_TEMP_FILE_EXTENSION);
+    try {
+      CRC32 crc = new CRC32();
+      CountingOutputStream countingOutputStream;
+      try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)) {
+        // Reserve the header, it is filled in once the length and the checksum are known
+        fileOutputStream.write(new byte[HEADER_LENGTH]);
+        OutputStream compressedOutputStream = new DeflaterOutputStream(new BufferedOutputStream(fileOutputStream));
+        countingOutputStream = new CountingOutputStream(new CheckedOutputStream(compressedOutputStream, crc));
+        try (OutputStream outputStream = countingOutputStream) {
+          writer.writeTo(outputStream);
+        }
+      }
+      if (countingOutputStream.getCount() > Integer.MAX_VALUE) {
+        throw new IOException("Feedback payload too large: " + countingOutputStream.getCount());
+      }
+      int length = (int) countingOutputStream.getCount();
+
+      try (RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw")) {
+        randomAccessFile.writeInt(MAGIC);
+        randomAccessFile.writeInt(length);
+        randomAccessFile.writeInt((int) crc.getValue());
+        randomAccessFile.getFD().sync();
+      }
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Failed to rename feedback payload file: " + file.getAbsolutePath());
+      }
+      IoAccounting.recordWrite(IoAccounting.Subsystem.FEEDBACK, file.length());
+      return length;
+    } finally {
+      if (tempFile.exists() && !tempFile.delete()) {
+        MyLog.e(TAG, "Failed to delete feedback payload temp file: " + tempFile.getAbsolutePath());
+      }
+    }
+  }
+
+  /**
+   * Reads and verifies the payload.
+   *
+   * @return The feedback data, or null if the file is missing, truncated or corrupt.
+   */
+  static String read(File file) {
+    if (!file.exists()) {
+      return null;
+    }
+    try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (inputStream.readInt() != MAGIC) {
+        MyLog.w(TAG, "Feedback payload has unexpected magic: " + file.getName());
+        return null;
+      }
+      int length = inputStream.readInt();
+      int expectedCrc = inputStream.readInt();
+      if (length < 0) {
+        MyLog.w(TAG, "Feedback payload has invalid length: " + file.getName());
+        return null;
+      }
+
+      byte[] bytes = new byte[length];
+      try (InputStream uncompressedInputStream = new InflaterInputStream(inputStream)) {
+        int offset = 0;
+        while (offset < length) {
+          int read = uncompressedInputStream.read(bytes, offset, length - offset);
+          if (read == -1) {
+            throw new EOFException();
+          }
+          offset += read;
+        }
+        if (uncompressedInputStream.read() != -1) {
+          MyLog.w(TAG, "Feedback payload is longer than its header states: " + file.getName());
+          return null;
+        }
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(bytes, 0, length);
+      if ((int) crc.getValue() != expectedCrc) {
+        MyLog.w(TAG, "Feedback payload checksum mismatch: " + file.getName());
+        return null;
+      }
+      return new String(bytes, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      MyLog.w(TAG, "Failed to read feedback payload " + file.getName() + ": " + e);
+      return null;
+    }
+  }
+}
@@ -23,7 +23,9 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.JsonWriter;
 
 import androidx.annotation.NonNull;
 import androidx.work.RxWorker;
@@ -33,22 +35,19 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.Locale;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.TimeZone;
-import java.util.TreeMap;
 
 import ca.psiphon.PsiphonTunnel;
-import ca.psiphon.conduit.R;
+import ca.psiphon.conduit.nativemodule.Constants;
+import ca.psiphon.conduit.nativemodule.IoAccounting;
+import ca.psiphon.conduit.nativemodule.PsiphonConfigCache;
 import ca.psiphon.conduit.nativemodule.Utils;
 import io.reactivex.Completable;
 import io.reactivex.Flowable;
@@ -57,6 +56,12 @@ import io.reactivex.Single;
 public class FeedbackWorker extends RxWorker {
   private static final String TAG = FeedbackWorker.class.getSimpleName();
   private static final int METADATA_VERSION = 2;
+  // Budget for the log files included in the feedback, the oldest low severity entries are
+  // trimmed first when the logs are larger
+  private static final long MAX_FEEDBACK_LOG_BYTES = Constants.ONE_MB;
+  // Unique work name of the feedback upload, and prefix of the tag that identifies its feedback
+  public static final String UNIQUE_WORK_NAME = "FeedbackUploadWork";
+  public static final String FEEDBACK_ID_TAG_PREFIX = "feedbackId: ";
 
   private final String feedbackId;
   private final long feedbackTimestamp;
@@ -96,8 +101,7 @@ public class FeedbackWorker extends RxWorker {
 
     return psiphonConfigJsonSingle()
             .flatMapCompletable(configJson -> {
-              String feedbackData = createFeedbackData(getApplicationContext(), configJson,
-                      feedbackId, feedbackTimestamp, inproxyId);
+              String feedbackData = loadOrCreateFeedbackData(getApplicationContext(), configJson);
               return sendFeedback(getApplicationContext(), configJson.toString(), feedbackData);
             })
             .andThen(Flowable.just(Result.success()))
@@ -116,10 +120,7 @@ public class FeedbackWorker extends RxWorker {
   private Single<JSONObject> psiphonConfigJsonSingle() {
     return Single.create(emitter -> {
       try {
-        String configString = Utils.readRawResourceFileAsString(getApplicationContext(),
-                R.raw.psiphon_config);
-
-        JSONObject configJson = new JSONObject(configString);
+        JSONObject configJson = PsiphonConfigCache.getBaseConfig(getApplicationContext());
 
         if (!emitter.isDisposed()) {
           emitter.onSuccess(configJson);
@@ -132,10 +133,38 @@ public class FeedbackWorker extends RxWorker {
     });
   }
 
-  private static @NonNull String createFeedbackData(Context context, JSONObject psiphonConfigJson,
+  // Returns the feedback data from the payload persisted by a previous attempt, or assembles and
+  // persists it if there is no valid payload yet
+  private @NonNull String loadOrCreateFeedbackData(Context context, JSONObject psiphonConfigJson) throws Exception {
+    File payloadFile = FeedbackPayload.payloadFile(context, feedbackId);
+    String feedbackData = FeedbackPayload.read(payloadFile);
+    if (feedbackData != null) {
+      MyLog.i(TAG, "Feedback " + feedbackId + " reusing persisted payload");
+      return feedbackData;
+    }
+
+    File feedbackDir = LogFileUtils.feedBackLogsDir(context);
+    if (!feedbackDir.exists()) {
+      feedbackDir.mkdirs();
+    }
+    long startMillis = SystemClock.elapsedRealtime();
+    int length = FeedbackPayload.write(payloadFile, outputStream ->
+            writeFeedbackData(context, psiphonConfigJson, feedbackId, feedbackTimestamp, inproxyId, outputStream));
+    MyLog.i(TAG, "Feedback " + feedbackId + " payload created in " + (SystemClock.elapsedRealtime() - startMillis) +
+            " ms, " + length + " bytes, " + payloadFile.length() + " bytes compressed");
+
+    feedbackData = FeedbackPayload.read(payloadFile);
+    if (feedbackData == null) {
+      throw new IOException("Failed to read back feedback payload " + feedbackId);
+    }
+    return feedbackData;
+  }
+
+  private static void writeFeedbackData(Context context, JSONObject psiphonConfigJson,
           String feedbackId,
           long feedbackTimestamp,
-          String inproxyId) throws JSONException, IOException, PackageManager.NameNotFoundException {
+          String inproxyId,
+          OutputStream outputStream) throws JSONException, IOException, PackageManager.NameNotFoundException {
     // Top level json object
     JSONObject feedbackJsonObject = new JSONObject();
 
@@ -192,6 +221,25 @@ public class FeedbackWorker extends RxWorker {
 
     applicationInfo.put("clientVersion", versionCodeString);
 
+    // Bytes this process wrote to flash per subsystem in each of the last hours, oldest first. The
+    // service process reports its own counters in the logs every hour.
+    JSONObject bytesWrittenPerHour = new JSONObject();
+    for (Map.Entry<IoAccounting.Subsystem, long[]> entry : IoAccounting.snapshot().entrySet()) {
+      bytesWrittenPerHour.put(entry.getKey().name(), new JSONArray(entry.getValue()));
+    }
+    applicationInfo.put("bytesWrittenPerHour", bytesWrittenPerHour);
+    // Log lines this process did not persist because of the rate limit, per tag
+    applicationInfo.put("rateLimitedLogLines", new JSONObject(MyLog.getSuppressedCountsByTag()));
+    // Bytes used by the files the app writes, against the storage budget
+    StorageBudgetManager.Usage storageUsage = StorageBudgetManager.getUsage(context);
+    JSONObject storageUsageBytes = new JSONObject();
+    for (Map.Entry<StorageBudgetManager.Category, Long> entry : storageUsage.bytesByCategory().entrySet()) {
+      storageUsageBytes.put(entry.getKey().name(), entry.getValue());
+    }
+    storageUsageBytes.put("total", storageUsage.totalBytes());
+    storageUsageBytes.put("budget", storageUsage.budgetBytes());
+    applicationInfo.put("storageUsageBytes", storageUsageBytes);
+
     // Add application info to the top level json object
     feedbackJsonObject.put("ApplicationInfo", applicationInfo);
 
@@ -208,78 +256,40 @@ public class FeedbackWorker extends RxWorker {
     // Add Psiphon information to the top level json object
     feedbackJsonObject.put("PsiphonInfo", psiphonInfo);
 
-    // Add combined logs
-    JSONArray combinedLogs = getCombinedLogsJsonArray(context, feedbackId);
-    feedbackJsonObject.put("Logs", combinedLogs);
-
-    return feedbackJsonObject.toString();
-  }
-
-  private static JSONArray getCombinedLogsJsonArray(Context context, String feedbackId) throws IOException {
-    // TreeMap to hold JSONObjects with timestamps as keys, automatically sorted by timestamp
-    // Note we are using a List to handle duplicate timestamps
-    TreeMap<Date, List<JSONObject>> sortedLogMap = new TreeMap<>();
-
-    // Read and add tunnel core logs
-    String tunnelCoreFeedbackFilePath = new File(LogFileUtils.feedBackLogsDir(context),
-            LogFileUtils.LOG_TUNNEL_CORE_PREFIX + feedbackId + LogFileUtils.LOG_FEEDBACK_FILE_EXTENSION).getAbsolutePath();
-    readLogsIntoMap(new File(tunnelCoreFeedbackFilePath), sortedLogMap, true);
-
-    // Read and add app logs
-    String appFeedbackFilePath = new File(LogFileUtils.feedBackLogsDir(context),
-            LogFileUtils.LOG_APP_PREFIX + feedbackId + LogFileUtils.LOG_FEEDBACK_FILE_EXTENSION).getAbsolutePath();
-    readLogsIntoMap(new File(appFeedbackFilePath), sortedLogMap, false);
-
-    // Convert the sorted map values to JSONArray
-    JSONArray sortedCombinedLogs = new JSONArray();
-    for (Map.Entry<Date, List<JSONObject>> entry : sortedLogMap.entrySet()) {
-      for (JSONObject logEntry : entry.getValue()) {
-        sortedCombinedLogs.put(logEntry);
+    // Stream the document with the combined logs so that the logs are never held in memory as
+    // parsed objects
+    JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)));
+    try (FeedbackLogMerger merger = new FeedbackLogMerger()) {
+      // The logs are read from the snapshot taken when the feedback was submitted. Tunnel core
+      // logs are added first so they come first on timestamp ties.
+      LogFileUtils.FeedbackLogs tunnelCoreLogs =
+              LogFileUtils.openFeedbackLogs(context, feedbackId, LogFileUtils.LOG_TUNNEL_CORE_PREFIX);
+      if (tunnelCoreLogs != null) {
+        merger.addSource(tunnelCoreLogs, true);
       }
-    }
-
-    return sortedCombinedLogs;
-  }
-
-  private static void readLogsIntoMap(File file, TreeMap<Date, List<JSONObject>> logMap, boolean isTunnelCoreLog) throws IOException {
-    if (!file.exists()) {
-      return;
-    }
-
-    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-      String line;
-      while ((line = reader.readLine()) != null) {
-        try {
-          // Parse each line as a JSON object
-          JSONObject inputJsonObject = new JSONObject(line);
-
-          JSONObject outputJsonObject = new JSONObject();
-          String timestampStr = inputJsonObject.getString("timestamp");
-
-          Date timestamp = LogUtils.parseRfc3339Timestamp(timestampStr);
-
-          if (isTunnelCoreLog) {
-            outputJsonObject.put("timestamp!!timestamp", timestampStr);
-            outputJsonObject.put("category", "tunnel-core");
-            outputJsonObject.put("data", inputJsonObject);
-          } else {
-            outputJsonObject.put("timestamp!!timestamp", timestampStr);
-            outputJsonObject.put("category", inputJsonObject.getString("tag"));
-            outputJsonObject.put("message", inputJsonObject.getString("message"));
-            outputJsonObject.put("level", inputJsonObject.getString("level"));
-          }
-
-          // Handle duplicate timestamps by adding to a list
-          List<JSONObject> logList = logMap.get(timestamp);
-          if (logList == null) {
-            logList = new ArrayList<>();
-            logMap.put(timestamp, logList);
-          }
-          logList.add(outputJsonObject);
-
-        } catch (JSONException | ParseException e) {
-          MyLog.e(TAG, "Failed to parse log line: " + line + ": " + e);
-        }
+      LogFileUtils.FeedbackLogs appLogs =
+              LogFileUtils.openFeedbackLogs(context, feedbackId, LogFileUtils.LOG_APP_PREFIX);
+      if (appLogs != null) {
+        merger.addSource(appLogs, false);
+      }
+      merger.setMaxLogBytes(MAX_FEEDBACK_LOG_BYTES);
+
+      writer.beginObject();
+      Iterator<String> keys = feedbackJsonObject.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        writer.name(key);
+        FeedbackLogMerger.writeJsonValue(writer, feedbackJsonObject.get(key));
+      }
+      // Add combined logs
+      writer.name("Logs");
+      merger.writeTo(writer);
+      writer.endObject();
+      writer.flush();
+
+      if (merger.getTrimmedEntries() > 0) {
+        MyLog.w(TAG, "Feedback " + feedbackId + " over the size budget, trimmed " +
+                merger.getTrimmedEntries() + " low severity log entries");
       }
     }
   }
@@ -19,174 +19,319 @@
 
 package ca.psiphon.conduit.nativemodule.logging;
 import android.content.Context;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
 
+import com.google.common.io.ByteStreams;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import ca.psiphon.conduit.nativemodule.ConduitModule;
+import ca.psiphon.conduit.nativemodule.IoAccounting;
 import psi.Psi;
 
 public class LogFileUtils {
   private static final String TAG = LogFileUtils.class.getSimpleName();
-  private static final String FEEDBACK_DIR = "feedback";
+  static final String FEEDBACK_DIR = "feedback";
   public static final String LOG_APP_PREFIX = "app.";
   public static final String LOG_TUNNEL_CORE_PREFIX = "tunnelcore.";
   public static final String LOG_FEEDBACK_FILE_EXTENSION = ".feedback";
+  public static final String FEEDBACK_DATA_PREFIX = "data.";
+  public static final String FEEDBACK_DATA_TEMP_FILE_EXTENSION = ".tmp";
+  private static final String FEEDBACK_SNAPSHOT_PREFIX = "snapshot.";
+  private static final String SNAPSHOT_MANIFEST_FILE_NAME = "manifest";
+  // Feedback includes the logs of this period before the snapshot, older lines are left out
+  private static final long FEEDBACK_LOG_WINDOW_MILLIS = TimeUnit.HOURS.toMillis(24);
+  // Size under which a binary search over a log file switches to scanning
+  private static final long SEARCH_SCAN_BYTES = 16 * 1024;
+
+
+  /**
+   * Captures a point-in-time snapshot of the app and tunnel core log files for feedback without
+   * copying or locking them. The snapshot directory holds hard links to the current log files and a
+   * manifest with the byte range of each file to include: from the first line in the last
+   * FEEDBACK_LOG_WINDOW_MILLIS, found with the app log time index or a binary search over the tunnel
+   * core notices, up to the length of the file at snapshot time. The writers only ever append to or
+   * rename the log files, so the recorded byte ranges stay unchanged after the snapshot even while
+   * logging continues. Files that cannot be linked are copied up to their recorded length instead.
+   */
+  public static void createFeedbackLogs(Context context, String feedbackId) {
+    long startMillis = SystemClock.elapsedRealtime();
+    // Include the app log records buffered under the batched I/O policy
+    LoggingContentProvider.flush(context);
+    File snapshotDir = feedbackSnapshotDir(context, feedbackId);
+    if (!snapshotDir.exists() && !snapshotDir.mkdirs()) {
+      MyLog.e(TAG, "Failed to create feedback snapshot directory " + feedbackId);
+      return;
+    }
 
+    long fromMillis = System.currentTimeMillis() - FEEDBACK_LOG_WINDOW_MILLIS;
+    StringBuilder manifest = new StringBuilder();
+    int linkedCount = snapshotLogFiles(snapshotDir, LOG_TUNNEL_CORE_PREFIX, tunnelCoreLogFiles(context), fromMillis,
+            manifest);
+    if (linkedCount == 0) {
+      MyLog.w(TAG, "No tunnel core notice files found to include in feedback " + feedbackId);
+    }
+    linkedCount = snapshotLogFiles(snapshotDir, LOG_APP_PREFIX, appLogFiles(context), fromMillis, manifest);
+    if (linkedCount == 0) {
+      MyLog.i(TAG, "No app log files found to include in feedback " + feedbackId);
+    }
 
-  public static void createFeedbackLogs(Context context, String feedbackId) {
-    createTunnelCoreFeedbackFile(context, feedbackId);
-    createAppFeedbackFile(context, feedbackId);
+    // The manifest is written last, the snapshot is only used once it exists
+    File manifestFile = new File(snapshotDir, SNAPSHOT_MANIFEST_FILE_NAME);
+    File tempManifestFile = new File(snapshotDir, SNAPSHOT_MANIFEST_FILE_NAME + FEEDBACK_DATA_TEMP_FILE_EXTENSION);
+    try (FileOutputStream fos = new FileOutputStream(tempManifestFile)) {
+      byte[] manifestBytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+      fos.write(manifestBytes);
+      fos.getFD().sync();
+      IoAccounting.recordWrite(IoAccounting.Subsystem.FEEDBACK, manifestBytes.length);
+    } catch (IOException e) {
+      MyLog.e(TAG, "Failed to write feedback snapshot manifest: " + e);
+      return;
+    }
+    if (!tempManifestFile.renameTo(manifestFile)) {
+      MyLog.e(TAG, "Failed to rename feedback snapshot manifest " + feedbackId);
+      return;
+    }
+    MyLog.i(TAG, "Feedback " + feedbackId + " log snapshot created in " +
+            (SystemClock.elapsedRealtime() - startMillis) + " ms");
   }
 
-  private static void createAppFeedbackFile(Context context, String feedbackId) {
-    try {
-      String dataRootPath = ConduitModule.dataRootDirectory(context).getAbsolutePath();
-      File dataDir = new File(dataRootPath);
+  // Returns the app log files, excluding lock and index files
+  private static File[] appLogFiles(Context context) {
+    File dataDir = ConduitModule.dataRootDirectory(context);
+    File[] logFiles = dataDir.listFiles(
+            (dir, name) -> name.startsWith(LoggingContentProvider.LOG_FILE_NAME) && !name.endsWith(".lck") &&
+                    !name.endsWith(RotatingLogWriter.INDEX_FILE_EXTENSION));
+    return logFiles == null ? new File[0] : logFiles;
+  }
 
-      // Get all log files, excluding lock files
-      File[] logFiles = dataDir.listFiles(
-              (dir, name) -> name.startsWith(LoggingContentProvider.LOG_FILE_NAME) && !name.endsWith(".lck"));
+  private static File[] tunnelCoreLogFiles(Context context) {
+    String dataRootPath = ConduitModule.dataRootDirectory(context).getAbsolutePath();
+    return new File[]{
+            new File(Psi.oldNoticesFilePath(dataRootPath)),
+            new File(Psi.noticesFilePath(dataRootPath))
+    };
+  }
 
-      if (logFiles == null || logFiles.length == 0) {
-        MyLog.i(TAG, "No app log files found to include in feedback " + feedbackId);
-        return;
+  // Links the existing log files into the snapshot directory, oldest first, and appends their
+  // entries to the manifest. Files with no lines after fromMillis are left out. Returns the number of
+  // files included.
+  private static int snapshotLogFiles(File snapshotDir, String prefix, File[] logFiles, long fromMillis,
+          StringBuilder manifest) {
+    List<File> existingFiles = new ArrayList<>();
+    for (File file : logFiles) {
+      if (file.exists()) {
+        existingFiles.add(file);
       }
+    }
+    // Sort the files by last modified time (oldest first)
+    existingFiles.sort((f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
 
-      // Extract file paths
-      String[] logFilePaths = new String[logFiles.length];
-      for (int i = 0; i < logFiles.length; i++) {
-        logFilePaths[i] = logFiles[i].getAbsolutePath();
+    int included = 0;
+    for (File file : existingFiles) {
+      if (file.lastModified() < fromMillis) {
+        continue;
       }
-
-      File feedbackDir = feedBackLogsDir(context);
-      if (!feedbackDir.exists()) {
-        feedbackDir.mkdirs();
+      File snapshotFile = new File(snapshotDir, prefix + included);
+      try {
+        try {
+          Os.link(file.getAbsolutePath(), snapshotFile.getAbsolutePath());
+        } catch (ErrnoException e) {
+          // Hard links may not be supported, fall back to copying
+          MyLog.w(TAG, "Failed to link " + file.getName() + " for feedback, copying: " + e);
+          copyFile(file, snapshotFile);
+        }
+        // Both names now refer to the same data, stop at the last complete line written so far.
+        // Binary log files need no trimming, their reader stops at a truncated last record.
+        boolean isBinary = LogRecordCodec.isBinaryLogFile(snapshotFile);
+        long length = isBinary ? snapshotFile.length() : completeLinesLength(snapshotFile);
+        long startOffset = isBinary ?
+                RotatingLogWriter.readIndex(file).startOffset(fromMillis) :
+                searchLineOffset(snapshotFile, fromMillis);
+        if (startOffset >= length) {
+          // The index belongs to a segment rotated in since the file was linked, start over
+          startOffset = 0;
+        }
+        manifest.append(snapshotFile.getName()).append(' ').append(length)
+                .append(' ').append(startOffset).append('\n');
+        included++;
+      } catch (IOException e) {
+        MyLog.e(TAG, "Failed to snapshot " + file.getName() + " for feedback: " + e);
+        snapshotFile.delete();
       }
-
-      String feedbackLogFilePath = new File(feedbackDir, LOG_APP_PREFIX + feedbackId + LOG_FEEDBACK_FILE_EXTENSION).getAbsolutePath();
-
-      mergeLogFiles(feedbackLogFilePath, logFilePaths);
-    } catch (IOException e) {
-      MyLog.e(TAG, "Failed to create app feedback log: " + e);
     }
+    return included;
   }
 
-  private static void createTunnelCoreFeedbackFile(Context context, String feedbackId) {
-    try {
-      String dataRootPath = ConduitModule.dataRootDirectory(context).getAbsolutePath();
-      String filePath = Psi.oldNoticesFilePath(dataRootPath);
-
-      List<String> existingLogFiles = new ArrayList<>();
-      if (new File(filePath).exists()) {
-        existingLogFiles.add(filePath);
+  private static void copyFile(File source, File destination) throws IOException {
+    try (FileInputStream fis = new FileInputStream(source);
+         FileChannel inputChannel = fis.getChannel();
+         FileOutputStream fos = new FileOutputStream(destination);
+         FileChannel outputChannel = fos.getChannel()) {
+      long size = inputChannel.size();
+      long position = 0;
+      while (position < size) {
+        position += inputChannel.transferTo(position, size - position, outputChannel);
       }
+      IoAccounting.recordWrite(IoAccounting.Subsystem.FEEDBACK, size);
+    }
+  }
 
-      filePath = Psi.noticesFilePath(dataRootPath);
-      if (new File(filePath).exists()) {
-        existingLogFiles.add(filePath);
+  // Returns the length of the file up to and including the last line feed, so that a line that is
+  // still being written when the snapshot is taken is left out
+  private static long completeLinesLength(File file) throws IOException {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      long length = randomAccessFile.length();
+      byte[] buffer = new byte[4096];
+      long end = length;
+      while (end > 0) {
+        int chunk = (int) Math.min(buffer.length, end);
+        randomAccessFile.seek(end - chunk);
+        randomAccessFile.readFully(buffer, 0, chunk);
+        for (int i = chunk - 1; i >= 0; i--) {
+          if (buffer[i] == '\n') {
+            return end - chunk + i + 1;
+          }
+        }
+        end -= chunk;
       }
+      return 0;
+    }
+  }
 
-      if (existingLogFiles.isEmpty()) {
-        MyLog.w(TAG, "No tunnel core notice files found to include in feedback " + feedbackId);
-        return;
-      }
+  /**
+   * Opens the logs with the given prefix captured for the feedback, bounded to the byte ranges
+   * recorded when the snapshot was taken. Falls back to the merged log file created by previous
+   * versions.
+   *
+   * @return The logs, oldest file first, or null if there are none.
+   */
+  static FeedbackLogs openFeedbackLogs(Context context, String feedbackId, String prefix) throws IOException {
+    File snapshotDir = feedbackSnapshotDir(context, feedbackId);
+    File manifestFile = new File(snapshotDir, SNAPSHOT_MANIFEST_FILE_NAME);
+    if (!manifestFile.exists()) {
+      File legacyFile = new File(feedBackLogsDir(context), prefix + feedbackId + LOG_FEEDBACK_FILE_EXTENSION);
+      return legacyFile.exists() ?
+              new FeedbackLogs(Collections.singletonList(new FileInputStream(legacyFile)), legacyFile.length()) :
+              null;
+    }
 
-      File feedbackDir = feedBackLogsDir(context);
-      if (!feedbackDir.exists()) {
-        feedbackDir.mkdirs();
+    List<InputStream> inputStreams = new ArrayList<>();
+    long length = 0;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(manifestFile), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split(" ");
+        // Snapshots taken by previous versions have no start offset
+        if (parts.length < 2 || parts.length > 3 || !parts[0].startsWith(prefix)) {
+          continue;
+        }
+        long fileLength = Long.parseLong(parts[1]);
+        long startOffset = parts.length == 3 ? Long.parseLong(parts[2]) : 0;
+        File snapshotFile = new File(snapshotDir, parts[0]);
+        boolean isBinary = LogRecordCodec.isBinaryLogFile(snapshotFile);
+        inputStreams.add(openSnapshotRange(snapshotFile, isBinary, startOffset, fileLength));
+        // Binary log files are budgeted by the size of the JSON lines they render to
+        length += isBinary ?
+                LogRecordCodec.renderedLength(openSnapshotRange(snapshotFile, true, startOffset, fileLength)) :
+                fileLength - startOffset;
       }
+    } catch (IOException | NumberFormatException e) {
+      for (InputStream inputStream : inputStreams) {
+        inputStream.close();
+      }
+      throw e instanceof IOException ? (IOException) e : new IOException(e);
+    }
+    if (inputStreams.isEmpty()) {
+      return null;
+    }
+    return new FeedbackLogs(inputStreams, length);
+  }
 
-      String feedbackLogFilePath = new File(feedbackDir, LOG_TUNNEL_CORE_PREFIX + feedbackId + LOG_FEEDBACK_FILE_EXTENSION).getAbsolutePath();
-
-      mergeLogFiles(feedbackLogFilePath, existingLogFiles.toArray(new String[0]));
+  // Opens the part of a snapshot file from the start offset up to the length. A binary log file
+  // read from an index point, which is a block start, is prefixed with the magic so that the
+  // readers detect its format.
+  private static InputStream openSnapshotRange(File file, boolean isBinary, long startOffset, long length)
+          throws IOException {
+    FileInputStream fis = new FileInputStream(file);
+    if (isBinary && startOffset <= LogRecordCodec.MAGIC.length) {
+      return ByteStreams.limit(fis, length);
+    }
+    try {
+      fis.getChannel().position(startOffset);
     } catch (IOException e) {
-      MyLog.e(TAG, "Failed to create tunnel core log:" + e);
+      fis.close();
+      throw e;
     }
+    InputStream range = ByteStreams.limit(fis, length - startOffset);
+    return isBinary ? new SequenceInputStream(new ByteArrayInputStream(LogRecordCodec.MAGIC), range) : range;
   }
 
-  private static void mergeLogFiles(String outputFilePath, String... inputFilePaths) throws IOException {
-    File outputFile = new File(outputFilePath);
+  // The files of a feedback log, each one is read separately since each one may be in a different
+  // format and the last record of each one may be truncated. The length is the size of the logs as
+  // JSON lines.
+  record FeedbackLogs(List<InputStream> inputStreams, long length) {
+  }
 
-    // Convert input file paths to files and sort them by last modified time (oldest first)
-    File[] inputFiles = new File[inputFilePaths.length];
-    int count = 0;
+  private static File feedbackSnapshotDir(Context context, String feedbackId) {
+    return new File(feedBackLogsDir(context), FEEDBACK_SNAPSHOT_PREFIX + feedbackId);
+  }
 
-    // Create File objects and filter existing ones
-    for (String path : inputFilePaths) {
-      File file = new File(path);
-      if (file.exists()) {
-        inputFiles[count++] = file;
+  // Binary searches a time ordered log file for the offset of a line before the time
+  private static long searchLineOffset(File file, long fromMillis) throws IOException {
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      long low = 0;
+      long high = randomAccessFile.length();
+      // Stop once the range is small enough to scan
+      while (high - low > SEARCH_SCAN_BYTES) {
+        long mid = (low + high) >>> 1;
+        randomAccessFile.seek(mid);
+        // Skip the partial line at mid, the line after it is complete
+        randomAccessFile.readLine();
+        long lineOffset = randomAccessFile.getFilePointer();
+        String line = randomAccessFile.readLine();
+        long timestampMillis = line == null ? -1 : lineTimestamp(line);
+        if (line == null || lineOffset >= high) {
+          high = mid;
+        } else if (timestampMillis >= 0 && timestampMillis < fromMillis) {
+          low = lineOffset;
+        } else {
+          high = mid;
+        }
       }
+      // low is either the start of the file or the start of a line before the time
+      return low;
     }
+  }
 
-    // Resize the array to contain only the existing files
-    inputFiles = Arrays.copyOf(inputFiles, count);
-
-    // Sort the files by last modified time (oldest first)
-    Arrays.sort(inputFiles, (f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
-
-    List<FileLock> locks = new ArrayList<>();
-    List<FileInputStream> inputStreams = new ArrayList<>();
-    List<FileChannel> channels = new ArrayList<>();
-
-    try (FileOutputStream fos = new FileOutputStream(outputFile, true);
-         FileChannel outputChannel = fos.getChannel()) {
-
-      // Acquire locks on all input files
-      for (File inputFile : inputFiles) {
-        FileInputStream fis = new FileInputStream(inputFile);
-        FileChannel inputChannel = fis.getChannel();
-        FileLock lock = inputChannel.lock(0L, Long.MAX_VALUE, true);
-        locks.add(lock);
-        inputStreams.add(fis);
-        channels.add(inputChannel);
-      }
-
-      // Copy content of each input file to the output file
-      for (FileChannel inputChannel : channels) {
-        inputChannel.transferTo(0, inputChannel.size(), outputChannel);
-      }
-
-    } catch (IOException e) {
-      MyLog.e(TAG, "Failed to write to output file: " + outputFilePath + " " + e);
-      throw e;
-    } finally {
-      // Release all locks and close all channels
-      for (FileLock lock : locks) {
-        if (lock != null && lock.isValid()) {
-          try {
-            lock.release();
-          } catch (IOException e) {
-            MyLog.e(TAG, "Failed to release lock: " + e);
-          }
-        }
-      }
-      for (FileChannel channel : channels) {
-        if (channel != null && channel.isOpen()) {
-          try {
-            channel.close();
-          } catch (IOException e) {
-            MyLog.e(TAG, "Failed to close channel: " + e);
-          }
-        }
-      }
-      for (FileInputStream fis : inputStreams) {
-        try {
-          fis.close();
-        } catch (IOException e) {
-          MyLog.e(TAG, "Failed to close FileInputStream: " + e);
-        }
-      }
+  // Returns the timestamp of a JSON log line, or -1 if the line does not parse
+  private static long lineTimestamp(String line) {
+    try {
+      return LogUtils.parseRfc3339Timestamp(new JSONObject(line).getString("timestamp")).getTime();
+    } catch (JSONException | ParseException e) {
+      return -1;
     }
   }
 
@@ -198,25 +343,40 @@ public class LogFileUtils {
     File feedbackDir = feedBackLogsDir(context);
     File[] feedbackFiles = feedbackDir.listFiles((dir, name) ->
             name.startsWith(LOG_APP_PREFIX + feedbackId) ||
-                    name.startsWith(LOG_TUNNEL_CORE_PREFIX + feedbackId));
+                    name.startsWith(LOG_TUNNEL_CORE_PREFIX + feedbackId) ||
+                    name.startsWith(FEEDBACK_DATA_PREFIX + feedbackId) ||
+                    name.startsWith(FEEDBACK_SNAPSHOT_PREFIX + feedbackId));
     if (feedbackFiles != null) {
       for (File feedbackFile : feedbackFiles) {
-        if (!feedbackFile.delete()) {
+        if (!deleteRecursively(feedbackFile)) {
           MyLog.e(TAG, "Failed to delete feedback file: " + feedbackFile.getAbsolutePath());
         }
       }
     }
   }
 
+  // Deletes a file, or a directory and its content. Feedback snapshot directories are flat.
+  static boolean deleteRecursively(File file) {
+    if (file.isDirectory()) {
+      File[] children = file.listFiles();
+      if (children != null) {
+        for (File child : children) {
+          child.delete();
+        }
+      }
+    }
+    return file.delete();
+  }
+
   public static void deleteFeedbackLogsOlderThan(Context context, long cutoffTimeInMillis) {
     File feedbackDir = feedBackLogsDir(context);
     if (feedbackDir.exists() && feedbackDir.isDirectory()) {
       File[] files = feedbackDir.listFiles();
       if (files != null) {
         for (File file : files) {
-          if (file.isFile() && file.lastModified() < cutoffTimeInMillis) {
+          if (file.lastModified() < cutoffTimeInMillis) {
             try {
-              if (file.delete()) {
+              if (deleteRecursively(file)) {
                 MyLog.i(TAG, "Deleted feedback file: " + file.getName());
               } else {
                 MyLog.e(TAG, "Failed to delete feedback file: " + file.getName());
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule.logging;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Token bucket rate limiter for persisted log lines, with one bucket per tag and level.
+ *
+ * Each bucket holds up to burst tokens and is refilled at messagesPerSecond; a line passes if it can
+ * take a token. While a bucket is empty, every sampleEvery-th line still passes so that a long
+ * storm stays visible in the logs. The number of lines suppressed since the last line that passed is
+ * returned with the next line that passes, so that the caller can record a summary.
+ *
+ * Tags include ones supplied by JS, so at most MAX_TAGS buckets are kept; the least recently used tag
+ * is evicted and its suppressed count is reported under OTHER_TAGS.
+ */
+class LogRateLimiter {
+    // Return value of acquire() for a suppressed line
+    static final int SUPPRESSED = -1;
+
+    // Android log levels go up to Log.ASSERT (7)
+    private static final int LEVEL_COUNT = 8;
+    private static final int MAX_TAGS = 256;
+    // Key of the suppressed count of evicted tags in getSuppressedCountsByTag()
+    static final String OTHER_TAGS = "(other tags)";
+
+    private static final class Bucket {
+        double tokens;
+        long lastRefillNanos;
+        int suppressedSinceLastPass;
+        long totalSuppressed;
+    }
+
+    // Access ordered, so that the eldest entry is the least recently used tag
+    private final Map<String, Bucket[]> buckets = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket[]> eldest) {
+            if (size() <= MAX_TAGS) {
+                return false;
+            }
+            evictedSuppressed += totalSuppressed(eldest.getValue());
+            return true;
+        }
+    };
+    private final double messagesPerSecond;
+    private final int burst;
+    private final int sampleEvery;
+    private long evictedSuppressed = 0;
+
+    /**
+     * @param messagesPerSecond sustained rate of lines per tag and level.
+     * @param burst             number of lines per tag and level that may pass at once.
+     * @param sampleEvery       while limited, let one in this many lines pass; 0 to suppress all.
+     */
+    LogRateLimiter(double messagesPerSecond, int burst, int sampleEvery) {
+        if (messagesPerSecond <= 0 || burst < 1 || sampleEvery < 0) {
+            throw new IllegalArgumentException("Invalid log rate limit: " + messagesPerSecond + "/s, burst " +
+                    burst + ", sample every " + sampleEvery);
+        }
+        this.messagesPerSecond = messagesPerSecond;
+        this.burst = burst;
+        this.sampleEvery = sampleEvery;
+    }
+
+    /**
+     * @return SUPPRESSED if the line should be dropped, otherwise the number of lines of the same tag
+     * and level suppressed since the previous line that passed.
+     */
+    synchronized int acquire(String tag, int level, long nowNanos) {
+        Bucket[] levels = buckets.get(tag);
+        if (levels == null) {
+            levels = new Bucket[LEVEL_COUNT];
+            buckets.put(tag, levels);
+        }
+        Bucket bucket = levels[level];
+        if (bucket == null) {
+            bucket = new Bucket();
+            bucket.tokens = burst;
+            bucket.lastRefillNanos = nowNanos;
+            levels[level] = bucket;
+        } else {
+            double elapsedSeconds = (nowNanos - bucket.lastRefillNanos) / 1e9;
+            bucket.tokens = Math.min(burst, bucket.tokens + elapsedSeconds * messagesPerSecond);
+            bucket.lastRefillNanos = nowNanos;
+        }
+
+        boolean sampled = sampleEvery > 0 && (bucket.suppressedSinceLastPass + 1) % sampleEvery == 0;
+        if (bucket.tokens >= 1) {
+            bucket.tokens -= 1;
+        } else if (!sampled) {
+            bucket.suppressedSinceLastPass++;
+            bucket.totalSuppressed++;
+            return SUPPRESSED;
+        }
+        int suppressed = bucket.suppressedSinceLastPass;
+        bucket.suppressedSinceLastPass = 0;
+        return suppressed;
+    }
+
+    // Total suppressed lines per tag, tags without suppressed lines are omitted
+    synchronized Map<String, Long> getSuppressedCountsByTag() {
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<String, Bucket[]> entry : buckets.entrySet()) {
+            long count = totalSuppressed(entry.getValue());
+            if (count > 0) {
+                counts.put(entry.getKey(), count);
+            }
+        }
+        if (evictedSuppressed > 0) {
+            counts.merge(OTHER_TAGS, evictedSuppressed, Long::sum);
+        }
+        return counts;
+    }
+
+    private static long totalSuppressed(Bucket[] levels) {
+        long count = 0;
+        for (Bucket bucket : levels) {
+            if (bucket != null) {
+                count += bucket.totalSuppressed;
+            }
+        }
+        return count;
+    }
+}
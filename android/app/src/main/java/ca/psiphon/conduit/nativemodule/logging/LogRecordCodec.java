@@ -0,0 +1,490 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule.logging;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary format of the app log files.
+ *
+ * A log file starts with the 4 byte magic 'CLB1' followed by length prefixed records:
+ * <pre>
+ *   record     := varint(body length) body
+ *   body       := TAG_DEF tagId:varint tag:utf8
+ *               | ABSOLUTE level:byte tagId:varint timestamp:varint message:utf8
+ *               | DELTA level:byte tagId:varint delta:zigzag-varint message:utf8
+ *               | ABSOLUTE_FIELDS level:byte tagId:varint timestamp:varint messageLength:varint
+ *                   message:utf8 fields:utf8
+ *               | DELTA_FIELDS level:byte tagId:varint delta:zigzag-varint messageLength:varint
+ *                   message:utf8 fields:utf8
+ * </pre>
+ * Tags are interned and timestamps delta encoded within a block. A block starts at every index
+ * point of the file with an absolute timestamp and re-defines the tags it uses, so that a reader can
+ * start decoding at any index offset. Levels are the android.util.Log levels. Fields are the
+ * structured fields of a record as a JSON object.
+ *
+ * Files that do not start with the magic are JSON lines written by earlier versions.
+ *
+ * A record torn by a crash is truncated away when the writer reopens the file, see validLength().
+ * Readers that still meet a corrupt record skip ahead to the start of the next block, which is
+ * recognized by its first two records: the definition of tag 0 followed by an absolute record.
+ */
+class LogRecordCodec {
+    private static final String TAG = LogRecordCodec.class.getSimpleName();
+
+    static final byte[] MAGIC = {'C', 'L', 'B', '1'};
+    private static final int TYPE_TAG_DEF = 1;
+    private static final int TYPE_ABSOLUTE = 2;
+    private static final int TYPE_DELTA = 3;
+    private static final int TYPE_ABSOLUTE_FIELDS = 4;
+    private static final int TYPE_DELTA_FIELDS = 5;
+    // Upper bound of a record body, anything larger is treated as corruption
+    private static final int MAX_BODY_LENGTH = 1 << 20;
+    // Bounds used to recognize a block start when resynchronizing after a corrupt record
+    private static final int MAX_TAG_DEF_LENGTH = 256;
+    private static final int BLOCK_START_PROBE_BYTES = MAX_TAG_DEF_LENGTH + 32;
+    private static final long MIN_PLAUSIBLE_TIMESTAMP_MILLIS = 1_500_000_000_000L;
+    private static final long MAX_PLAUSIBLE_TIMESTAMP_MILLIS = 4_102_444_800_000L;
+
+    // fields is a JSON object, or null if the record has none
+    record Record(long timestampMillis, int level, String tag, String message, String fields) {
+        // Renders the record in the JSON line shape of the earlier text format
+        String toJsonLine() {
+            JSONObject json = new JSONObject();
+            try {
+                json.put("tag", tag);
+                json.put("message", message);
+                json.put("level", levelToString(level));
+                json.put("timestamp", LogUtils.getRfc3339Timestamp(timestampMillis));
+                if (fields != null) {
+                    json.put("fields", new JSONObject(fields));
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to format log record", e);
+            }
+            return json.toString();
+        }
+    }
+
+    // Unknown levels, which can only come from a corrupt record, render as "Unknown" so that one bad
+    // record does not fail a whole feedback upload
+    static String levelToString(int level) {
+        return switch (level) {
+            case Log.VERBOSE -> "Verbose";
+            case Log.DEBUG -> "Debug";
+            case Log.INFO -> "Info";
+            case Log.WARN -> "Warning";
+            case Log.ERROR -> "Error";
+            default -> "Unknown";
+        };
+    }
+
+    static boolean isValidLevel(int level) {
+        return level >= Log.VERBOSE && level <= Log.ERROR;
+    }
+
+    static boolean isBinaryLogFile(File file) {
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            byte[] header = new byte[MAGIC.length];
+            return inputStream.read(header) == MAGIC.length && Arrays.equals(header, MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Encodes records for one log file, reusing its buffer between records
+    static class Encoder {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        private final Map<String, Integer> tagIds = new HashMap<>();
+        private long previousTimestampMillis;
+        private boolean blockStarted = false;
+
+        // The next record starts a new block
+        void startBlock() {
+            tagIds.clear();
+            blockStarted = false;
+        }
+
+        // Encodes a record and any tag definition it needs, retrieve the bytes with writeTo()
+        void encode(long timestampMillis, int level, String tag, String message, String fields) throws IOException {
+            buffer.reset();
+            Integer tagId = tagIds.get(tag);
+            if (tagId == null) {
+                tagId = tagIds.size();
+                tagIds.put(tag, tagId);
+                body.reset();
+                body.write(TYPE_TAG_DEF);
+                writeVarint(body, tagId);
+                byte[] tagBytes = tag.getBytes(StandardCharsets.UTF_8);
+                body.write(tagBytes, 0, tagBytes.length);
+                flushBody();
+            }
+
+            body.reset();
+            if (!blockStarted) {
+                body.write(fields == null ? TYPE_ABSOLUTE : TYPE_ABSOLUTE_FIELDS);
+                body.write(level);
+                writeVarint(body, tagId);
+                writeVarint(body, timestampMillis);
+                blockStarted = true;
+            } else {
+                body.write(fields == null ? TYPE_DELTA : TYPE_DELTA_FIELDS);
+                body.write(level);
+                writeVarint(body, tagId);
+                long delta = timestampMillis - previousTimestampMillis;
+                writeVarint(body, (delta << 1) ^ (delta >> 63));
+            }
+            byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+            if (fields != null) {
+                writeVarint(body, messageBytes.length);
+            }
+            body.write(messageBytes, 0, messageBytes.length);
+            if (fields != null) {
+                byte[] fieldsBytes = fields.getBytes(StandardCharsets.UTF_8);
+                body.write(fieldsBytes, 0, fieldsBytes.length);
+            }
+            flushBody();
+            previousTimestampMillis = timestampMillis;
+        }
+
+        int size() {
+            return buffer.size();
+        }
+
+        void writeTo(OutputStream outputStream) throws IOException {
+            buffer.writeTo(outputStream);
+        }
+
+        private void flushBody() throws IOException {
+            writeVarint(buffer, body.size());
+            body.writeTo(buffer);
+        }
+    }
+
+    // Returns the length of the data of a log file up to the end of its last complete and well formed
+    // record, scanning from the offset of a record, or the file length if the file is not binary
+    static long validLength(File file, long fromOffset) throws IOException {
+        if (!isBinaryLogFile(file)) {
+            return file.length();
+        }
+        try (FileInputStream fileInputStream = new FileInputStream(file)) {
+            fileInputStream.getChannel().position(fromOffset);
+            InputStream inputStream = new BufferedInputStream(fileInputStream);
+            byte[] bytes = new byte[256];
+            long offset = fromOffset;
+            long validLength;
+            while (true) {
+                validLength = offset;
+                int[] varintLength = {0};
+                long length = readVarint(inputStream, varintLength);
+                if (length <= 0 || length > MAX_BODY_LENGTH) {
+                    break;
+                }
+                if (bytes.length < length) {
+                    bytes = new byte[(int) length];
+                }
+                if (!readFully(inputStream, bytes, (int) length) || !isKnownType(bytes[0])) {
+                    break;
+                }
+                offset += varintLength[0] + length;
+            }
+            return validLength;
+        }
+    }
+
+    private static boolean isKnownType(int type) {
+        return type >= TYPE_TAG_DEF && type <= TYPE_DELTA_FIELDS;
+    }
+
+    // Decodes the records of a log file, starting right after the magic or at an index offset
+    static class Decoder implements Closeable {
+        private final InputStream inputStream;
+        private final Map<Integer, String> tags = new HashMap<>();
+        private byte[] body = new byte[256];
+        private long previousTimestampMillis;
+        private int skippedBytes = 0;
+
+        Decoder(InputStream inputStream) {
+            // Resynchronizing after a corrupt record needs mark and reset
+            this.inputStream = inputStream.markSupported() ? inputStream : new BufferedInputStream(inputStream);
+        }
+
+        // Returns the next record, or null at the end of the data. A corrupt record is skipped along
+        // with the rest of its block.
+        Record next() throws IOException {
+            while (true) {
+                // Marked so that a corrupt record can be rescanned for a block start from its second byte
+                inputStream.mark(MAX_BODY_LENGTH + 16);
+                long length = LogRecordCodec.readVarint(inputStream, null);
+                if (length < 0) {
+                    return null;
+                }
+                if (length == 0 || length > MAX_BODY_LENGTH) {
+                    Log.w(TAG, "Invalid log record length: " + length);
+                    if (!resynchronize()) {
+                        return null;
+                    }
+                    continue;
+                }
+                if (body.length < length) {
+                    body = new byte[(int) Math.max(length, body.length * 2L)];
+                }
+                if (!readFully(inputStream, body, (int) length)) {
+                    // Truncated last record
+                    return null;
+                }
+
+                int limit = (int) length;
+                int[] position = {1};
+                int type = body[0];
+                if (type == TYPE_TAG_DEF) {
+                    int tagId = (int) readVarint(body, position, limit);
+                    tags.put(tagId, new String(body, position[0], limit - position[0], StandardCharsets.UTF_8));
+                    continue;
+                }
+                boolean hasFields = type == TYPE_ABSOLUTE_FIELDS || type == TYPE_DELTA_FIELDS;
+                boolean isAbsolute = type == TYPE_ABSOLUTE || type == TYPE_ABSOLUTE_FIELDS;
+                if (!hasFields && !isAbsolute && type != TYPE_DELTA || limit < 2) {
+                    Log.w(TAG, "Invalid log record of type " + type);
+                    if (!resynchronize()) {
+                        return null;
+                    }
+                    continue;
+                }
+                int level = body[position[0]++];
+                String tag = tags.get((int) readVarint(body, position, limit));
+                long value = readVarint(body, position, limit);
+                long timestampMillis = isAbsolute ?
+                        value :
+                        previousTimestampMillis + ((value >>> 1) ^ -(value & 1));
+                previousTimestampMillis = timestampMillis;
+                int messageLength = hasFields ?
+                        (int) Math.max(0, Math.min(readVarint(body, position, limit), limit - position[0])) :
+                        limit - position[0];
+                String message = new String(body, position[0], messageLength, StandardCharsets.UTF_8);
+                position[0] += messageLength;
+                String fields = hasFields ?
+                        new String(body, position[0], limit - position[0], StandardCharsets.UTF_8) :
+                        null;
+                return new Record(timestampMillis, level, tag == null ? "" : tag, message, fields);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            inputStream.close();
+        }
+
+        // Goes back to the first byte of the corrupt record just read, which may have been read with a
+        // bad length, and skips to the next block start after it. Returns false if the data ends first.
+        private boolean resynchronize() throws IOException {
+            inputStream.reset();
+            if (inputStream.read() < 0) {
+                return false;
+            }
+            skippedBytes++;
+            return skipToNextBlock();
+        }
+
+        // Skips bytes up to the start of the next block, from the current position. Returns false if
+        // the data ends first.
+        private boolean skipToNextBlock() throws IOException {
+            while (true) {
+                inputStream.mark(BLOCK_START_PROBE_BYTES);
+                boolean isBlockStart = probeBlockStart();
+                inputStream.reset();
+                if (isBlockStart) {
+                    Log.w(TAG, "Skipped " + skippedBytes + " bytes of corrupt log records");
+                    skippedBytes = 0;
+                    // Tag ids are only valid within their block
+                    tags.clear();
+                    return true;
+                }
+                if (inputStream.read() < 0) {
+                    return false;
+                }
+                skippedBytes++;
+            }
+        }
+
+        // Returns true if the data at the current position looks like the start of a block: the
+        // definition of tag 0 followed by an absolute record of that tag with a plausible timestamp
+        private boolean probeBlockStart() throws IOException {
+            long tagDefLength = LogRecordCodec.readVarint(inputStream, null);
+            if (tagDefLength < 3 || tagDefLength > MAX_TAG_DEF_LENGTH) {
+                return false;
+            }
+            byte[] tagDef = new byte[(int) tagDefLength];
+            if (!readFully(inputStream, tagDef, tagDef.length) || tagDef[0] != TYPE_TAG_DEF || tagDef[1] != 0) {
+                return false;
+            }
+            long recordLength = LogRecordCodec.readVarint(inputStream, null);
+            if (recordLength < 4 || recordLength > MAX_BODY_LENGTH) {
+                return false;
+            }
+            byte[] header = new byte[(int) Math.min(recordLength, 13)];
+            if (!readFully(inputStream, header, header.length) ||
+                    (header[0] != TYPE_ABSOLUTE && header[0] != TYPE_ABSOLUTE_FIELDS) ||
+                    !isValidLevel(header[1]) || header[2] != 0) {
+                return false;
+            }
+            int[] position = {3};
+            long timestampMillis = readVarint(header, position, header.length);
+            return timestampMillis >= MIN_PLAUSIBLE_TIMESTAMP_MILLIS &&
+                    timestampMillis <= MAX_PLAUSIBLE_TIMESTAMP_MILLIS;
+        }
+
+        // Reads a varint bounded by the record length rather than the buffer, which holds stale bytes
+        // of earlier records past it
+        private static long readVarint(byte[] bytes, int[] position, int limit) {
+            long value = 0;
+            for (int shift = 0; shift < 64 && position[0] < limit; shift += 7) {
+                int b = bytes[position[0]++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return value;
+        }
+    }
+
+    // Reads a varint from the stream, returns -1 at the end of the data. Adds the number of bytes
+    // read to byteCount[0] if not null.
+    private static long readVarint(InputStream inputStream, int[] byteCount) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = inputStream.read();
+            if (b < 0) {
+                return -1;
+            }
+            if (byteCount != null) {
+                byteCount[0]++;
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean readFully(InputStream inputStream, byte[] bytes, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = inputStream.read(bytes, offset, length - offset);
+            if (read < 0) {
+                return false;
+            }
+            offset += read;
+        }
+        return true;
+    }
+
+    // Returns the size of the JSON lines that the records of a binary log file render to, the stream
+    // must start with the magic and is closed
+    static long renderedLength(InputStream inputStream) throws IOException {
+        long length = 0;
+        try (LineReader reader = openLineReader(inputStream)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                length += line.length() + 1;
+            }
+        }
+        return length;
+    }
+
+    // Reads JSON log lines from either format
+    interface LineReader extends Closeable {
+        // Returns the next line, or null at the end
+        String readLine() throws IOException;
+    }
+
+    // Opens a line reader on a log file stream, detecting the format from its first bytes
+    static LineReader openLineReader(InputStream inputStream) throws IOException {
+        BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+        bufferedInputStream.mark(MAGIC.length);
+        byte[] header = new byte[MAGIC.length];
+        int read = 0;
+        while (read < header.length) {
+            int n = bufferedInputStream.read(header, read, header.length - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        if (read == MAGIC.length && Arrays.equals(header, MAGIC)) {
+            Decoder decoder = new Decoder(bufferedInputStream);
+            return new LineReader() {
+                @Override
+                public String readLine() throws IOException {
+                    Record record = decoder.next();
+                    return record == null ? null : record.toJsonLine();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    decoder.close();
+                }
+            };
+        }
+
+        bufferedInputStream.reset();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(bufferedInputStream, StandardCharsets.UTF_8));
+        return new LineReader() {
+            @Override
+            public String readLine() throws IOException {
+                return reader.readLine();
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+
+    static void writeVarint(ByteArrayOutputStream outputStream, long value) {
+        while ((value & ~0x7FL) != 0) {
+            outputStream.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        outputStream.write((int) value);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule.logging;
+
+import android.database.MatrixCursor;
+
+/**
+ * Fixed capacity ring of the most recent log records, kept in preallocated parallel arrays so that
+ * adding a record never allocates. Every record gets a sequence number which increases by one per
+ * record and is used as the paging cursor; records older than the capacity are overwritten.
+ */
+class LogRecordRing {
+    private final int capacity;
+    private final long[] timestamps;
+    private final int[] levels;
+    private final String[] tags;
+    private final String[] messages;
+    private final String[] fields;
+
+    // Sequence number of the next record, the ring holds [max(0, nextSequence - capacity), nextSequence)
+    private long nextSequence = 0;
+
+    LogRecordRing(int capacity) {
+        this.capacity = capacity;
+        timestamps = new long[capacity];
+        levels = new int[capacity];
+        tags = new String[capacity];
+        messages = new String[capacity];
+        fields = new String[capacity];
+    }
+
+    synchronized void add(long timestamp, int level, String tag, String message, String recordFields) {
+        int slot = (int) (nextSequence % capacity);
+        timestamps[slot] = timestamp;
+        levels[slot] = level;
+        tags[slot] = tag;
+        messages[slot] = message;
+        fields[slot] = recordFields;
+        nextSequence++;
+    }
+
+    record Filter(int minLevel, String tag, long sinceMillis, long untilMillis) {
+        boolean matches(long timestamp, int level, String recordTag) {
+            return level >= minLevel &&
+                    (tag == null || tag.equals(recordTag)) &&
+                    timestamp >= sinceMillis &&
+                    timestamp <= untilMillis;
+        }
+    }
+
+    /**
+     * Adds matching records to the cursor in ascending sequence order, the columns being
+     * {@code _id, timestamp, level, tag, message, fields}.
+     *
+     * @param afterSequence  if not negative, returns the oldest matching records after this sequence
+     *                       number, for paging forward and following new records.
+     * @param beforeSequence if afterSequence is negative, returns the newest matching records before
+     *                       this sequence number, for paging back; Long.MAX_VALUE for the newest.
+     * @param limit          maximum number of records to return.
+     */
+    synchronized void query(Filter filter, long afterSequence, long beforeSequence, int limit, MatrixCursor cursor) {
+        long oldest = Math.max(0, nextSequence - capacity);
+        if (limit <= 0) {
+            return;
+        }
+
+        if (afterSequence >= 0) {
+            int count = 0;
+            for (long sequence = Math.max(oldest, afterSequence + 1); sequence < nextSequence && count < limit; sequence++) {
+                if (addIfMatches(filter, sequence, cursor)) {
+                    count++;
+                }
+            }
+            return;
+        }
+
+        // Walk back to find where the newest matching records start, then add them in ascending order
+        long start = Math.min(nextSequence, beforeSequence);
+        int count = 0;
+        while (start > oldest && count < limit) {
+            start--;
+            int slot = (int) (start % capacity);
+            if (filter.matches(timestamps[slot], levels[slot], tags[slot])) {
+                count++;
+            }
+        }
+        long end = Math.min(nextSequence, beforeSequence);
+        for (long sequence = start; sequence < end; sequence++) {
+            addIfMatches(filter, sequence, cursor);
+        }
+    }
+
+    private boolean addIfMatches(Filter filter, long sequence, MatrixCursor cursor) {
+        int slot = (int) (sequence % capacity);
+        if (!filter.matches(timestamps[slot], levels[slot], tags[slot])) {
+            return false;
+        }
+        cursor.newRow()
+                .add(sequence)
+                .add(timestamps[slot])
+                .add(levels[slot])
+                .add(tags[slot])
+                .add(messages[slot])
+                .add(fields[slot]);
+        return true;
+    }
+}
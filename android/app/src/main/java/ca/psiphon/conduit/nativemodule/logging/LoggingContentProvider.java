@@ -21,95 +21,128 @@ package ca.psiphon.conduit.nativemodule.logging;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import androidx.annotation.Nullable;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Locale;
-import java.util.logging.FileHandler;
-import java.util.logging.Formatter;
-import java.util.logging.Level;
-import java.util.logging.LogRecord;
-import java.util.logging.Logger;
+import java.util.concurrent.TimeUnit;
 
 import ca.psiphon.conduit.nativemodule.ConduitModule;
+import ca.psiphon.conduit.nativemodule.ConduitServiceParameters;
 import ca.psiphon.conduit.nativemodule.Constants;
+import ca.psiphon.conduit.nativemodule.IoAccounting;
+import ca.psiphon.conduit.nativemodule.IoPolicy;
+import ca.psiphon.conduit.nativemodule.ParameterStore;
 
 public class LoggingContentProvider extends ContentProvider {
     final static String TAG = LoggingContentProvider.class.getSimpleName();
 
     public static final String LOG_FILE_NAME = "conduit_log";
     private static final int LOG_FILE_SIZE = Constants.QUARTER_MB;
-    private static final int LOG_FILE_COUNT = 2;
+    static final int LOG_FILE_COUNT = 2;
 
     // URI matching constants
     private static final String AUTHORITY_SUFFIX = ".log";
     private static final String PATH_INSERT_LOGS = "insert";
     private static final int MATCH_INSERT = 1;
+    public static final String PATH_RECENT_LOGS = "recent";
+    private static final int MATCH_RECENT = 2;
+    // call() method that writes any buffered log records
+    private static final String METHOD_FLUSH = "flush";
+
+    // Query parameters and columns of the recent logs, see query()
+    public static final String PARAM_MIN_LEVEL = "minLevel";
+    public static final String PARAM_TAG = "tag";
+    public static final String PARAM_SINCE = "since";
+    public static final String PARAM_UNTIL = "until";
+    public static final String PARAM_AFTER_ID = "afterId";
+    public static final String PARAM_BEFORE_ID = "beforeId";
+    public static final String PARAM_LIMIT = "limit";
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_TIMESTAMP = "timestamp";
+    public static final String COLUMN_LEVEL = "level";
+    public static final String COLUMN_TAG = "tag";
+    public static final String COLUMN_MESSAGE = "message";
+    // Structured fields of the record as a JSON object, null if it has none
+    public static final String COLUMN_FIELDS = "fields";
+    private static final String[] RECENT_LOGS_COLUMNS =
+            {COLUMN_ID, COLUMN_TIMESTAMP, COLUMN_LEVEL, COLUMN_TAG, COLUMN_MESSAGE, COLUMN_FIELDS};
+
+    // Number of recent records kept in memory and default page size of a query
+    private static final int RECENT_LOGS_CAPACITY = 4096;
+    private static final int DEFAULT_QUERY_LIMIT = 200;
 
     private static final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
-    private volatile Logger logger;
-    private final Object loggerLock = new Object();
+    private volatile RotatingLogWriter logWriter;
+    private volatile IoPolicy ioPolicy;
+    // Hour in which the app log write cap was last reached
+    private long cappedHour = -1;
+    private final Object logWriterLock = new Object();
+    private final LogRecordRing recentLogs = new LogRecordRing(RECENT_LOGS_CAPACITY);
 
     @Override
     public boolean onCreate() {
         String authority = getContext().getPackageName() + AUTHORITY_SUFFIX;
         uriMatcher.addURI(authority, PATH_INSERT_LOGS, MATCH_INSERT);
+        uriMatcher.addURI(authority, PATH_RECENT_LOGS, MATCH_RECENT);
+        // The I/O mode is stored with the parameters by the :ConduitService process
+        ParameterStore.addListener(getContext(), this::onParametersChanged);
         return true;
     }
 
-    private Logger getLogger() {
-        Logger result = logger;
+    // Applies an I/O mode set with ConduitModule.setIoMode() to the open log writer. A writer that is
+    // not open yet picks up the mode when it is opened.
+    private void onParametersChanged(@Nullable ConduitServiceParameters parameters) {
+        IoPolicy newIoPolicy = IoPolicy.forParameters(getContext(), parameters);
+        synchronized (logWriterLock) {
+            RotatingLogWriter writer = logWriter;
+            if (writer == null || newIoPolicy.equals(ioPolicy)) {
+                return;
+            }
+            ioPolicy = newIoPolicy;
+            try {
+                writer.setBuffering(newIoPolicy.logFlushDelayMillis(), newIoPolicy.logBufferBytes());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to apply I/O policy to log writer", e);
+            }
+        }
+        Log.i(TAG, "Applied I/O policy " + newIoPolicy.mode() + " to app logs");
+    }
+
+    private RotatingLogWriter getLogWriter() {
+        RotatingLogWriter result = logWriter;
         if (result == null) {
-            synchronized (loggerLock) {
-                result = logger;
+            synchronized (logWriterLock) {
+                result = logWriter;
                 if (result == null) {
-                    initializeLogger();
-                    result = logger;
+                    initializeLogWriter();
+                    result = logWriter;
                 }
             }
         }
         return result;
     }
 
-    private void initializeLogger() {
-        logger = Logger.getLogger(LoggingContentProvider.class.getName());
-        logger.setLevel(Level.ALL);
-        logger.setUseParentHandlers(false);
-
-        // Clean up any existing handlers
-        for (var handler : logger.getHandlers()) {
-            try {
-                handler.close();
-                logger.removeHandler(handler);
-            } catch (Exception e) {
-                Log.e(TAG, "Error cleaning up handler", e);
-            }
-        }
-
+    private void initializeLogWriter() {
         try {
             File dataDir = ConduitModule.dataRootDirectory(getContext());
-            // Set up the FileHandler
-            FileHandler fileHandler = new FileHandler(
-                    new File(dataDir, LOG_FILE_NAME).getAbsolutePath(),
-                    LOG_FILE_SIZE,
-                    LOG_FILE_COUNT,
-                    true
-            );
-            fileHandler.setFormatter(new JsonFormatter());
-            fileHandler.setLevel(Level.ALL);
-            logger.addHandler(fileHandler);
+            ioPolicy = IoPolicy.load(getContext());
+            // Set up the rotating log writer, which also maintains the time index of each log file
+            logWriter = new RotatingLogWriter(dataDir, LOG_FILE_NAME, LOG_FILE_SIZE, LOG_FILE_COUNT,
+                    ioPolicy.logFlushDelayMillis(), ioPolicy.logBufferBytes());
         } catch (IOException e) {
-            Log.e(TAG, "Failed to initialize logger", e);
-            throw new IllegalStateException("Logger initialization failed", e);
+            Log.e(TAG, "Failed to initialize log writer", e);
+            throw new IllegalStateException("Log writer initialization failed", e);
         }
     }
 
@@ -129,6 +162,8 @@ public class LoggingContentProvider extends ContentProvider {
         String message = values.getAsString("message");
         Integer level = values.getAsInteger("level");
         Long timestamp = values.getAsLong("timestamp");
+        // Optional
+        String fields = values.getAsString("fields");
 
         if (tag == null || message == null || level == null || timestamp == null) {
             throw new IllegalArgumentException(
@@ -141,48 +176,112 @@ public class LoggingContentProvider extends ContentProvider {
             );
         }
 
-        Logger currentLogger = getLogger();
-        synchronized (loggerLock) {
-            LogRecord record = new LogRecord(intToLevel(level), message);
-            record.setLoggerName(tag);
-            record.setMillis(timestamp);
-            currentLogger.log(record);
-            return uri;
+        // Validate the level
+        if (!LogRecordCodec.isValidLevel(level)) {
+            throw new IllegalArgumentException("Invalid log level: " + level);
+        }
+
+        recentLogs.add(timestamp, level, tag, message, fields);
+        try {
+            RotatingLogWriter writer = getLogWriter();
+            if (isOverWriteCap(level, writer)) {
+                return uri;
+            }
+            writer.write(timestamp, level, tag, message, fields);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write log record", e);
+            return null;
         }
+        return uri;
     }
 
-    private static Level intToLevel(int level) {
-        return switch (level) {
-            case Log.VERBOSE -> Level.FINEST;
-            case Log.DEBUG -> Level.FINE;
-            case Log.INFO -> Level.INFO;
-            case Log.WARN -> Level.WARNING;
-            case Log.ERROR -> Level.SEVERE;
-            default -> throw new IllegalArgumentException("Invalid log level: " + level);
-        };
+    // Whether the record should not be persisted because the app log write cap of the I/O policy
+    // was reached this hour; warnings and errors are always persisted. Records a warning once per
+    // hour when the cap is reached.
+    private boolean isOverWriteCap(int level, RotatingLogWriter writer) throws IOException {
+        long cap = ioPolicy.appLogBytesPerHourCap();
+        if (cap <= 0 || level >= Log.WARN ||
+                IoAccounting.bytesWrittenThisHour(IoAccounting.Subsystem.APP_LOGS) < cap) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        long hour = TimeUnit.MILLISECONDS.toHours(now);
+        synchronized (this) {
+            if (cappedHour != hour) {
+                cappedHour = hour;
+                writer.write(now, Log.WARN, TAG, "App log write cap of " + cap +
+                        " bytes per hour reached; persisting warnings and errors only this hour", null);
+            }
+        }
+        return true;
     }
 
-    private static String levelToString(Level level) {
-        if (level == Level.FINEST) {
-            return "Verbose";
-        } else if (level == Level.FINE) {
-            return "Debug";
-        } else if (level == Level.INFO) {
-            return "Info";
-        } else if (level == Level.WARNING) {
-            return "Warning";
-        } else if (level == Level.SEVERE) {
-            return "Error";
-        } else {
-            throw new IllegalArgumentException("Invalid log level: " + level);
+    // Writes any buffered log records, for example before the log files are snapshotted
+    public static void flush(Context context) {
+        Uri uri = Uri.parse("content://" + context.getPackageName() + AUTHORITY_SUFFIX);
+        try {
+            context.getContentResolver().call(uri, METHOD_FLUSH, null, null);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to flush log records", e);
+        }
+    }
+
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (!METHOD_FLUSH.equals(method)) {
+            return super.call(method, arg, extras);
         }
+        RotatingLogWriter writer = logWriter;
+        if (writer != null) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to flush log records", e);
+            }
+        }
+        return null;
     }
 
+    /**
+     * Returns the most recent log records held in memory, without touching the log files.
+     * The URI is {@code content://<package>.log/recent} with these optional query parameters:
+     * minLevel (android.util.Log level), tag, since and until (epoch millis, inclusive), limit, and
+     * either afterId to page forward from a record id or beforeId to page back. Without afterId the
+     * newest matching records are returned. Rows are in ascending id order; projection, selection
+     * and sortOrder are not supported.
+     */
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
             String[] selectionArgs,
             String sortOrder) {
-        throw new UnsupportedOperationException("Not implemented");
+        if (uriMatcher.match(uri) != MATCH_RECENT) {
+            throw new IllegalArgumentException("Unknown URI: " + uri);
+        }
+
+        LogRecordRing.Filter filter = new LogRecordRing.Filter(
+                (int) longQueryParameter(uri, PARAM_MIN_LEVEL, Log.VERBOSE),
+                uri.getQueryParameter(PARAM_TAG),
+                longQueryParameter(uri, PARAM_SINCE, Long.MIN_VALUE),
+                longQueryParameter(uri, PARAM_UNTIL, Long.MAX_VALUE));
+        long afterId = longQueryParameter(uri, PARAM_AFTER_ID, -1);
+        long beforeId = longQueryParameter(uri, PARAM_BEFORE_ID, Long.MAX_VALUE);
+        int limit = (int) Math.min(longQueryParameter(uri, PARAM_LIMIT, DEFAULT_QUERY_LIMIT), RECENT_LOGS_CAPACITY);
+
+        MatrixCursor cursor = new MatrixCursor(RECENT_LOGS_COLUMNS);
+        recentLogs.query(filter, afterId, beforeId, limit, cursor);
+        return cursor;
+    }
+
+    private static long longQueryParameter(Uri uri, String name, long defaultValue) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " query parameter: " + value);
+        }
     }
 
     @Override
@@ -203,36 +302,16 @@ public class LoggingContentProvider extends ContentProvider {
 
     @Override
     public void shutdown() {
-        synchronized (loggerLock) {
-            if (logger != null) {
-                for (var handler : logger.getHandlers()) {
-                    try {
-                        handler.close();
-                        logger.removeHandler(handler);
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error closing handler during shutdown", e);
-                    }
+        synchronized (logWriterLock) {
+            if (logWriter != null) {
+                try {
+                    logWriter.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing log writer during shutdown", e);
                 }
-                logger = null;
+                logWriter = null;
             }
         }
         super.shutdown();
     }
-
-    // Custom formatter to format logs as JSON, mimic the format of the tunnel core notices output
-    private static class JsonFormatter extends Formatter {
-        @Override
-        public String format(LogRecord record) {
-            JSONObject json = new JSONObject();
-            try {
-                json.put("tag", record.getLoggerName());
-                json.put("message", record.getMessage());
-                json.put("level", levelToString(record.getLevel()));
-                json.put("timestamp", LogUtils.getRfc3339Timestamp(record.getMillis()));
-            } catch (JSONException e) {
-                Log.e(TAG, "Failed to format log record", e);
-            }
-            return json + "\n";
-        }
-    }
 }
@@ -34,7 +34,8 @@ import java.util.concurrent.TimeUnit;
  * LogsMaintenanceWorker is a periodic worker responsible for maintaining feedback files
  * within the application. This worker periodically deletes feedback files that are older
  * than a specified duration (DELETE_LOGS_AFTER_MILLIS) to free up space and ensure that
- * feedback files storage does not grow indefinitely.
+ * feedback files storage does not grow indefinitely. It then runs the StorageBudgetManager to
+ * keep the files the app writes within their storage budget.
  *
  * This worker is scheduled to run every REPEAT_INTERVAL_HOURS hours using WorkManager.
  * If there is an existing work request with the same unique name, it will cancel and
@@ -69,6 +70,14 @@ public class LogsMaintenanceWorker extends Worker {
   public Result doWork() {
     long cutOffTime = System.currentTimeMillis() - DELETE_LOGS_AFTER_MILLIS;
     LogFileUtils.deleteFeedbackLogsOlderThan(getApplicationContext(), cutOffTime);
+
+    StorageBudgetManager.Usage usage = StorageBudgetManager.enforce(getApplicationContext());
+    MyLog.i(TAG_WORK, "Storage usage", MyLog.fields()
+      .put("totalBytes", usage.totalBytes())
+      .put("budgetBytes", usage.budgetBytes())
+      .put("bytesByCategory", usage.bytesByCategory())
+      .put("evictedItems", usage.evictedItems())
+      .put("evictedBytes", usage.evictedBytes()));
     return Result.success();
   }
 }
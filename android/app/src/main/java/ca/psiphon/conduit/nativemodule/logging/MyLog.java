@@ -24,10 +24,17 @@ import android.content.Context;
 import android.net.Uri;
 import android.util.Log;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.IllegalFormatException;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -69,13 +76,135 @@ public class MyLog {
     private static final Set<Integer> RETRYABLE_LOG_LEVELS =
             new HashSet<>(Arrays.asList(Log.ERROR, Log.WARN, Log.INFO));
 
-    private static void log(String tag, String msg, int level) {
+    // Rate limit of persisted lines per tag and level, so that a storm of repeated lines can neither
+    // evict the rest of the rotating logs nor flood the provider with inserts
+    private static final double DEFAULT_MESSAGES_PER_SECOND = 5;
+    private static final int DEFAULT_BURST = 20;
+    private static final int DEFAULT_SAMPLE_EVERY = 100;
+    private static final LogRateLimiter rateLimiter =
+            new LogRateLimiter(DEFAULT_MESSAGES_PER_SECOND, DEFAULT_BURST, DEFAULT_SAMPLE_EVERY);
+
+    // Number of lines this process did not persist because of the rate limit, per tag, reported with
+    // feedback
+    public static Map<String, Long> getSuppressedCountsByTag() {
+        return rateLimiter.getSuppressedCountsByTag();
+    }
+
+    // Structured fields of a log line, rendered to a JSON object on the log executor
+    public static final class Fields {
+        private final List<Object> keysAndValues = new ArrayList<>();
+
+        private Fields() {
+        }
+
+        public Fields put(String key, Object value) {
+            keysAndValues.add(key);
+            keysAndValues.add(value);
+            return this;
+        }
+
+        private String toJson() {
+            JSONObject json = new JSONObject();
+            for (int i = 0; i < keysAndValues.size(); i += 2) {
+                String key = (String) keysAndValues.get(i);
+                Object value = keysAndValues.get(i + 1);
+                // Keep numbers and booleans typed, anything else is stored as its string value
+                Object wrapped = value instanceof Number || value instanceof Boolean ? value : String.valueOf(value);
+                try {
+                    json.put(key, wrapped);
+                } catch (JSONException e) {
+                    // Non-finite double, store it as a string instead
+                    try {
+                        json.put(key, String.valueOf(value));
+                    } catch (JSONException ignored) {
+                    }
+                }
+            }
+            return json.toString();
+        }
+
+        @Override
+        public String toString() {
+            return toJson();
+        }
+    }
+
+    public static Fields fields() {
+        return new Fields();
+    }
+
+    // Whether a line of the level is logged anywhere; DEBUG and VERBOSE only go to logcat in debug builds
+    public static boolean isLoggable(int level) {
+        return BuildConfig.DEBUG || level > Log.DEBUG;
+    }
+
+    // Results of admit besides the number of suppressed lines to report
+    private static final int NOT_LOGGED = -1;
+    private static final int LOGCAT_ONLY = -2;
+
+    // Checks the level and the rate limit of a line before its arguments are collected, so that a line
+    // that goes nowhere costs no allocation. Returns NOT_LOGGED, LOGCAT_ONLY, or the number of lines
+    // of the tag suppressed before this one, to report along with it.
+    private static int admit(String tag, int level) {
+        if (!isLoggable(level)) {
+            return NOT_LOGGED;
+        }
+        // DEBUG and VERBOSE lines are not logged to file
+        if (level == Log.DEBUG || level == Log.VERBOSE) {
+            return LOGCAT_ONLY;
+        }
+        int suppressed = rateLimiter.acquire(tag, level, System.nanoTime());
+        if (suppressed == LogRateLimiter.SUPPRESSED) {
+            return BuildConfig.DEBUG ? LOGCAT_ONLY : NOT_LOGGED;
+        }
+        return suppressed;
+    }
+
+    private static void log(String tag, int level, String msg) {
+        int admitted = admit(tag, level);
+        if (admitted != NOT_LOGGED) {
+            emit(tag, level, admitted, msg, null, null);
+        }
+    }
+
+    private static void log(String tag, int level, String format, Object arg) {
+        int admitted = admit(tag, level);
+        if (admitted != NOT_LOGGED) {
+            emit(tag, level, admitted, format, new Object[]{arg}, null);
+        }
+    }
+
+    private static void log(String tag, int level, String format, Object arg1, Object arg2) {
+        int admitted = admit(tag, level);
+        if (admitted != NOT_LOGGED) {
+            emit(tag, level, admitted, format, new Object[]{arg1, arg2}, null);
+        }
+    }
+
+    private static void log(String tag, int level, String format, Object[] args) {
+        int admitted = admit(tag, level);
+        if (admitted != NOT_LOGGED) {
+            emit(tag, level, admitted, format, args, null);
+        }
+    }
+
+    private static void log(String tag, int level, String msg, Fields fields) {
+        int admitted = admit(tag, level);
+        if (admitted != NOT_LOGGED) {
+            emit(tag, level, admitted, msg, null, fields);
+        }
+    }
+
+    // Logs a line admitted by admit. The message is format rendered with args when args are given.
+    // Formatting, and reading the args and field values, happens on the log executor for persisted
+    // lines; they must not be mutated after the call.
+    private static void emit(String tag, int level, int admitted, String format, Object[] args, Fields fields) {
         // Log to Logcat in debug mode
         if (BuildConfig.DEBUG) {
-            Log.println(level, tag, msg);
+            String msg = render(format, args);
+            Log.println(level, tag, fields == null ? msg : msg + " " + fields);
         }
-        // Skip logging to file if the level is DEBUG or VERBOSE
-        if (level == Log.DEBUG || level == Log.VERBOSE) {
+        if (admitted == LOGCAT_ONLY) {
             return;
         }
 
@@ -101,12 +230,38 @@ public class MyLog {
             }
         }
 
-        final ContentValues values = new ContentValues();
-        values.put("tag", tag);
-        values.put("message", msg);
-        values.put("level", level);
-        values.put("timestamp", System.currentTimeMillis());
-        executorService.execute(() -> insertWithRetry(context, uri, values, level, 0));
+        long timestamp = System.currentTimeMillis();
+        if (admitted > 0) {
+            insert(context, uri, tag, level, timestamp, "%d similar messages suppressed", new Object[]{admitted}, null);
+        }
+        insert(context, uri, tag, level, timestamp, format, args, fields);
+    }
+
+    private static String render(String format, Object[] args) {
+        if (args == null || args.length == 0) {
+            return format;
+        }
+        try {
+            return String.format(Locale.US, format, args);
+        } catch (IllegalFormatException e) {
+            // Keep the line rather than lose it to a bad format
+            return format + " " + Arrays.toString(args);
+        }
+    }
+
+    private static void insert(Context context, Uri uri, String tag, int level, long timestamp,
+            String format, Object[] args, Fields fields) {
+        executorService.execute(() -> {
+            final ContentValues values = new ContentValues();
+            values.put("tag", tag);
+            values.put("message", render(format, args));
+            values.put("level", level);
+            values.put("timestamp", timestamp);
+            if (fields != null) {
+                values.put("fields", fields.toJson());
+            }
+            insertWithRetry(context, uri, values, level, 0);
+        });
     }
 
     private static void insertWithRetry(Context context, Uri uri, ContentValues values, int level, int attempt) {
@@ -156,23 +311,105 @@ public class MyLog {
         });
     }
 
+    // The fixed arity overloads do not allocate when the line is not logged, other than boxing
+    // primitive arguments; guard calls with more arguments on isLoggable in hot paths.
     public static void i(String tag, String msg) {
-        log(tag, msg, Log.INFO);
+        log(tag, Log.INFO, msg);
+    }
+
+    public static void i(String tag, String format, Object arg) {
+        log(tag, Log.INFO, format, arg);
+    }
+
+    public static void i(String tag, String format, Object arg1, Object arg2) {
+        log(tag, Log.INFO, format, arg1, arg2);
+    }
+
+    public static void i(String tag, String format, Object... args) {
+        log(tag, Log.INFO, format, args);
+    }
+
+    public static void i(String tag, String msg, Fields fields) {
+        log(tag, Log.INFO, msg, fields);
     }
 
     public static void e(String tag, String msg) {
-        log(tag, msg, Log.ERROR);
+        log(tag, Log.ERROR, msg);
     }
 
-    public static void d(String tag, String msg) {
-        log(tag, msg, Log.DEBUG);
+    public static void e(String tag, String format, Object arg) {
+        log(tag, Log.ERROR, format, arg);
+    }
+
+    public static void e(String tag, String format, Object arg1, Object arg2) {
+        log(tag, Log.ERROR, format, arg1, arg2);
+    }
+
+    public static void e(String tag, String format, Object... args) {
+        log(tag, Log.ERROR, format, args);
+    }
+
+    public static void e(String tag, String msg, Fields fields) {
+        log(tag, Log.ERROR, msg, fields);
     }
 
     public static void w(String tag, String msg) {
-        log(tag, msg, Log.WARN);
+        log(tag, Log.WARN, msg);
+    }
+
+    public static void w(String tag, String format, Object arg) {
+        log(tag, Log.WARN, format, arg);
+    }
+
+    public static void w(String tag, String format, Object arg1, Object arg2) {
+        log(tag, Log.WARN, format, arg1, arg2);
+    }
+
+    public static void w(String tag, String format, Object... args) {
+        log(tag, Log.WARN, format, args);
+    }
+
+    public static void w(String tag, String msg, Fields fields) {
+        log(tag, Log.WARN, msg, fields);
+    }
+
+    public static void d(String tag, String msg) {
+        log(tag, Log.DEBUG, msg);
+    }
+
+    public static void d(String tag, String format, Object arg) {
+        log(tag, Log.DEBUG, format, arg);
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        log(tag, Log.DEBUG, format, arg1, arg2);
+    }
+
+    public static void d(String tag, String format, Object... args) {
+        log(tag, Log.DEBUG, format, args);
+    }
+
+    public static void d(String tag, String msg, Fields fields) {
+        log(tag, Log.DEBUG, msg, fields);
     }
 
     public static void v(String tag, String msg) {
-        log(tag, msg, Log.VERBOSE);
+        log(tag, Log.VERBOSE, msg);
+    }
+
+    public static void v(String tag, String format, Object arg) {
+        log(tag, Log.VERBOSE, format, arg);
+    }
+
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        log(tag, Log.VERBOSE, format, arg1, arg2);
+    }
+
+    public static void v(String tag, String format, Object... args) {
+        log(tag, Log.VERBOSE, format, args);
+    }
+
+    public static void v(String tag, String msg, Fields fields) {
+        log(tag, Log.VERBOSE, msg, fields);
     }
 }
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule.logging;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import ca.psiphon.conduit.nativemodule.IoAccounting;
+
+/**
+ * Appends log records, encoded with LogRecordCodec, to a set of rotating segment files and writes a
+ * sparse time index next to each segment.
+ *
+ * Segments are named like the java.util.logging.FileHandler generations they replace: the active
+ * segment is {@code <baseName>.0}, older segments have higher generation numbers. Every
+ * INDEX_INTERVAL_RECORDS records, an index entry with the record timestamp and the byte offset of
+ * the record in the segment is appended to {@code <segment>.idx} as two big endian longs, so that
+ * readers can seek close to a point in time instead of scanning the whole segment.
+ *
+ * With a buffer size set, records are buffered and written at most flushDelayMillis after the first
+ * buffered record, or once the buffer is full; a warning or error record is written right away
+ * along with the records buffered before it. Index entries are written with the records they point
+ * to. Bytes written are counted in IoAccounting.
+ */
+class RotatingLogWriter implements Closeable {
+    private static final String TAG = RotatingLogWriter.class.getSimpleName();
+    static final String INDEX_FILE_EXTENSION = ".idx";
+    static final int INDEX_INTERVAL_RECORDS = 64;
+    private static final String LEGACY_LOCK_FILE_EXTENSION = ".lck";
+
+    private final File directory;
+    private final String baseName;
+    private final long maxSegmentSize;
+    private final int segmentCount;
+    private long flushDelayMillis;
+    private int bufferBytes;
+
+    private final LogRecordCodec.Encoder encoder = new LogRecordCodec.Encoder();
+    private FileOutputStream segmentOutputStream;
+    private DataOutputStream indexOutputStream;
+    private long segmentSize;
+    private int recordsSinceIndexEntry;
+
+    // Records and index bytes not written yet when buffering
+    private final ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+    private int pendingIndexBytes;
+    private ScheduledFuture<?> scheduledFlush;
+    private static ScheduledExecutorService flushExecutor;
+
+    // A bufferBytes of 0 writes every record right away
+    RotatingLogWriter(File directory, String baseName, long maxSegmentSize, int segmentCount,
+            long flushDelayMillis, int bufferBytes) throws IOException {
+        this.directory = directory;
+        this.baseName = baseName;
+        this.maxSegmentSize = maxSegmentSize;
+        this.segmentCount = segmentCount;
+        this.flushDelayMillis = flushDelayMillis;
+        this.bufferBytes = bufferBytes;
+
+        // Remove lock files left behind by the FileHandler this writer replaces
+        for (int i = 0; i < segmentCount; i++) {
+            new File(directory, baseName + "." + i + LEGACY_LOCK_FILE_EXTENSION).delete();
+        }
+        // Never append binary records to a JSON lines segment written by an earlier version
+        File activeSegment = segmentFile(directory, baseName, 0);
+        if (activeSegment.length() > 0 && !LogRecordCodec.isBinaryLogFile(activeSegment)) {
+            shiftSegments();
+        }
+        openActiveSegment();
+    }
+
+    static File segmentFile(File directory, String baseName, int generation) {
+        return new File(directory, baseName + "." + generation);
+    }
+
+    static File indexFile(File segmentFile) {
+        return new File(segmentFile.getPath() + INDEX_FILE_EXTENSION);
+    }
+
+    // Appends a record, rotating first if the record does not fit in the active segment
+    synchronized void write(long timestampMillis, int level, String tag, String message, String fields)
+            throws IOException {
+        if (segmentOutputStream == null) {
+            throw new IOException("Log writer is closed");
+        }
+        encoder.encode(timestampMillis, level, tag, message, fields);
+        if (segmentSize > LogRecordCodec.MAGIC.length && segmentSize + encoder.size() > maxSegmentSize) {
+            rotate();
+        }
+        if (recordsSinceIndexEntry == 0) {
+            // Index points start a new block so that decoding can start at the indexed offset
+            encoder.startBlock();
+            encoder.encode(timestampMillis, level, tag, message, fields);
+            indexOutputStream.writeLong(timestampMillis);
+            indexOutputStream.writeLong(segmentSize);
+            pendingIndexBytes += 2 * Long.BYTES;
+        }
+        encoder.writeTo(pendingRecords);
+        segmentSize += encoder.size();
+        recordsSinceIndexEntry = (recordsSinceIndexEntry + 1) % INDEX_INTERVAL_RECORDS;
+
+        if (bufferBytes <= 0 || level >= Log.WARN || pendingRecords.size() >= bufferBytes) {
+            flushPending();
+        } else if (scheduledFlush == null) {
+            scheduledFlush = flushExecutor().schedule(this::scheduledFlush, flushDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Writes any buffered records
+    synchronized void flush() throws IOException {
+        if (segmentOutputStream != null) {
+            flushPending();
+        }
+    }
+
+    // Changes how records are buffered from now on, writing any records buffered so far
+    synchronized void setBuffering(long flushDelayMillis, int bufferBytes) throws IOException {
+        this.flushDelayMillis = flushDelayMillis;
+        this.bufferBytes = bufferBytes;
+        flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeActiveSegment();
+    }
+
+    private synchronized void scheduledFlush() {
+        scheduledFlush = null;
+        try {
+            flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to flush log records", e);
+        }
+    }
+
+    private void flushPending() throws IOException {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        // Records first so that an index entry never points past the written records
+        int recordBytes = pendingRecords.size();
+        if (recordBytes > 0) {
+            pendingRecords.writeTo(segmentOutputStream);
+            pendingRecords.reset();
+        }
+        if (pendingIndexBytes > 0) {
+            indexOutputStream.flush();
+        }
+        IoAccounting.recordWrite(IoAccounting.Subsystem.APP_LOGS, recordBytes + pendingIndexBytes);
+        pendingIndexBytes = 0;
+    }
+
+    private static synchronized ScheduledExecutorService flushExecutor() {
+        if (flushExecutor == null) {
+            flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return flushExecutor;
+    }
+
+    private void openActiveSegment() throws IOException {
+        File segment = segmentFile(directory, baseName, 0);
+        File index = indexFile(segment);
+        truncateTornRecord(segment);
+        segmentOutputStream = new FileOutputStream(segment, true);
+        indexOutputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index, true)));
+        segmentSize = segment.length();
+        if (segmentSize == 0) {
+            segmentOutputStream.write(LogRecordCodec.MAGIC);
+            segmentSize = LogRecordCodec.MAGIC.length;
+            IoAccounting.recordWrite(IoAccounting.Subsystem.APP_LOGS, segmentSize);
+        }
+        // Start the next record with an index entry
+        recordsSinceIndexEntry = 0;
+    }
+
+    // Cuts a segment left by a crash or power loss back to its last complete record, so that the
+    // records appended next are not lost behind a torn one, and drops the index entries past it.
+    // Scans from the last index point only, the records before it were complete when it was written.
+    private static void truncateTornRecord(File segment) throws IOException {
+        long length = segment.length();
+        if (length <= LogRecordCodec.MAGIC.length) {
+            return;
+        }
+        long[] offsets = readIndex(segment).offsets();
+        long scanOffset = LogRecordCodec.MAGIC.length;
+        int validIndexEntries = 0;
+        for (int i = offsets.length - 1; i >= 0; i--) {
+            if (offsets[i] >= LogRecordCodec.MAGIC.length && offsets[i] < length) {
+                scanOffset = offsets[i];
+                validIndexEntries = i + 1;
+                break;
+            }
+        }
+        long validLength = LogRecordCodec.validLength(segment, scanOffset);
+        if (validLength < length) {
+            // Logged to logcat only, this runs while the app log writer is being opened
+            Log.w(TAG, "Truncating " + (length - validLength) + " bytes of torn log records from " +
+                    segment.getName());
+            try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                file.setLength(validLength);
+            }
+        }
+        // Also drop a torn index entry and entries pointing past the valid records
+        if (validLength == scanOffset && validIndexEntries > 0) {
+            // The indexed record itself is gone
+            validIndexEntries--;
+        }
+        File index = indexFile(segment);
+        long validIndexLength = (long) validIndexEntries * 2 * Long.BYTES;
+        if (index.length() > validIndexLength) {
+            try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+                file.setLength(validIndexLength);
+            }
+        }
+    }
+
+    private void closeActiveSegment() throws IOException {
+        IOException exception = null;
+        if (segmentOutputStream != null) {
+            try {
+                flushPending();
+            } catch (IOException e) {
+                exception = e;
+            }
+            try {
+                segmentOutputStream.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+            segmentOutputStream = null;
+        }
+        if (indexOutputStream != null) {
+            try {
+                indexOutputStream.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+            indexOutputStream = null;
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private void rotate() throws IOException {
+        closeActiveSegment();
+        shiftSegments();
+        openActiveSegment();
+    }
+
+    // Renames each segment and its index to the next generation, dropping the oldest
+    private void shiftSegments() {
+        for (int generation = segmentCount - 1; generation >= 0; generation--) {
+            File segment = segmentFile(directory, baseName, generation);
+            File index = indexFile(segment);
+            if (generation == segmentCount - 1) {
+                segment.delete();
+                index.delete();
+                continue;
+            }
+            File nextSegment = segmentFile(directory, baseName, generation + 1);
+            if (segment.exists()) {
+                segment.renameTo(nextSegment);
+            }
+            if (index.exists()) {
+                index.renameTo(indexFile(nextSegment));
+            } else {
+                indexFile(nextSegment).delete();
+            }
+        }
+    }
+
+    // Reads the index of a segment, returns an empty index if there is none
+    static Index readIndex(File segmentFile) {
+        File index = indexFile(segmentFile);
+        List<long[]> entries = new ArrayList<>();
+        if (index.exists()) {
+            try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+                while (true) {
+                    long timestampMillis = inputStream.readLong();
+                    long offset = inputStream.readLong();
+                    entries.add(new long[]{timestampMillis, offset});
+                }
+            } catch (EOFException e) {
+                // End of the index, a truncated last entry is ignored
+            } catch (IOException e) {
+                MyLog.w(TAG, "Failed to read log index " + index.getName() + ": " + e);
+            }
+        }
+        long[] timestamps = new long[entries.size()];
+        long[] offsets = new long[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            timestamps[i] = entries.get(i)[0];
+            offsets[i] = entries.get(i)[1];
+        }
+        return new Index(timestamps, offsets);
+    }
+
+    record Index(long[] timestamps, long[] offsets) {
+        // Offset to start reading from to find records at or after the time. Starts one entry early
+        // since records are only almost time ordered.
+        long startOffset(long fromMillis) {
+            int i = upperBound(fromMillis) - 2;
+            return i < 0 ? 0 : offsets[i];
+        }
+
+        // Number of entries with a timestamp at or before the time
+        private int upperBound(long millis) {
+            int low = 0;
+            int high = timestamps.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timestamps[mid] <= millis) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2024, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package ca.psiphon.conduit.nativemodule.logging;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.psiphon.conduit.nativemodule.ConduitModule;
+import ca.psiphon.conduit.nativemodule.Constants;
+import ca.psiphon.conduit.nativemodule.IoAccounting;
+import ca.psiphon.conduit.nativemodule.PackageHelper;
+import ca.psiphon.conduit.nativemodule.PsiphonConfigCache;
+import psi.Psi;
+
+/**
+ * Keeps the files the app writes within a single byte budget, with a quota per category.
+ *
+ * Usage is measured per item, an item being a file, a rotated log file and its index, or a feedback
+ * snapshot directory. Files are measured with a stat each; directories are measured once and
+ * their size kept in a ledger, keyed by the directory modification time, so that a run does not walk
+ * directories that have not changed. Feedback snapshot directories are written once and never change.
+ * Their files are hard links to log files, so data that has more than one link is only counted once,
+ * against the first file measured that links to it; the live log files are measured first. A
+ * directory holding such files is measured again on every run since its usage changes as the other
+ * links go away.
+ *
+ * A run first brings each category within its quota, then the total within the budget, evicting
+ * the oldest evictable items of the categories in eviction priority order. Files that are being
+ * written to or that the app needs, like the active log files and the trusted signatures, count
+ * towards the usage but are never evicted. Neither are the files of a feedback that is still waiting
+ * to be uploaded, or of any feedback younger than the feedback retention period if the pending
+ * uploads cannot be determined.
+ */
+public class StorageBudgetManager {
+  private static final String TAG = StorageBudgetManager.class.getSimpleName();
+  private static final String PREFS_NAME = "StorageBudgetPrefs";
+  private static final String PREF_TOTAL_BUDGET_BYTES = "totalBudgetBytes";
+  private static final String PREF_QUOTA_PREFIX = "quotaBytes.";
+  private static final String LEDGER_FILE_NAME = "storage_ledger.json";
+  private static final long DEFAULT_TOTAL_BUDGET_BYTES = 8L * Constants.ONE_MB;
+
+  // Categories in eviction priority order, the first is evicted first
+  public enum Category {
+    FEEDBACK(4L * Constants.ONE_MB),
+    CONFIG_CACHE(Constants.QUARTER_MB),
+    APP_LOGS(Constants.ONE_MB),
+    TUNNEL_CORE_NOTICES(2L * Constants.ONE_MB),
+    TRUSTED_SIGNATURES(Constants.QUARTER_MB);
+
+    final long defaultQuotaBytes;
+
+    Category(long defaultQuotaBytes) {
+      this.defaultQuotaBytes = defaultQuotaBytes;
+    }
+  }
+
+  public record Usage(long totalBytes, long budgetBytes, Map<Category, Long> bytesByCategory, int evictedItems,
+                      long evictedBytes) {
+  }
+
+  private record Item(Category category, String name, List<File> files, long bytes, long lastModified,
+                      boolean evictable) {
+  }
+
+  // Sets the total budget, 0 or less restores the default
+  public static void setTotalBudgetBytes(Context context, long bytes) {
+    SharedPreferences.Editor editor = prefs(context).edit();
+    if (bytes > 0) {
+      editor.putLong(PREF_TOTAL_BUDGET_BYTES, bytes);
+    } else {
+      editor.remove(PREF_TOTAL_BUDGET_BYTES);
+    }
+    editor.apply();
+  }
+
+  // Sets the quota of a category, 0 or less restores the default
+  public static void setQuotaBytes(Context context, Category category, long bytes) {
+    SharedPreferences.Editor editor = prefs(context).edit();
+    if (bytes > 0) {
+      editor.putLong(PREF_QUOTA_PREFIX + category.name(), bytes);
+    } else {
+      editor.remove(PREF_QUOTA_PREFIX + category.name());
+    }
+    editor.apply();
+  }
+
+  // Measures the current usage without evicting anything, reported with feedback. Blocks, only call
+  // from a worker thread.
+  public static synchronized Usage getUsage(Context context) {
+    JSONObject ledger = readLedger(context);
+    String previousLedger = ledger.toString();
+    List<Item> items = measure(context, ledger);
+    writeLedger(context, ledger, previousLedger);
+    return usage(items, totalBudgetBytes(context), 0, 0);
+  }
+
+  // Evicts items until every category is within its quota and the total within the budget. Blocks,
+  // only call from a worker thread.
+  public static synchronized Usage enforce(Context context) {
+    SharedPreferences prefs = prefs(context);
+    long budgetBytes = totalBudgetBytes(context);
+    JSONObject ledger = readLedger(context);
+    String previousLedger = ledger.toString();
+    List<Item> items = measure(context, ledger);
+    // Oldest first within a category, categories in eviction priority order
+    items.sort((i1, i2) -> {
+      int result = i1.category().compareTo(i2.category());
+      return result != 0 ? result : Long.compare(i1.lastModified(), i2.lastModified());
+    });
+
+    Map<Category, Long> bytesByCategory = bytesByCategory(items);
+    long totalBytes = 0;
+    for (long bytes : bytesByCategory.values()) {
+      totalBytes += bytes;
+    }
+    int evictedItems = 0;
+    long evictedBytes = 0;
+
+    // First pass brings each category within its quota, second pass the total within the budget
+    for (int pass = 0; pass < 2; pass++) {
+      Iterator<Item> iterator = items.iterator();
+      while (iterator.hasNext()) {
+        Item item = iterator.next();
+        Category category = item.category();
+        boolean overQuota = bytesByCategory.get(category) >
+                prefs.getLong(PREF_QUOTA_PREFIX + category.name(), category.defaultQuotaBytes);
+        boolean overBudget = totalBytes > budgetBytes;
+        if (!item.evictable() || !(pass == 0 ? overQuota : overBudget)) {
+          continue;
+        }
+        if (!evict(item)) {
+          continue;
+        }
+        iterator.remove();
+        ledger.remove(item.name());
+        bytesByCategory.put(category, bytesByCategory.get(category) - item.bytes());
+        totalBytes -= item.bytes();
+        evictedItems++;
+        evictedBytes += item.bytes();
+      }
+    }
+
+    writeLedger(context, ledger, previousLedger);
+    return usage(items, budgetBytes, evictedItems, evictedBytes);
+  }
+
+  private static boolean evict(Item item) {
+    boolean deleted = true;
+    for (File file : item.files()) {
+      if (file.exists() && !LogFileUtils.deleteRecursively(file)) {
+        deleted = false;
+      }
+    }
+    if (deleted) {
+      MyLog.i(TAG, "Evicted " + item.category() + " " + item.name() + ", " + item.bytes() + " bytes");
+    } else {
+      MyLog.e(TAG, "Failed to evict " + item.category() + " " + item.name());
+    }
+    return deleted;
+  }
+
+  private static List<Item> measure(Context context, JSONObject ledger) {
+    File dataRootDirectory = ConduitModule.dataRootDirectory(context);
+    List<Item> items = new ArrayList<>();
+    // Inodes of the files with more than one link counted so far
+    Set<String> countedInodes = new HashSet<>();
+
+    addFile(items, Category.CONFIG_CACHE,
+            new File(context.getNoBackupFilesDir(), PsiphonConfigCache.CACHE_FILE_NAME), true, countedInodes);
+
+    // The active app log segment is being written to, rotated segments can go
+    for (int generation = 0; generation < LoggingContentProvider.LOG_FILE_COUNT; generation++) {
+      File segment = RotatingLogWriter.segmentFile(dataRootDirectory, LoggingContentProvider.LOG_FILE_NAME, generation);
+      File index = RotatingLogWriter.indexFile(segment);
+      if (segment.exists() || index.exists()) {
+        items.add(new Item(Category.APP_LOGS, segment.getName(), List.of(segment, index),
+                fileBytes(segment, countedInodes, null) + fileBytes(index, countedInodes, null),
+                segment.lastModified(), generation > 0));
+      }
+    }
+
+    // Tunnel-core keeps the current notices file open, its rotated file can go
+    String dataRootPath = dataRootDirectory.getAbsolutePath();
+    addFile(items, Category.TUNNEL_CORE_NOTICES, new File(Psi.oldNoticesFilePath(dataRootPath)), true,
+            countedInodes);
+    addFile(items, Category.TUNNEL_CORE_NOTICES, new File(Psi.noticesFilePath(dataRootPath)), false,
+            countedInodes);
+
+    addFile(items, Category.TRUSTED_SIGNATURES,
+            new File(context.getFilesDir(), PackageHelper.SIGNATURES_JSON_FILE), false, countedInodes);
+
+    // Feedback files and snapshot directories, measured last since snapshots link to the log files
+    // measured above. Only the feedback that is not waiting to be uploaded is evictable.
+    File feedbackDir = LogFileUtils.feedBackLogsDir(context);
+    File[] feedbackFiles = feedbackDir.listFiles();
+    if (feedbackFiles != null) {
+      Set<String> pendingFeedbackIds = pendingFeedbackIds(context);
+      long retentionCutoffMillis = System.currentTimeMillis() - LogsMaintenanceWorker.DELETE_LOGS_AFTER_MILLIS;
+      for (File file : feedbackFiles) {
+        String name = LogFileUtils.FEEDBACK_DIR + "/" + file.getName();
+        long bytes = file.isDirectory() ?
+                directoryBytes(file, name, ledger, countedInodes) :
+                fileBytes(file, countedInodes, null);
+        boolean evictable = pendingFeedbackIds != null ?
+                !isPendingFeedbackFile(file.getName(), pendingFeedbackIds) :
+                file.lastModified() < retentionCutoffMillis;
+        items.add(new Item(Category.FEEDBACK, name, List.of(file), bytes, file.lastModified(), evictable));
+      }
+    }
+
+    // Drop the ledger entries of directories that are gone
+    List<String> names = new ArrayList<>();
+    for (Item item : items) {
+      names.add(item.name());
+    }
+    List<String> staleNames = new ArrayList<>();
+    Iterator<String> keys = ledger.keys();
+    while (keys.hasNext()) {
+      String name = keys.next();
+      if (!names.contains(name)) {
+        staleNames.add(name);
+      }
+    }
+    for (String name : staleNames) {
+      ledger.remove(name);
+    }
+    return items;
+  }
+
+  private static void addFile(List<Item> items, Category category, File file, boolean evictable,
+                              Set<String> countedInodes) {
+    if (file.exists()) {
+      items.add(new Item(category, file.getName(), List.of(file), fileBytes(file, countedInodes, null),
+              file.lastModified(), evictable));
+    }
+  }
+
+  // Size of a file, or 0 if it has more than one link and its data was already counted. Sets
+  // hasLinks[0] if the file has more than one link.
+  private static long fileBytes(File file, Set<String> countedInodes, boolean[] hasLinks) {
+    StructStat stat;
+    try {
+      stat = Os.stat(file.getAbsolutePath());
+    } catch (ErrnoException e) {
+      // Gone or not accessible, nothing to count
+      return 0;
+    }
+    if (stat.st_nlink > 1) {
+      if (hasLinks != null) {
+        hasLinks[0] = true;
+      }
+      if (!countedInodes.add(stat.st_dev + ":" + stat.st_ino)) {
+        return 0;
+      }
+    }
+    return stat.st_size;
+  }
+
+  // Size of a flat directory, from the ledger if the directory has not changed since it was measured
+  // and held no files with more than one link then
+  private static long directoryBytes(File directory, String name, JSONObject ledger, Set<String> countedInodes) {
+    long lastModified = directory.lastModified();
+    JSONObject entry = ledger.optJSONObject(name);
+    if (entry != null && entry.optLong("lastModified", -1) == lastModified && !entry.optBoolean("hasLinks")) {
+      return entry.optLong("bytes");
+    }
+    long bytes = 0;
+    boolean[] hasLinks = {false};
+    File[] children = directory.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        bytes += fileBytes(child, countedInodes, hasLinks);
+      }
+    }
+    try {
+      ledger.put(name, new JSONObject()
+              .put("lastModified", lastModified)
+              .put("bytes", bytes)
+              .put("hasLinks", hasLinks[0]));
+    } catch (JSONException e) {
+      MyLog.e(TAG, "Failed to update storage ledger: " + e);
+    }
+    return bytes;
+  }
+
+  // Returns the ids of the feedback waiting to be uploaded, or null if they cannot be determined.
+  // Blocks, only call from a worker thread.
+  private static Set<String> pendingFeedbackIds(Context context) {
+    try {
+      List<WorkInfo> workInfos = WorkManager.getInstance(context.getApplicationContext())
+              .getWorkInfosForUniqueWork(FeedbackWorker.UNIQUE_WORK_NAME).get();
+      Set<String> feedbackIds = new HashSet<>();
+      for (WorkInfo workInfo : workInfos) {
+        if (workInfo.getState().isFinished()) {
+          continue;
+        }
+        for (String tag : workInfo.getTags()) {
+          if (tag.startsWith(FeedbackWorker.FEEDBACK_ID_TAG_PREFIX)) {
+            feedbackIds.add(tag.substring(FeedbackWorker.FEEDBACK_ID_TAG_PREFIX.length()));
+          }
+        }
+      }
+      return feedbackIds;
+    } catch (Exception e) {
+      MyLog.w(TAG, "Failed to get the pending feedback uploads: " + e);
+      return null;
+    }
+  }
+
+  // Feedback file names are a prefix followed by the feedback id
+  private static boolean isPendingFeedbackFile(String fileName, Set<String> pendingFeedbackIds) {
+    for (String feedbackId : pendingFeedbackIds) {
+      if (fileName.contains(feedbackId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Map<Category, Long> bytesByCategory(List<Item> items) {
+    Map<Category, Long> bytesByCategory = new EnumMap<>(Category.class);
+    for (Category category : Category.values()) {
+      bytesByCategory.put(category, 0L);
+    }
+    for (Item item : items) {
+      bytesByCategory.put(item.category(), bytesByCategory.get(item.category()) + item.bytes());
+    }
+    return bytesByCategory;
+  }
+
+  private static Usage usage(List<Item> items, long budgetBytes, int evictedItems, long evictedBytes) {
+    Map<Category, Long> bytesByCategory = bytesByCategory(items);
+    long totalBytes = 0;
+    for (long bytes : bytesByCategory.values()) {
+      totalBytes += bytes;
+    }
+    return new Usage(totalBytes, budgetBytes, bytesByCategory, evictedItems, evictedBytes);
+  }
+
+  private static long totalBudgetBytes(Context context) {
+    return prefs(context).getLong(PREF_TOTAL_BUDGET_BYTES, DEFAULT_TOTAL_BUDGET_BYTES);
+  }
+
+  private static SharedPreferences prefs(Context context) {
+    return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+  }
+
+  private static File ledgerFile(Context context) {
+    return new File(context.getNoBackupFilesDir(), LEDGER_FILE_NAME);
+  }
+
+  private static JSONObject readLedger(Context context) {
+    File file = ledgerFile(context);
+    if (!file.exists()) {
+      return new JSONObject();
+    }
+    try {
+      return new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    } catch (IOException | JSONException e) {
+      // The ledger is only a cache, start over
+      MyLog.w(TAG, "Failed to read storage ledger: " + e);
+      return new JSONObject();
+    }
+  }
+
+  // Writes the ledger unless it is unchanged since it was read
+  private static void writeLedger(Context context, JSONObject ledger, String previousLedger) {
+    String content = ledger.toString();
+    if (content.equals(previousLedger)) {
+      return;
+    }
+    File file = ledgerFile(context);
+    File tempFile = new File(file.getParentFile(), LEDGER_FILE_NAME + ".tmp");
+    try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+      byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+      outputStream.write(bytes);
+      IoAccounting.recordWrite(IoAccounting.Subsystem.STORAGE_LEDGER, bytes.length);
+    } catch (IOException e) {
+      MyLog.e(TAG, "Failed to write storage ledger: " + e);
+      return;
+    }
+    if (!tempFile.renameTo(file)) {
+      MyLog.e(TAG, "Failed to rename storage ledger");
+    }
+  }
+}
@@ -36,6 +36,12 @@ public class ProxyActivityStats extends DataStats implements Parcelable {
   private int currentConnectingClients = 0;
   private int currentConnectedClients = 0;
   private long startTime;
+  // Capacity level applied by the service, why, and how many times it changed, see CapacityController
+  private String capacityLevel = "FULL";
+  private String capacityReason = "";
+  private int capacityAdjustments = 0;
+  // Connected clients dropped by tunnel restarts for parameter or network profile changes
+  private int reconfigurationDroppedClients = 0;
 
   public ProxyActivityStats() {
     super();
@@ -70,6 +76,32 @@ public class ProxyActivityStats extends DataStats implements Parcelable {
     return now() - startTime;
   }
 
+  public String getCapacityLevel() {
+    return capacityLevel;
+  }
+
+  public String getCapacityReason() {
+    return capacityReason;
+  }
+
+  public int getCapacityAdjustments() {
+    return capacityAdjustments;
+  }
+
+  public void setCapacity(String level, String reason, int adjustments) {
+    capacityLevel = level;
+    capacityReason = reason;
+    capacityAdjustments = adjustments;
+  }
+
+  public int getReconfigurationDroppedClients() {
+    return reconfigurationDroppedClients;
+  }
+
+  public void addReconfigurationDroppedClients(int droppedClients) {
+    reconfigurationDroppedClients += droppedClients;
+  }
+
   public List<Long> getBytesUpSeries(int bucketCollectionIndex) {
     return getBucketCollection(bucketCollectionIndex).getSeries(0);
   }
@@ -97,6 +129,10 @@ public class ProxyActivityStats extends DataStats implements Parcelable {
     currentAnnouncingWorkers = in.readInt();
     currentConnectingClients = in.readInt();
     currentConnectedClients = in.readInt();
+    capacityLevel = in.readString();
+    capacityReason = in.readString();
+    capacityAdjustments = in.readInt();
+    reconfigurationDroppedClients = in.readInt();
     int listSize = in.readInt();
     this.bucketCollections = new ArrayList<>(listSize);
     for (int i = 0; i < listSize; i++) {
@@ -113,6 +149,10 @@ public class ProxyActivityStats extends DataStats implements Parcelable {
     dest.writeInt(currentAnnouncingWorkers);
     dest.writeInt(currentConnectingClients);
     dest.writeInt(currentConnectedClients);
+    dest.writeString(capacityLevel);
+    dest.writeString(capacityReason);
+    dest.writeInt(capacityAdjustments);
+    dest.writeInt(reconfigurationDroppedClients);
     dest.writeInt(bucketCollections.size());
     for (BucketCollection collection : bucketCollections) {
       dest.writeParcelable(collection, flags);
@@ -22,7 +22,12 @@ import { NativeEventEmitter } from "react-native";
 import { timedLog } from "@/src/common/utils";
 import { ASYNCSTORAGE_MOCK_INPROXY_RUNNING_KEY } from "@/src/constants";
 import { ConduitModuleAPI } from "@/src/inproxy/module";
-import { InproxyActivityStats, InproxyParameters } from "@/src/inproxy/types";
+import {
+    InproxyActivityStats,
+    InproxyParameters,
+    IoMode,
+    PowerLockMode,
+} from "@/src/inproxy/types";
 import { getZeroedInproxyActivityStats } from "@/src/inproxy/utils";
 
 const sleep = (ms: number) => new Promise((r) => setTimeout(r, ms));
@@ -200,6 +205,14 @@ class ConduitModuleMock {
         return null;
     }
 
+    public async setIoMode(mode: IoMode | null) {
+        timedLog(`MOCK: ConduitModuleMock.setIoMode(${mode})`);
+    }
+
+    public async setPowerLockMode(mode: PowerLockMode | null) {
+        timedLog(`MOCK: ConduitModuleMock.setPowerLockMode(${mode})`);
+    }
+
     public logInfo(tag: string, msg: string) {
         timedLog(`MOCK: ConduitModuleMock.logInfo TAG=${tag} msg=${msg}`);
     }
@@ -18,7 +18,11 @@
  */
 import { NativeModules } from "react-native";
 
-import { InproxyParameters } from "@/src/inproxy/types";
+import {
+    InproxyParameters,
+    IoMode,
+    PowerLockMode,
+} from "@/src/inproxy/types";
 
 export interface ConduitModuleAPI {
     toggleInProxy: (params: InproxyParameters) => Promise<void>;
@@ -26,6 +30,12 @@ export interface ConduitModuleAPI {
     addListener: (eventName: string) => void;
     removeListeners: (count: number) => void;
     sendFeedback: (inproxyId: string) => Promise<null | string>;
+    // Android only. Overrides how eagerly logs are written to flash, null
+    // restores the device default.
+    setIoMode?: (mode: IoMode | null) => Promise<void>;
+    // Android only. Opts in to holding power locks while the in-proxy has
+    // clients, null restores the default of holding none.
+    setPowerLockMode?: (mode: PowerLockMode | null) => Promise<void>;
     logInfo: (tag: string, msg: string) => void;
     logError: (tag: string, msg: string) => void;
     logWarn: (tag: string, msg: string) => void;
@@ -55,6 +55,13 @@ export const InproxyActivityStatsSchema = z.object({
     currentAnnouncingWorkers: z.number(),
     currentConnectingClients: z.number(),
     currentConnectedClients: z.number(),
+    // Set by the Android service when it scales capacity down under battery,
+    // thermal or CPU pressure
+    capacityLevel: z.enum(["FULL", "REDUCED", "MINIMAL"]).optional(),
+    capacityReason: z.string().optional(),
+    // Connected clients dropped by tunnel restarts for parameter or network
+    // profile changes, set by the Android service
+    reconfigurationDroppedClients: z.number().optional(),
     dataByPeriod: z.object({
         "1000ms": InproxyActivityDataByPeriodSchema,
     }),
@@ -69,6 +76,17 @@ export const InproxyEventSchema = z.object({
     ]),
 });
 
+// How eagerly the Android module writes logs to flash, see IoPolicy.java
+export const IoModeSchema = z.enum([
+    "IMMEDIATE",
+    "BATCHED",
+    "BATCHED_CAPPED",
+]);
+
+// Which power locks the Android module holds while the in-proxy has clients,
+// see PowerLockPolicy.java
+export const PowerLockModeSchema = z.enum(["OFF", "WIFI", "WIFI_AND_WAKE"]);
+
 const InproxyTimeSchema = z.string().regex(/^([01]\d|2[0-3]):([0-5]\d)$/);
 
 // These are the user-configurable parameters for the inproxy.
@@ -91,6 +109,19 @@ export const InproxyParametersSchema = z
             .int()
             .positive()
             .optional(),
+        // Used on metered networks, 0 max clients means no sharing there
+        meteredMaxClients: z.number().int().nonnegative().optional(),
+        meteredLimitUpstreamBytesPerSecond: z
+            .number()
+            .int()
+            .nonnegative()
+            .optional(),
+        meteredLimitDownstreamBytesPerSecond: z
+            .number()
+            .int()
+            .nonnegative()
+            .optional(),
+        meteredDailyBytes: z.number().int().positive().optional(),
     })
     .superRefine((params, context) => {
         const reducedFields = [
@@ -123,6 +154,19 @@ export const InproxyParametersSchema = z
                 message: "Reduced max clients cannot exceed max clients",
             });
         }
+
+        const hasAnyMetered = [
+            params.meteredLimitUpstreamBytesPerSecond,
+            params.meteredLimitDownstreamBytesPerSecond,
+            params.meteredDailyBytes,
+        ].some((value) => value !== undefined);
+
+        if (hasAnyMetered && params.meteredMaxClients === undefined) {
+            context.addIssue({
+                code: z.ZodIssueCode.custom,
+                message: "Metered settings require metered max clients to be set",
+            });
+        }
     });
 
 export type InproxyParameters = z.infer<typeof InproxyParametersSchema>;
@@ -134,6 +178,8 @@ export type InproxyActivityByPeriod = z.infer<
     typeof InproxyActivityDataByPeriodSchema
 >;
 export type InproxyEvent = z.infer<typeof InproxyEventSchema>;
+export type IoMode = z.infer<typeof IoModeSchema>;
+export type PowerLockMode = z.infer<typeof PowerLockModeSchema>;
 
 export interface InproxyContextValue {
     inproxyParameters: InproxyParameters;